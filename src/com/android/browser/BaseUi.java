@@ -258,7 +258,9 @@ public abstract class BaseUi implements UI {
 
     @Override
     public boolean needsRestoreAllTabs() {
-        return true;
+        // Background tabs are restored without a WebView, the tab bar only
+        // needs their title and favicon
+        return false;
     }
 
     @Override
@@ -797,19 +799,25 @@ public abstract class BaseUi implements UI {
         return (winParams.flags & bits) == bits;
     }
 
+    private Drawable createFaviconFrame() {
+        // Not shared, a drawable keeps the bounds of the last view it was
+        // laid out in
+        LayerDrawable frame = new LayerDrawable(new Drawable[] {
+                new PaintDrawable(Color.BLACK), new PaintDrawable(Color.WHITE) });
+        frame.setLayerInset(1, 1, 1, 1, 1);
+        return frame;
+    }
+
     public Drawable getFaviconDrawable(Bitmap icon) {
-        Drawable[] array = new Drawable[3];
-        array[0] = new PaintDrawable(Color.BLACK);
-        PaintDrawable p = new PaintDrawable(Color.WHITE);
-        array[1] = p;
+        Drawable[] array = new Drawable[2];
+        array[0] = createFaviconFrame();
         if (icon == null) {
-            array[2] = mGenericFavicon;
+            array[1] = mGenericFavicon;
         } else {
-            array[2] = new BitmapDrawable(icon);
+            array[1] = new BitmapDrawable(mActivity.getResources(), icon);
         }
         LayerDrawable d = new LayerDrawable(array);
-        d.setLayerInset(1, 1, 1, 1, 1);
-        d.setLayerInset(2, 2, 2, 2, 2);
+        d.setLayerInset(1, 2, 2, 2, 2);
         return d;
     }
 
@@ -40,6 +40,8 @@ class BookmarkItem extends HorizontalScrollView {
     protected String      mUrl;
     protected String      mTitle;
     protected boolean mEnableScrolling = false;
+    // Favicon acquired from the ImageCache, released when replaced
+    private Bitmap mCachedFavicon;
 
     /**
      *  Instantiate a bookmark item, including a default favicon.
@@ -68,6 +70,12 @@ class BookmarkItem extends HorizontalScrollView {
         item.mTextView.setText(mTextView.getText());
         item.mUrlText.setText(mUrlText.getText());
         item.mImageView.setImageDrawable(mImageView.getDrawable());
+        if (mCachedFavicon != null) {
+            // The copy holds its own reference, this item may be rebound
+            ImageCache.getInstance(getContext()).retain(mCachedFavicon);
+        }
+        item.releaseCachedFavicon();
+        item.mCachedFavicon = mCachedFavicon;
     }
 
     /**
@@ -95,6 +103,26 @@ class BookmarkItem extends HorizontalScrollView {
         }
     }
 
+    /**
+     *  Set a favicon returned by {@link ImageCache#acquire}, releasing the
+     *  one set before.
+     *
+     *  @param b    The new bitmap for this item.
+     *              If it is null, will use the default.
+     */
+    /* package */ void setCachedFavicon(Bitmap b) {
+        setFavicon(b);
+        releaseCachedFavicon();
+        mCachedFavicon = b;
+    }
+
+    private void releaseCachedFavicon() {
+        if (mCachedFavicon != null) {
+            ImageCache.getInstance(getContext()).release(mCachedFavicon);
+            mCachedFavicon = null;
+        }
+    }
+
     void setFaviconBackground(Drawable d) {
         mImageView.setBackgroundDrawable(d);
     }
@@ -21,6 +21,8 @@ import android.content.CursorLoader;
 import android.net.Uri;
 import android.provider.BrowserContract.Bookmarks;
 
+import com.android.browser.provider.BrowserProvider2.ImagePresence;
+
 public class BookmarksLoader extends CursorLoader {
     public static final String ARG_ACCOUNT_TYPE = "acct_type";
     public static final String ARG_ACCOUNT_NAME = "acct_name";
@@ -28,9 +30,10 @@ public class BookmarksLoader extends CursorLoader {
     public static final int COLUMN_INDEX_ID = 0;
     public static final int COLUMN_INDEX_URL = 1;
     public static final int COLUMN_INDEX_TITLE = 2;
-    public static final int COLUMN_INDEX_FAVICON = 3;
-    public static final int COLUMN_INDEX_THUMBNAIL = 4;
-    public static final int COLUMN_INDEX_TOUCH_ICON = 5;
+    // Images are loaded through ImageCache, the listing only says which exist
+    public static final int COLUMN_INDEX_HAS_FAVICON = 3;
+    public static final int COLUMN_INDEX_HAS_THUMBNAIL = 4;
+    public static final int COLUMN_INDEX_HAS_TOUCH_ICON = 5;
     public static final int COLUMN_INDEX_IS_FOLDER = 6;
     public static final int COLUMN_INDEX_PARENT = 8;
     public static final int COLUMN_INDEX_TYPE = 9;
@@ -39,9 +42,9 @@ public class BookmarksLoader extends CursorLoader {
         Bookmarks._ID, // 0
         Bookmarks.URL, // 1
         Bookmarks.TITLE, // 2
-        Bookmarks.FAVICON, // 3
-        Bookmarks.THUMBNAIL, // 4
-        Bookmarks.TOUCH_ICON, // 5
+        ImagePresence.HAS_FAVICON, // 3
+        ImagePresence.HAS_THUMBNAIL, // 4
+        ImagePresence.HAS_TOUCH_ICON, // 5
         Bookmarks.IS_FOLDER, // 6
         Bookmarks.POSITION, // 7
         Bookmarks.PARENT, // 8
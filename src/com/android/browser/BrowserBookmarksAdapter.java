@@ -21,6 +21,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Images;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -108,20 +109,44 @@ public class BrowserBookmarksAdapter extends
         if (item == null) {
             item = new BrowserBookmarksAdapterItem();
         }
-        Bitmap thumbnail = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
-        thumbnail = BrowserBookmarksPage.getBitmap(c,
-                BookmarksLoader.COLUMN_INDEX_THUMBNAIL, thumbnail);
-        item.has_thumbnail = thumbnail != null;
-        if (thumbnail != null
-                && (item.thumbnail == null || item.thumbnail.getBitmap() != thumbnail)) {
-            item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
-        }
         item.is_folder = c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) != 0;
         item.title = getTitle(c);
         item.url = c.getString(BookmarksLoader.COLUMN_INDEX_URL);
+        ImageCache cache = ImageCache.getInstance(mContext);
+        Bitmap thumbnail = null;
+        if (c.getInt(BookmarksLoader.COLUMN_INDEX_HAS_THUMBNAIL) != 0) {
+            thumbnail = cache.acquire(Images.THUMBNAIL, item.url);
+            if (thumbnail == null) {
+                // Already off the UI thread
+                cache.fetch(Images.THUMBNAIL, ImageCache.getUpcomingUrls(c,
+                        BookmarksLoader.COLUMN_INDEX_HAS_THUMBNAIL,
+                        BookmarksLoader.COLUMN_INDEX_URL, ImageCache.BATCH_SIZE, null));
+                thumbnail = cache.acquire(Images.THUMBNAIL, item.url);
+            }
+        }
+        item.has_thumbnail = thumbnail != null;
+        // The item held one reference to its previous thumbnail, which can
+        // be reused once it leaves the cache
+        Bitmap previous = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
+        if (previous != null) {
+            cache.release(previous);
+        }
+        if (thumbnail == null) {
+            item.thumbnail = null;
+        } else if (previous != thumbnail) {
+            item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
+        }
         return item;
     }
 
+    @Override
+    protected void onDiscard(BrowserBookmarksAdapterItem item) {
+        if (item.thumbnail != null) {
+            ImageCache.getInstance(mContext).release(item.thumbnail.getBitmap());
+            item.thumbnail = null;
+        }
+    }
+
     @Override
     public BrowserBookmarksAdapterItem getLoadingObject() {
         BrowserBookmarksAdapterItem item = new BrowserBookmarksAdapterItem();
@@ -32,12 +32,12 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Accounts;
+import android.provider.BrowserContract.Images;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -56,7 +56,10 @@ import com.android.browser.view.BookmarkExpandableView.BookmarkContextMenuInfo;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 interface BookmarksPageCallbacks {
     // Return true if handled
@@ -187,10 +190,18 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         case R.id.edit_context_menu_id:
             editBookmark(adapter, childPosition);
             break;
-        case R.id.shortcut_context_menu_id:
+        case R.id.shortcut_context_menu_id: {
             Cursor c = adapter.getItem(childPosition);
-            activity.sendBroadcast(createShortcutIntent(getActivity(), c));
+            final String url = c.getString(BookmarksLoader.COLUMN_INDEX_URL);
+            final String title = c.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
+            loadImages(activity, c, new Runnable() {
+                @Override
+                public void run() {
+                    activity.sendBroadcast(createShortcutIntent(activity, url, title));
+                }
+            });
             break;
+        }
         case R.id.delete_context_menu_id:
             displayRemoveBookmarkDialog(adapter, childPosition);
             break;
@@ -199,11 +210,16 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             break;
         case R.id.share_link_context_menu_id: {
             Cursor cursor = adapter.getItem(childPosition);
-            Controller.sharePage(activity,
-                    cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE),
-                    cursor.getString(BookmarksLoader.COLUMN_INDEX_URL),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_THUMBNAIL));
+            final String title = cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
+            final String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
+            loadImages(activity, cursor, new Runnable() {
+                @Override
+                public void run() {
+                    ImageCache cache = ImageCache.getInstance(activity);
+                    Controller.sharePage(activity, title, url,
+                            cache.get(Images.FAVICON, url), cache.get(Images.THUMBNAIL, url));
+                }
+            });
             break;
         }
         case R.id.copy_url_context_menu_id:
@@ -230,30 +246,47 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         return true;
     }
 
-    static Bitmap getBitmap(Cursor cursor, int columnIndex) {
-        return getBitmap(cursor, columnIndex, null);
+    /**
+     * Returns an image of the bookmark at the cursor's position if it is
+     * cached, or null if its has_* column says there is none. Doesn't
+     * query, see {@link #loadImages}.
+     */
+    static Bitmap getImage(Context context, Cursor cursor, int hasImageIndex,
+            String column) {
+        if (cursor.getInt(hasImageIndex) == 0) {
+            return null;
+        }
+        return ImageCache.getInstance(context).get(column,
+                cursor.getString(BookmarksLoader.COLUMN_INDEX_URL));
     }
 
-    static ThreadLocal<Options> sOptions = new ThreadLocal<Options>() {
-        @Override
-        protected Options initialValue() {
-            return new Options();
-        };
-    };
-    static Bitmap getBitmap(Cursor cursor, int columnIndex, Bitmap inBitmap) {
-        byte[] data = cursor.getBlob(columnIndex);
-        if (data == null) {
-            return null;
+    /**
+     * Fetches the images of the bookmark at the cursor's position in the
+     * background, then runs the callback on the UI thread, where they are
+     * cached under the bookmark's url.
+     */
+    static void loadImages(Context context, Cursor cursor, Runnable callback) {
+        List<String> urls = Collections.singletonList(
+                cursor.getString(BookmarksLoader.COLUMN_INDEX_URL));
+        ArrayList<String> columns = new ArrayList<String>(3);
+        if (cursor.getInt(BookmarksLoader.COLUMN_INDEX_HAS_FAVICON) != 0) {
+            columns.add(Images.FAVICON);
         }
-        Options opts = sOptions.get();
-        opts.inBitmap = inBitmap;
-        opts.inSampleSize = 1;
-        opts.inScaled = false;
-        try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
-        } catch (IllegalArgumentException ex) {
-            // Failed to re-use bitmap, create a new one
-            return BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (cursor.getInt(BookmarksLoader.COLUMN_INDEX_HAS_THUMBNAIL) != 0) {
+            columns.add(Images.THUMBNAIL);
+        }
+        if (cursor.getInt(BookmarksLoader.COLUMN_INDEX_HAS_TOUCH_ICON) != 0) {
+            columns.add(Images.TOUCH_ICON);
+        }
+        if (columns.isEmpty()) {
+            callback.run();
+            return;
+        }
+        // Fetches are served in order, the last one calls back
+        ImageCache cache = ImageCache.getInstance(context);
+        for (int i = 0; i < columns.size(); i++) {
+            cache.fetchInBackground(columns.get(i), urls,
+                    i == columns.size() - 1 ? callback : null);
         }
     }
 
@@ -304,7 +337,8 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
                 || type == BrowserContract.Bookmarks.BOOKMARK_TYPE_FOLDER;
     }
 
-    private void populateBookmarkItem(Cursor cursor, BookmarkItem item, boolean isFolder) {
+    private void populateBookmarkItem(Cursor cursor, final BookmarkItem item,
+            boolean isFolder) {
         item.setName(cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE));
         if (isFolder) {
             item.setUrl(null);
@@ -314,10 +348,21 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             new LookupBookmarkCount(getActivity(), item)
                     .execute(cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID));
         } else {
-            String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
+            final String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
             item.setUrl(url);
-            Bitmap bitmap = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
+            Bitmap bitmap = getImage(getActivity(), cursor,
+                    BookmarksLoader.COLUMN_INDEX_HAS_FAVICON, Images.FAVICON);
             item.setFavicon(bitmap);
+            if (bitmap == null && cursor.getInt(BookmarksLoader.COLUMN_INDEX_HAS_FAVICON) != 0) {
+                final ImageCache cache = ImageCache.getInstance(getActivity());
+                cache.fetchInBackground(Images.FAVICON, Collections.singletonList(url),
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                item.setFavicon(cache.get(Images.FAVICON, url));
+                            }
+                        });
+            }
         }
     }
 
@@ -450,12 +495,15 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         return true;
     }
 
-    /* package */ static Intent createShortcutIntent(Context context, Cursor cursor) {
-        String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
-        String title = cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
-        Bitmap touchIcon = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_TOUCH_ICON);
-        Bitmap favicon = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
-        return BookmarkUtils.createAddToHomeIntent(context, url, title, touchIcon, favicon);
+    /**
+     * Returns the intent adding a shortcut to the bookmark, with the icons
+     * cached for it, see {@link #loadImages}.
+     */
+    /* package */ static Intent createShortcutIntent(Context context, String url,
+            String title) {
+        ImageCache cache = ImageCache.getInstance(context);
+        return BookmarkUtils.createAddToHomeIntent(context, url, title,
+                cache.get(Images.TOUCH_ICON, url), cache.get(Images.FAVICON, url));
     }
 
     private void loadUrl(BrowserBookmarksAdapter adapter, int position) {
@@ -507,26 +555,31 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
     }
 
     private void editBookmark(BrowserBookmarksAdapter adapter, int position) {
-        Intent intent = new Intent(getActivity(), AddBookmarkPage.class);
+        final Activity activity = getActivity();
+        final Intent intent = new Intent(activity, AddBookmarkPage.class);
         Cursor cursor = adapter.getItem(position);
-        Bundle item = new Bundle();
+        final Bundle item = new Bundle();
         item.putString(BrowserContract.Bookmarks.TITLE,
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE));
-        item.putString(BrowserContract.Bookmarks.URL,
-                cursor.getString(BookmarksLoader.COLUMN_INDEX_URL));
-        byte[] data = cursor.getBlob(BookmarksLoader.COLUMN_INDEX_FAVICON);
-        if (data != null) {
-            item.putParcelable(BrowserContract.Bookmarks.FAVICON,
-                    BitmapFactory.decodeByteArray(data, 0, data.length));
-        }
+        final String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
+        item.putString(BrowserContract.Bookmarks.URL, url);
         item.putLong(BrowserContract.Bookmarks._ID,
                 cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID));
         item.putLong(BrowserContract.Bookmarks.PARENT,
                 cursor.getLong(BookmarksLoader.COLUMN_INDEX_PARENT));
-        intent.putExtra(AddBookmarkPage.EXTRA_EDIT_BOOKMARK, item);
         intent.putExtra(AddBookmarkPage.EXTRA_IS_FOLDER,
                 cursor.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) == 1);
-        startActivity(intent);
+        loadImages(activity, cursor, new Runnable() {
+            @Override
+            public void run() {
+                Bitmap favicon = ImageCache.getInstance(activity).get(Images.FAVICON, url);
+                if (favicon != null) {
+                    item.putParcelable(BrowserContract.Bookmarks.FAVICON, favicon);
+                }
+                intent.putExtra(AddBookmarkPage.EXTRA_EDIT_BOOKMARK, item);
+                activity.startActivity(intent);
+            }
+        });
     }
 
     private void displayRemoveBookmarkDialog(BrowserBookmarksAdapter adapter,
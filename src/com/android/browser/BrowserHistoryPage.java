@@ -33,13 +33,15 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.DataSetObserver;
-import android.graphics.BitmapFactory;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Browser;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.Images;
+import android.text.TextUtils;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -49,6 +51,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewStub;
+import android.webkit.DateSorter;
 import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
@@ -61,6 +64,10 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.browser.provider.BrowserProvider2.HistoryBuckets;
+import com.android.browser.provider.BrowserProvider2.HistoryWindow;
+import com.android.browser.provider.BrowserProvider2.ImagePresence;
+
 /**
  * Activity for displaying the browser's history, divided into
  * days of viewing.
@@ -83,6 +90,8 @@ public class BrowserHistoryPage extends Fragment
     private ExpandableListView mHistoryList;
 
     private View mRoot;
+    // Sorter the history loader counts the items of each day with
+    private DateSorter mDateSorter;
 
     static interface HistoryQuery {
         static final String[] PROJECTION = new String[] {
@@ -90,7 +99,7 @@ public class BrowserHistoryPage extends Fragment
                 Combined.DATE_LAST_VISITED, // 1
                 Combined.TITLE, // 2
                 Combined.URL, // 3
-                Combined.FAVICON, // 4
+                ImagePresence.HAS_FAVICON, // 4
                 Combined.VISITS, // 5
                 Combined.IS_BOOKMARK, // 6
         };
@@ -99,9 +108,25 @@ public class BrowserHistoryPage extends Fragment
         static final int INDEX_DATE_LAST_VISITED = 1;
         static final int INDEX_TITE = 2;
         static final int INDEX_URL = 3;
-        static final int INDEX_FAVICON = 4;
+        static final int INDEX_HAS_FAVICON = 4;
         static final int INDEX_VISITS = 5;
         static final int INDEX_IS_BOOKMARK = 6;
+
+        // History pages also need the key to read the next page after
+        static final String[] WINDOW_PROJECTION = new String[] {
+                Combined._ID, // 0
+                Combined.DATE_LAST_VISITED, // 1
+                Combined.TITLE, // 2
+                Combined.URL, // 3
+                ImagePresence.HAS_FAVICON, // 4
+                Combined.VISITS, // 5
+                Combined.IS_BOOKMARK, // 6
+                HistoryWindow.HISTORY_ID, // 7
+        };
+
+        static final int INDEX_HISTORY_ID = 7;
+
+        static final String SELECTION = Combined.VISITS + " > 0";
     }
 
     private void copy(CharSequence text) {
@@ -116,10 +141,16 @@ public class BrowserHistoryPage extends Fragment
 
         switch (id) {
             case LOADER_HISTORY: {
-                String sort = Combined.DATE_LAST_VISITED + " DESC";
-                String where = Combined.VISITS + " > 0";
-                CursorLoader loader = new CursorLoader(getActivity(), combinedBuilder.build(),
-                        HistoryQuery.PROJECTION, where, null, sort);
+                // Only the number of items per day, the adapter reads the
+                // items of the days being shown with the same sorter
+                mDateSorter = new DateSorter(getActivity());
+                Uri uri = HistoryBuckets.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(HistoryBuckets.PARAM_BOUNDARIES,
+                                DateSortedExpandableListAdapter.getBoundaries(mDateSorter))
+                        .build();
+                CursorLoader loader = new CursorLoader(getActivity(), uri,
+                        new String[] { HistoryBuckets.BUCKET, HistoryBuckets.COUNT },
+                        HistoryQuery.SELECTION, null, null);
                 return loader;
             }
 
@@ -127,9 +158,9 @@ public class BrowserHistoryPage extends Fragment
                 Uri uri = combinedBuilder
                         .appendQueryParameter(BrowserContract.PARAM_LIMIT, mMostVisitsLimit)
                         .build();
-                String where = Combined.VISITS + " > 0";
                 CursorLoader loader = new CursorLoader(getActivity(), uri,
-                        HistoryQuery.PROJECTION, where, null, Combined.VISITS + " DESC");
+                        HistoryQuery.PROJECTION, HistoryQuery.SELECTION, null,
+                        Combined.VISITS + " DESC");
                 return loader;
             }
 
@@ -162,7 +193,7 @@ public class BrowserHistoryPage extends Fragment
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         switch (loader.getId()) {
             case LOADER_HISTORY: {
-                mAdapter.changeCursor(data);
+                mAdapter.changeCursor(data, mDateSorter);
                 if (!mAdapter.isEmpty() && mGroupList != null
                         && mGroupList.getCheckedItemPosition() == ListView.INVALID_POSITION) {
                     selectGroup(0);
@@ -271,10 +302,24 @@ public class BrowserHistoryPage extends Fragment
     @Override
     public boolean onChildClick(ExpandableListView parent, View view,
             int groupPosition, int childPosition, long id) {
-        mCallback.openUrl(((HistoryItem) view).getUrl());
+        String url = ((HistoryItem) view).getUrl();
+        if (!TextUtils.isEmpty(url)) {
+            mCallback.openUrl(url);
+        }
         return true;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // The days are relative to today, count them again after midnight
+        DateSorter sorter = mAdapter.getDateSorter();
+        if (sorter != null && sorter.getBoundary(0)
+                != new DateSorter(getActivity()).getBoundary(0)) {
+            getLoaderManager().restartLoader(LOADER_HISTORY, null, this);
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -524,14 +569,39 @@ public class BrowserHistoryPage extends Fragment
         Drawable mFaviconBackground;
 
         HistoryAdapter(Context context) {
-            super(context, HistoryQuery.INDEX_DATE_LAST_VISITED);
+            super(context, HistoryQuery.INDEX_DATE_LAST_VISITED, HistoryQuery.INDEX_HISTORY_ID);
             mFaviconBackground = BookmarkUtils.createListFaviconBackground(context);
         }
 
         @Override
-        public void changeCursor(Cursor cursor) {
+        Cursor queryPage(long newerThan, long notNewerThan, long afterDate, Long afterKey,
+                int offset, int limit) {
+            Uri.Builder builder = HistoryWindow.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(BrowserContract.PARAM_LIMIT,
+                            offset > 0 ? offset + "," + limit : Integer.toString(limit));
+            if (afterKey != null) {
+                builder.appendQueryParameter(HistoryWindow.PARAM_AFTER_DATE,
+                        Long.toString(afterDate));
+                builder.appendQueryParameter(HistoryWindow.PARAM_AFTER_ID,
+                        afterKey.toString());
+            }
+            String where = HistoryQuery.SELECTION + " AND " + Combined.DATE_LAST_VISITED
+                    + " > ? AND " + Combined.DATE_LAST_VISITED + " <= ?";
+            Cursor cursor = getContext().getContentResolver().query(builder.build(),
+                    HistoryQuery.WINDOW_PROJECTION, where,
+                    new String[] { Long.toString(newerThan), Long.toString(notNewerThan) },
+                    null);
+            if (cursor != null) {
+                // Fill the window now, off the UI thread
+                cursor.getCount();
+            }
+            return cursor;
+        }
+
+        @Override
+        public void changeCursor(Cursor cursor, DateSorter sorter) {
             mHistoryCursor = cursor;
-            super.changeCursor(cursor);
+            super.changeCursor(cursor, sorter);
         }
 
         void changeMostVisitedCursor(Cursor cursor) {
@@ -551,8 +621,8 @@ public class BrowserHistoryPage extends Fragment
 
         @Override
         public long getChildId(int groupPosition, int childPosition) {
-            if (moveCursorToChildPosition(groupPosition, childPosition)) {
-                Cursor cursor = getCursor(groupPosition);
+            Cursor cursor = getChildCursor(groupPosition, childPosition);
+            if (cursor != null) {
                 return cursor.getLong(HistoryQuery.INDEX_ID);
             }
             return 0;
@@ -588,12 +658,6 @@ public class BrowserHistoryPage extends Fragment
                     || mMostVisited.getCount() == 0;
         }
 
-        Cursor getCursor(int groupPosition) {
-            if (groupPosition >= super.getGroupCount()) {
-                return mMostVisited;
-            }
-            return mHistoryCursor;
-        }
 
         @Override
         public View getGroupView(int groupPosition, boolean isExpanded,
@@ -616,16 +680,15 @@ public class BrowserHistoryPage extends Fragment
         }
 
         @Override
-        boolean moveCursorToChildPosition(
-                int groupPosition, int childPosition) {
+        Cursor getChildCursor(int groupPosition, int childPosition) {
             if (groupPosition >= super.getGroupCount()) {
-                if (mMostVisited != null && !mMostVisited.isClosed()) {
-                    mMostVisited.moveToPosition(childPosition);
-                    return true;
+                if (mMostVisited != null && !mMostVisited.isClosed()
+                        && mMostVisited.moveToPosition(childPosition)) {
+                    return mMostVisited;
                 }
-                return false;
+                return null;
             }
-            return super.moveCursorToChildPosition(groupPosition, childPosition);
+            return super.getChildCursor(groupPosition, childPosition);
         }
 
         @Override
@@ -645,20 +708,41 @@ public class BrowserHistoryPage extends Fragment
                 item = (HistoryItem) convertView;
             }
 
-            // Bail early if the Cursor is closed.
-            if (!moveCursorToChildPosition(groupPosition, childPosition)) {
+            // Show an empty row while the page is read or if the Cursor
+            // is closed.
+            Cursor cursor = getChildCursor(groupPosition, childPosition);
+            if (cursor == null) {
+                item.setName("");
+                item.setUrl("");
+                item.setCachedFavicon(null);
+                item.setIsBookmark(false);
                 return item;
             }
 
-            Cursor cursor = getCursor(groupPosition);
             item.setName(cursor.getString(HistoryQuery.INDEX_TITE));
-            String url = cursor.getString(HistoryQuery.INDEX_URL);
+            final String url = cursor.getString(HistoryQuery.INDEX_URL);
             item.setUrl(url);
-            byte[] data = cursor.getBlob(HistoryQuery.INDEX_FAVICON);
-            if (data != null) {
-                item.setFavicon(BitmapFactory.decodeByteArray(data, 0,
-                        data.length));
+            Bitmap favicon = null;
+            if (cursor.getInt(HistoryQuery.INDEX_HAS_FAVICON) != 0) {
+                final ImageCache cache = ImageCache.getInstance(getContext());
+                favicon = cache.acquire(Images.FAVICON, url);
+                if (favicon == null) {
+                    final HistoryItem target = item;
+                    cache.fetchInBackground(Images.FAVICON, ImageCache.getUpcomingUrls(
+                            cursor, HistoryQuery.INDEX_HAS_FAVICON, HistoryQuery.INDEX_URL,
+                            ImageCache.BATCH_SIZE, null), new Runnable() {
+                                @Override
+                                public void run() {
+                                    // Unless the view was bound to another row
+                                    if (url.equals(target.getUrl())) {
+                                        target.setCachedFavicon(
+                                                cache.acquire(Images.FAVICON, url));
+                                    }
+                                }
+                            });
+                }
             }
+            item.setCachedFavicon(favicon);
             item.setIsBookmark(cursor.getInt(HistoryQuery.INDEX_IS_BOOKMARK) == 1);
             return item;
         }
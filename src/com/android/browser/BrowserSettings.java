@@ -26,13 +26,19 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Browser;
 import android.provider.Settings;
 import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Choreographer;
 import android.webkit.CookieManager;
 import android.webkit.GeolocationPermissions;
+import android.webkit.ValueCallback;
 import android.webkit.WebIconDatabase;
 import android.webkit.WebSettings;
 import android.webkit.WebSettings.LayoutAlgorithm;
@@ -51,9 +57,14 @@ import com.android.browser.search.SearchEngine;
 import com.android.browser.search.SearchEngines;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Class for managing settings
@@ -61,6 +72,8 @@ import java.util.WeakHashMap;
 public class BrowserSettings implements OnSharedPreferenceChangeListener,
         PreferenceKeys {
 
+    private static final String LOGTAG = "BrowserSettings";
+
     // TODO: Do something with this UserAgent stuff
     private static final String DESKTOP_USERAGENT = "Mozilla/5.0 (X11; " +
         "Linux x86_64) AppleWebKit/534.24 (KHTML, like Gecko) " +
@@ -105,17 +118,90 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     // The size of a single step in the double tap zoom range, in percent
     private static final int DOUBLE_TAP_ZOOM_STEP = 5;
 
+    // Groups of WebSettings setters run by syncSetting
+    private static final int SYNC_GEOLOCATION = 1 << 0;
+    private static final int SYNC_JAVASCRIPT = 1 << 1;
+    private static final int SYNC_LIGHT_TOUCH = 1 << 2;
+    private static final int SYNC_NAV_DUMP = 1 << 3;
+    private static final int SYNC_SKIA = 1 << 4;
+    private static final int SYNC_VISUAL_INDICATOR = 1 << 5;
+    private static final int SYNC_TEXT_ENCODING = 1 << 6;
+    private static final int SYNC_DEFAULT_ZOOM = 1 << 7;
+    private static final int SYNC_MIN_FONT_SIZE = 1 << 8;
+    private static final int SYNC_USER_SCALABLE = 1 << 9;
+    private static final int SYNC_PLUGIN_STATE = 1 << 10;
+    private static final int SYNC_TEXT_ZOOM = 1 << 11;
+    private static final int SYNC_DOUBLE_TAP_ZOOM = 1 << 12;
+    private static final int SYNC_AUTOFILL = 1 << 13;
+    private static final int SYNC_LAYOUT = 1 << 14;
+    private static final int SYNC_POPUPS = 1 << 15;
+    private static final int SYNC_LOAD_IMAGES = 1 << 16;
+    private static final int SYNC_OVERVIEW = 1 << 17;
+    private static final int SYNC_PASSWORDS = 1 << 18;
+    private static final int SYNC_FORM_DATA = 1 << 19;
+    private static final int SYNC_WIDE_VIEWPORT = 1 << 20;
+    private static final int SYNC_AUTOFILL_PROFILE = 1 << 21;
+    private static final int SYNC_WEBGL = 1 << 22;
+    private static final int SYNC_USER_AGENT = 1 << 23;
+    private static final int SYNC_INVERTED = 1 << 24;
+    private static final int SYNC_CPU_UPLOAD = 1 << 25;
+    private static final int SYNC_LINK_PREFETCH = 1 << 26;
+    // Settings shared by all WebViews, see syncSharedSettings
+    private static final int SYNC_SHARED = 1 << 27;
+    private static final int SYNC_ALL = (1 << 28) - 1;
+
+    // The setters each preference feeds. Preferences that aren't listed
+    // don't reach the WebSettings.
+    private static final HashMap<String, Integer> KEY_SYNCS = new HashMap<String, Integer>();
+    static {
+        KEY_SYNCS.put(PREF_ENABLE_GEOLOCATION, SYNC_GEOLOCATION);
+        KEY_SYNCS.put(PREF_ENABLE_JAVASCRIPT, SYNC_JAVASCRIPT);
+        KEY_SYNCS.put(PREF_ENABLE_LIGHT_TOUCH, SYNC_LIGHT_TOUCH);
+        KEY_SYNCS.put(PREF_ENABLE_NAV_DUMP, SYNC_NAV_DUMP);
+        KEY_SYNCS.put(PREF_ENABLE_HARDWARE_ACCEL_SKIA, SYNC_SKIA);
+        KEY_SYNCS.put(PREF_ENABLE_VISUAL_INDICATOR, SYNC_VISUAL_INDICATOR);
+        KEY_SYNCS.put(PREF_DEFAULT_TEXT_ENCODING, SYNC_TEXT_ENCODING);
+        KEY_SYNCS.put(PREF_DEFAULT_ZOOM, SYNC_DEFAULT_ZOOM);
+        KEY_SYNCS.put(PREF_MIN_FONT_SIZE, SYNC_MIN_FONT_SIZE);
+        KEY_SYNCS.put(PREF_FORCE_USERSCALABLE, SYNC_USER_SCALABLE);
+        KEY_SYNCS.put(PREF_PLUGIN_STATE, SYNC_PLUGIN_STATE);
+        KEY_SYNCS.put(PREF_TEXT_ZOOM, SYNC_TEXT_ZOOM);
+        KEY_SYNCS.put(PREF_DOUBLE_TAP_ZOOM, SYNC_DOUBLE_TAP_ZOOM);
+        KEY_SYNCS.put(PREF_AUTOFILL_ENABLED, SYNC_AUTOFILL);
+        KEY_SYNCS.put(PREF_AUTOFIT_PAGES, SYNC_LAYOUT);
+        KEY_SYNCS.put(PREF_SMALL_SCREEN, SYNC_LAYOUT);
+        KEY_SYNCS.put(PREF_NORMAL_LAYOUT, SYNC_LAYOUT);
+        KEY_SYNCS.put(PREF_BLOCK_POPUP_WINDOWS, SYNC_POPUPS);
+        KEY_SYNCS.put(PREF_LOAD_IMAGES, SYNC_LOAD_IMAGES);
+        KEY_SYNCS.put(PREF_LOAD_PAGE, SYNC_OVERVIEW);
+        KEY_SYNCS.put(PREF_REMEMBER_PASSWORDS, SYNC_PASSWORDS);
+        KEY_SYNCS.put(PREF_SAVE_FORMDATA, SYNC_FORM_DATA);
+        KEY_SYNCS.put(PREF_WIDE_VIEWPORT, SYNC_WIDE_VIEWPORT);
+        KEY_SYNCS.put(PREF_AUTOFILL_ACTIVE_PROFILE_ID, SYNC_AUTOFILL_PROFILE);
+        KEY_SYNCS.put(PREF_ENABLE_WEBGL, SYNC_WEBGL);
+        KEY_SYNCS.put(PREF_USER_AGENT, SYNC_USER_AGENT);
+        KEY_SYNCS.put(PREF_INVERTED, SYNC_INVERTED);
+        KEY_SYNCS.put(PREF_INVERTED_CONTRAST, SYNC_INVERTED);
+        KEY_SYNCS.put(PREF_ENABLE_CPU_UPLOAD_PATH, SYNC_CPU_UPLOAD);
+        KEY_SYNCS.put(PREF_ACCEPT_COOKIES, SYNC_SHARED);
+        KEY_SYNCS.put(PREF_JAVASCRIPT_CONSOLE, SYNC_SHARED);
+        // Most debug preferences only apply while the debug menu is on
+        KEY_SYNCS.put(PREF_DEBUG_MENU, SYNC_ALL);
+    }
+
     private static BrowserSettings sInstance;
 
     private Context mContext;
     private SharedPreferences mPrefs;
     private LinkedList<WeakReference<WebSettings>> mManagedSettings;
     private Controller mController;
-    private WebStorageSizeManager mWebStorageSizeManager;
     private AutofillHandler mAutofillHandler;
     private WeakHashMap<WebSettings, String> mCustomUserAgents;
-    private static boolean sInitialized = false;
+    private final Handler mHandler;
     private boolean mNeedsSharedSync = true;
+    private final Choreographer mChoreographer;
+    // Guarded by mManagedSettings
+    private int mPendingSyncs;
     private float mFontSizeMult = 1.0f;
 
     // Current state of network-dependent settings
@@ -128,7 +214,16 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     // Cached settings
     private SearchEngine mSearchEngine;
 
-    private static String sFactoryResetUrl;
+    // Initialization, run in the background in stages. Values that are
+    // cheap to compute are set in the constructor instead.
+    private final Stage<Void> mPrefsStage;
+    private final Stage<WebStorageSizeManager> mStorageStage;
+    private final Stage<String> mClientIdStage;
+    // Time the UI thread spent waiting for the stages
+    private long mUiWaitMillis;
+    private int mUiWaitCount;
+
+    private String mHomepageBase;
 
     private static boolean sWebGLAvailable;
 
@@ -146,13 +241,33 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         mAutofillHandler = new AutofillHandler(mContext);
         mManagedSettings = new LinkedList<WeakReference<WebSettings>>();
         mCustomUserAgents = new WeakHashMap<WebSettings, String>();
+        mChoreographer = Choreographer.getInstance();
+        mHandler = new Handler(Looper.getMainLooper());
         mAutofillHandler.asyncLoadFromDb();
-        BackgroundHandler.execute(mSetup);
+
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        mFontSizeMult = metrics.scaledDensity / metrics.density;
+        // the cost of one cached page is ~3M (measured using nytimes.com). For
+        // low end devices, we only cache one page. For high end devices, we try
+        // to cache more pages, currently choose 5.
+        if (ActivityManager.staticGetMemoryClass() > 16) {
+            mPageCacheCapacity = 5;
+        }
+        mHomepageBase = mContext.getResources().getString(R.string.homepage_base);
+
+        mPrefsStage = new Stage<Void>("preferences", mSetupPreferences);
+        mStorageStage = new Stage<WebStorageSizeManager>("web storage", mSetupStorage);
+        mClientIdStage = new Stage<String>("client id", mSetupClientId);
+        BackgroundHandler.execute(mPrefsStage);
+        BackgroundHandler.execute(mStorageStage);
+        if (mHomepageBase.indexOf("{CID}") != -1) {
+            BackgroundHandler.execute(mClientIdStage);
+        }
     }
 
     public void setController(Controller controller) {
         mController = controller;
-        if (sInitialized) {
+        if (mPrefsStage.isReady()) {
             syncSharedSettings();
         }
     }
@@ -164,7 +279,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
         synchronized (mManagedSettings) {
             syncStaticSettings(settingsClassic);
-            syncSetting(settingsClassic);
+            syncSetting(settingsClassic, SYNC_ALL);
             mManagedSettings.add(new WeakReference<WebSettings>(settings));
         }
     }
@@ -180,21 +295,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
     }
 
-    private Runnable mSetup = new Runnable() {
+    private final Callable<Void> mSetupPreferences = new Callable<Void>() {
 
         @Override
-        public void run() {
-            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
-            mFontSizeMult = metrics.scaledDensity / metrics.density;
-            // the cost of one cached page is ~3M (measured using nytimes.com). For
-            // low end devices, we only cache one page. For high end devices, we try
-            // to cache more pages, currently choose 5.
-            if (ActivityManager.staticGetMemoryClass() > 16) {
-                mPageCacheCapacity = 5;
-            }
-            mWebStorageSizeManager = new WebStorageSizeManager(mContext,
-                    new WebStorageSizeManager.StatFsDiskInfo(getAppCachePath()),
-                    new WebStorageSizeManager.WebKitAppCacheInfo(getAppCachePath()));
+        public Void call() {
             // Workaround b/5254577
             mPrefs.registerOnSharedPreferenceChangeListener(BrowserSettings.this);
             if (Build.VERSION.CODENAME.equals("REL")) {
@@ -226,82 +330,261 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 }
                 mPrefs.edit().remove(PREF_TEXT_SIZE).apply();
             }
+            return null;
+        }
+    };
 
-            sFactoryResetUrl = mContext.getResources().getString(R.string.homepage_base);
-            if (sFactoryResetUrl.indexOf("{CID}") != -1) {
-                sFactoryResetUrl = sFactoryResetUrl.replace("{CID}",
-                    BrowserProvider.getClientId(mContext.getContentResolver()));
-            }
+    private final Callable<WebStorageSizeManager> mSetupStorage =
+            new Callable<WebStorageSizeManager>() {
 
-            synchronized (BrowserSettings.class) {
-                sInitialized = true;
-                BrowserSettings.class.notifyAll();
+        @Override
+        public WebStorageSizeManager call() {
+            return new WebStorageSizeManager(mContext,
+                    new WebStorageSizeManager.StatFsDiskInfo(getAppCachePath()),
+                    new WebStorageSizeManager.WebKitAppCacheInfo(getAppCachePath()));
+        }
+    };
+
+    private final Callable<String> mSetupClientId = new Callable<String>() {
+
+        @Override
+        public String call() {
+            String clientId = BrowserProvider.getClientId(mContext.getContentResolver());
+            // Cached for the next start, see getFactoryResetHomeUrl
+            if (!clientId.equals(mPrefs.getString(KEY_CLIENT_ID, null))) {
+                mPrefs.edit().putString(KEY_CLIENT_ID, clientId).apply();
             }
+            return clientId;
         }
     };
 
-    private static void requireInitialization() {
-        synchronized (BrowserSettings.class) {
-            while (!sInitialized) {
-                try {
-                    BrowserSettings.class.wait();
-                } catch (InterruptedException e) {
+    /**
+     * A step of the initialization, run on a background thread. Callers
+     * that need its result either wait for it, which is traced, or get it
+     * through a callback.
+     */
+    private class Stage<T> extends FutureTask<T> {
+        private final String mName;
+        private final long mCreated = SystemClock.uptimeMillis();
+        // Guarded by this, null once ready
+        private ArrayList<ValueCallback<T>> mCallbacks = new ArrayList<ValueCallback<T>>();
+
+        Stage(String name, Callable<T> work) {
+            super(work);
+            mName = name;
+        }
+
+        @Override
+        protected void done() {
+            if (Browser.LOGD_ENABLED) {
+                Log.d(LOGTAG, "Initialized " + mName + " in "
+                        + (SystemClock.uptimeMillis() - mCreated) + "ms");
+            }
+            final ArrayList<ValueCallback<T>> callbacks;
+            synchronized (this) {
+                callbacks = mCallbacks;
+                mCallbacks = null;
+            }
+            if (callbacks.isEmpty()) {
+                return;
+            }
+            final T value = getValue();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ValueCallback<T> callback : callbacks) {
+                        callback.onReceiveValue(value);
+                    }
+                }
+            });
+        }
+
+        synchronized boolean isReady() {
+            return mCallbacks == null;
+        }
+
+        /**
+         * Calls back on the UI thread once the value is ready, or right
+         * away if it is.
+         */
+        void whenReady(ValueCallback<T> callback) {
+            synchronized (this) {
+                if (mCallbacks != null) {
+                    mCallbacks.add(callback);
+                    return;
+                }
+            }
+            callback.onReceiveValue(getValue());
+        }
+
+        /**
+         * Returns the value, waiting for it if needed. Waits are logged with
+         * the caller, and those of the UI thread are added up.
+         */
+        T await() {
+            if (isReady()) {
+                return getValue();
+            }
+            long start = SystemClock.uptimeMillis();
+            T value = getValue();
+            long waited = SystemClock.uptimeMillis() - start;
+            StackTraceElement[] stack = new Throwable().getStackTrace();
+            String caller = stack.length > 2 ? stack[1].getMethodName() + " from " + stack[2]
+                    : "unknown";
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                synchronized (BrowserSettings.this) {
+                    mUiWaitMillis += waited;
+                    mUiWaitCount++;
+                }
+                Log.w(LOGTAG, "UI thread waited " + waited + "ms for " + mName + " in "
+                        + caller);
+            } else if (Browser.LOGD_ENABLED) {
+                Log.d(LOGTAG, Thread.currentThread().getName() + " waited " + waited
+                        + "ms for " + mName + " in " + caller);
+            }
+            return value;
+        }
+
+        private T getValue() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Failed to initialize " + mName,
+                                e.getCause());
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
                 }
             }
         }
     }
 
     /**
-     * Syncs all the settings that have a Preference UI
+     * Returns the time the UI thread spent waiting for the initialization,
+     * in milliseconds.
      */
-    private void syncSetting(WebSettingsClassic settings) {
-        settings.setGeolocationEnabled(enableGeolocation());
-        settings.setJavaScriptEnabled(enableJavascript());
-        settings.setLightTouchEnabled(enableLightTouch());
-        settings.setNavDump(enableNavDump());
-        settings.setHardwareAccelSkiaEnabled(isSkiaHardwareAccelerated());
-        settings.setShowVisualIndicator(enableVisualIndicator());
-        settings.setDefaultTextEncodingName(getDefaultTextEncoding());
-        settings.setDefaultZoom(getDefaultZoom());
-        settings.setMinimumFontSize(getMinimumFontSize());
-        settings.setMinimumLogicalFontSize(getMinimumFontSize());
-        settings.setForceUserScalable(forceEnableUserScalable());
-        settings.setPluginState(getPluginState());
-        settings.setTextZoom(getTextZoom());
-        settings.setDoubleTapZoom(getDoubleTapZoom());
-        settings.setAutoFillEnabled(isAutofillEnabled());
-        settings.setLayoutAlgorithm(getLayoutAlgorithm());
-        settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
-        settings.setLoadsImagesAutomatically(loadImages());
-        settings.setLoadWithOverviewMode(loadPageInOverviewMode());
-        settings.setSavePassword(rememberPasswords());
-        settings.setSaveFormData(saveFormdata());
-        settings.setUseWideViewPort(isWideViewport());
-        settings.setAutoFillProfile(getAutoFillProfile());
-        setIsWebGLAvailable(settings.isWebGLAvailable());
-        settings.setWebGLEnabled(isWebGLAvailable() && isWebGLEnabled());
-
-        String ua = mCustomUserAgents.get(settings);
-        if (ua != null) {
-            settings.setUserAgentString(ua);
-        } else {
-            settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+    public synchronized long getInitWaitMillis() {
+        return mUiWaitMillis;
+    }
+
+    /**
+     * Returns how many times the UI thread waited for the initialization.
+     */
+    public synchronized int getInitWaitCount() {
+        return mUiWaitCount;
+    }
+
+    /**
+     * Syncs the settings that have a Preference UI, for the given SYNC
+     * groups
+     */
+    private void syncSetting(WebSettingsClassic settings, int syncs) {
+        if ((syncs & SYNC_GEOLOCATION) != 0) {
+            settings.setGeolocationEnabled(enableGeolocation());
+        }
+        if ((syncs & SYNC_JAVASCRIPT) != 0) {
+            settings.setJavaScriptEnabled(enableJavascript());
+        }
+        if ((syncs & SYNC_LIGHT_TOUCH) != 0) {
+            settings.setLightTouchEnabled(enableLightTouch());
+        }
+        if ((syncs & SYNC_NAV_DUMP) != 0) {
+            settings.setNavDump(enableNavDump());
+        }
+        if ((syncs & SYNC_SKIA) != 0) {
+            settings.setHardwareAccelSkiaEnabled(isSkiaHardwareAccelerated());
+        }
+        if ((syncs & SYNC_VISUAL_INDICATOR) != 0) {
+            settings.setShowVisualIndicator(enableVisualIndicator());
+        }
+        if ((syncs & SYNC_TEXT_ENCODING) != 0) {
+            settings.setDefaultTextEncodingName(getDefaultTextEncoding());
+        }
+        if ((syncs & SYNC_DEFAULT_ZOOM) != 0) {
+            settings.setDefaultZoom(getDefaultZoom());
+        }
+        if ((syncs & SYNC_MIN_FONT_SIZE) != 0) {
+            settings.setMinimumFontSize(getMinimumFontSize());
+            settings.setMinimumLogicalFontSize(getMinimumFontSize());
+        }
+        if ((syncs & SYNC_USER_SCALABLE) != 0) {
+            settings.setForceUserScalable(forceEnableUserScalable());
+        }
+        if ((syncs & SYNC_PLUGIN_STATE) != 0) {
+            settings.setPluginState(getPluginState());
+        }
+        if ((syncs & SYNC_TEXT_ZOOM) != 0) {
+            settings.setTextZoom(getTextZoom());
+        }
+        if ((syncs & SYNC_DOUBLE_TAP_ZOOM) != 0) {
+            settings.setDoubleTapZoom(getDoubleTapZoom());
+        }
+        if ((syncs & SYNC_AUTOFILL) != 0) {
+            settings.setAutoFillEnabled(isAutofillEnabled());
+        }
+        if ((syncs & SYNC_LAYOUT) != 0) {
+            settings.setLayoutAlgorithm(getLayoutAlgorithm());
+        }
+        if ((syncs & SYNC_POPUPS) != 0) {
+            settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
+        }
+        if ((syncs & SYNC_LOAD_IMAGES) != 0) {
+            settings.setLoadsImagesAutomatically(loadImages());
+        }
+        if ((syncs & SYNC_OVERVIEW) != 0) {
+            settings.setLoadWithOverviewMode(loadPageInOverviewMode());
+        }
+        if ((syncs & SYNC_PASSWORDS) != 0) {
+            settings.setSavePassword(rememberPasswords());
+        }
+        if ((syncs & SYNC_FORM_DATA) != 0) {
+            settings.setSaveFormData(saveFormdata());
+        }
+        if ((syncs & SYNC_WIDE_VIEWPORT) != 0) {
+            settings.setUseWideViewPort(isWideViewport());
+        }
+        if ((syncs & SYNC_AUTOFILL_PROFILE) != 0) {
+            settings.setAutoFillProfile(getAutoFillProfile());
+        }
+        if ((syncs & SYNC_WEBGL) != 0) {
+            setIsWebGLAvailable(settings.isWebGLAvailable());
+            settings.setWebGLEnabled(isWebGLAvailable() && isWebGLEnabled());
+        }
+
+        if ((syncs & SYNC_USER_AGENT) != 0) {
+            String ua = mCustomUserAgents.get(settings);
+            if (ua != null) {
+                settings.setUserAgentString(ua);
+            } else {
+                settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+            }
         }
 
-        boolean useInverted = useInvertedRendering();
-        settings.setProperty(WebViewProperties.gfxInvertedScreen,
-                useInverted ? "true" : "false");
-        if (useInverted) {
-            settings.setProperty(WebViewProperties.gfxInvertedScreenContrast,
-                    Float.toString(getInvertedContrast()));
+        if ((syncs & SYNC_INVERTED) != 0) {
+            boolean useInverted = useInvertedRendering();
+            settings.setProperty(WebViewProperties.gfxInvertedScreen,
+                    useInverted ? "true" : "false");
+            if (useInverted) {
+                settings.setProperty(WebViewProperties.gfxInvertedScreenContrast,
+                        Float.toString(getInvertedContrast()));
+            }
         }
 
-        if (isDebugEnabled()) {
+        if ((syncs & SYNC_CPU_UPLOAD) != 0 && isDebugEnabled()) {
             settings.setProperty(WebViewProperties.gfxEnableCpuUploadPath,
                     enableCpuUploadPath() ? "true" : "false");
         }
 
-        settings.setLinkPrefetchEnabled(mLinkPrefetchAllowed);
+        if ((syncs & SYNC_LINK_PREFETCH) != 0) {
+            settings.setLinkPrefetchEnabled(mLinkPrefetchAllowed);
+        }
     }
 
     /**
@@ -337,7 +620,18 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         settings.setWorkersEnabled(true);  // This only affects V8.
 
         // HTML5 configuration parametersettings.
-        settings.setAppCacheMaxSize(getWebStorageSizeManager().getAppCacheMaxSize());
+        // StatFs may still be running, don't hold up the first tab for it
+        final WeakReference<WebSettingsClassic> ref =
+                new WeakReference<WebSettingsClassic>(settings);
+        getWebStorageSizeManager(new ValueCallback<WebStorageSizeManager>() {
+            @Override
+            public void onReceiveValue(WebStorageSizeManager manager) {
+                WebSettingsClassic managed = ref.get();
+                if (managed != null) {
+                    managed.setAppCacheMaxSize(manager.getAppCacheMaxSize());
+                }
+            }
+        });
         settings.setAppCachePath(getAppCachePath());
         settings.setDatabasePath(mContext.getDir("databases", 0).getPath());
         settings.setGeolocationDatabasePath(mContext.getDir("geolocation", 0).getPath());
@@ -354,9 +648,36 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
     }
 
+    /**
+     * Schedules the given SYNC groups on every managed WebSettings. The
+     * changes of a frame are applied together at its start.
+     */
+    private void requestSync(int syncs) {
+        if (syncs == 0) {
+            return;
+        }
+        synchronized (mManagedSettings) {
+            if (mPendingSyncs == 0) {
+                mChoreographer.postFrameCallback(mSyncCallback);
+            }
+            mPendingSyncs |= syncs;
+        }
+    }
+
+    private final Choreographer.FrameCallback mSyncCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            syncManagedSettings();
+        }
+    };
+
     private void syncManagedSettings() {
-        syncSharedSettings();
         synchronized (mManagedSettings) {
+            int syncs = mPendingSyncs;
+            mPendingSyncs = 0;
+            if ((syncs & SYNC_SHARED) != 0) {
+                syncSharedSettings();
+            }
             Iterator<WeakReference<WebSettings>> iter = mManagedSettings.iterator();
             while (iter.hasNext()) {
                 WeakReference<WebSettings> ref = iter.next();
@@ -365,7 +686,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     iter.remove();
                     continue;
                 }
-                syncSetting(settings);
+                syncSetting(settings, syncs);
             }
         }
     }
@@ -373,7 +694,10 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     @Override
     public void onSharedPreferenceChanged(
             SharedPreferences sharedPreferences, String key) {
-        syncManagedSettings();
+        Integer syncs = KEY_SYNCS.get(key);
+        if (syncs != null) {
+            requestSync(syncs);
+        }
         if (PREF_SEARCH_ENGINE.equals(key)) {
             updateSearchEngine(false);
         } else if (PREF_ENABLE_QUICK_CONTROLS.equals(key)) {
@@ -385,9 +709,37 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
     }
 
+    /**
+     * Returns the default homepage. The client id it may embed is looked up
+     * in the background; until then the one cached by the previous run is
+     * used, and only the first run waits for it.
+     */
     public static String getFactoryResetHomeUrl(Context context) {
-        requireInitialization();
-        return sFactoryResetUrl;
+        BrowserSettings settings = sInstance;
+        if (settings != null) {
+            return settings.getFactoryResetHomeUrl();
+        }
+        // Not initialized in this process, look it up directly
+        String url = context.getResources().getString(R.string.homepage_base);
+        if (url.indexOf("{CID}") != -1) {
+            url = url.replace("{CID}",
+                    BrowserProvider.getClientId(context.getContentResolver()));
+        }
+        return url;
+    }
+
+    private String getFactoryResetHomeUrl() {
+        if (mHomepageBase.indexOf("{CID}") == -1) {
+            return mHomepageBase;
+        }
+        String clientId = null;
+        if (!mClientIdStage.isReady()) {
+            clientId = mPrefs.getString(KEY_CLIENT_ID, null);
+        }
+        if (clientId == null) {
+            clientId = mClientIdStage.await();
+        }
+        return mHomepageBase.replace("{CID}", clientId);
     }
 
     public LayoutAlgorithm getLayoutAlgorithm() {
@@ -410,13 +762,15 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getPageCacheCapacity() {
-        requireInitialization();
         return mPageCacheCapacity;
     }
 
-    public WebStorageSizeManager getWebStorageSizeManager() {
-        requireInitialization();
-        return mWebStorageSizeManager;
+    /**
+     * Calls back on the UI thread with the storage manager once it is set
+     * up, or right away if it is.
+     */
+    public void getWebStorageSizeManager(ValueCallback<WebStorageSizeManager> callback) {
+        mStorageStage.whenReady(callback);
     }
 
     private String getAppCachePath() {
@@ -442,7 +796,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public boolean isDebugEnabled() {
-        requireInitialization();
+        mPrefsStage.await();
         return mPrefs.getBoolean(PREF_DEBUG_MENU, false);
     }
 
@@ -507,7 +861,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 .clear()
                 .putLong(GoogleAccountLogin.PREF_AUTOLOGIN_TIME, gal)
                 .apply();
-        syncManagedSettings();
+        // Clearing doesn't notify the listener of the removed keys
+        requestSync(SYNC_ALL);
     }
 
     public AutoFillProfile getAutoFillProfile() {
@@ -519,8 +874,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         // Auto-fill will reuse the same profile ID when making edits to the profile,
         // so we need to force a settings sync (otherwise the SharedPreferences
         // manager will optimise out the call to onSharedPreferenceChanged(), as
-        // it thinks nothing has changed).
-        syncManagedSettings();
+        // it thinks nothing has changed). Only the profile needs it.
+        requestSync(SYNC_AUTOFILL_PROFILE);
     }
 
     public void toggleDebugSettings() {
@@ -602,7 +957,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
         if (mLinkPrefetchAllowed != linkPrefetchAllowed) {
             mLinkPrefetchAllowed = linkPrefetchAllowed;
-            syncManagedSettings();
+            requestSync(SYNC_LINK_PREFETCH);
         }
     }
 
@@ -626,7 +981,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getTextZoom() {
-        requireInitialization();
+        mPrefsStage.await();
         int textZoom = mPrefs.getInt(PREF_TEXT_ZOOM, 10);
         return getAdjustedTextZoom(textZoom);
     }
@@ -636,7 +991,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     }
 
     public int getDoubleTapZoom() {
-        requireInitialization();
+        mPrefsStage.await();
         int doubleTapZoom = mPrefs.getInt(PREF_DOUBLE_TAP_ZOOM, 5);
         return getAdjustedDoubleTapZoom(doubleTapZoom);
     }
@@ -22,6 +22,7 @@ import android.app.Dialog;
 import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -83,7 +84,6 @@ import android.widget.Toast;
 
 import com.android.browser.IntentHandler.UrlData;
 import com.android.browser.UI.ComboViews;
-import com.android.browser.provider.BrowserProvider2.Thumbnails;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
 
 import java.io.ByteArrayOutputStream;
@@ -375,23 +375,8 @@ public class Controller
 
         @Override
         public void run() {
-            ContentResolver cr = mContext.getContentResolver();
-            if (mIds == null || mIds.size() == 0) {
-                cr.delete(Thumbnails.CONTENT_URI, null, null);
-            } else {
-                int length = mIds.size();
-                StringBuilder where = new StringBuilder();
-                where.append(Thumbnails._ID);
-                where.append(" not in (");
-                for (int i = 0; i < length; i++) {
-                    where.append(mIds.get(i));
-                    if (i < (length - 1)) {
-                        where.append(",");
-                    }
-                }
-                where.append(")");
-                cr.delete(Thumbnails.CONTENT_URI, where.toString(), null);
-            }
+            ThumbnailStore.getInstance(mContext).prune(mIds);
+            TabStateStore.getInstance(mContext).prune(mIds);
         }
 
     }
@@ -777,7 +762,12 @@ public class Controller
 
     @Override
     public void onLowMemory() {
-        mTabControl.freeMemory();
+        mTabControl.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        mTabControl.trimMemory(level);
     }
 
     @Override
@@ -951,7 +941,10 @@ public class Controller
     @Override
     public void onFavicon(Tab tab, WebView view, Bitmap icon) {
         mUi.onTabDataChanged(tab);
-        maybeUpdateFavicon(tab, view.getOriginalUrl(), view.getUrl(), icon);
+        // view is null for the stored favicon of a tab not yet restored
+        if (view != null) {
+            maybeUpdateFavicon(tab, view.getOriginalUrl(), view.getUrl(), icon);
+        }
     }
 
     @Override
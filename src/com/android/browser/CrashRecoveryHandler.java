@@ -24,20 +24,18 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
 import android.util.Log;
+import android.webkit.ValueCallback;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 public class CrashRecoveryHandler {
 
     private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
     private static final String LOGTAG = "BrowserCrashRecovery";
-    private static final String STATE_FILE = "browser_state.parcel";
-    private static final int BUFFER_SIZE = 4096;
+    // Single parcel file written by earlier versions
+    private static final String LEGACY_STATE_FILE = "browser_state.parcel";
+    private static final String STATE_DIR = "browser_state";
     private static final long BACKUP_DELAY = 500; // 500ms between writes
     /* This is the duration for which we will prompt to restore
      * instead of automatically restoring. The first time the browser crashes,
@@ -59,6 +57,7 @@ public class CrashRecoveryHandler {
     private boolean mIsPreloading = false;
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
+    private CrashRecoveryJournal mJournal;
 
     public static CrashRecoveryHandler initialize(Controller controller) {
         if (sInstance == null) {
@@ -76,6 +75,8 @@ public class CrashRecoveryHandler {
     private CrashRecoveryHandler(Controller controller) {
         mController = controller;
         mContext = mController.getActivity().getApplicationContext();
+        // Not the cache dir, which the system may purge while we're not running
+        mJournal = new CrashRecoveryJournal(new File(mContext.getFilesDir(), STATE_DIR));
         mForegroundHandler = new Handler();
         mBackgroundHandler = new Handler(BackgroundHandler.getLooper()) {
 
@@ -90,10 +91,8 @@ public class CrashRecoveryHandler {
                     if (LOGV_ENABLED) {
                         Log.v(LOGTAG, "Clearing crash recovery state");
                     }
-                    File state = new File(mContext.getCacheDir(), STATE_FILE);
-                    if (state.exists()) {
-                        state.delete();
-                    }
+                    mJournal.clear();
+                    TabStateStore.getInstance(mContext).onJournalWritten(new Bundle());
                     break;
                 case MSG_PRELOAD_STATE:
                     mRecoveryState = loadCrashState();
@@ -154,38 +153,40 @@ public class CrashRecoveryHandler {
         }
         BrowserSettings browserSettings = BrowserSettings.getInstance();
         browserSettings.setLastRunPaused(false);
-        Bundle state = null;
-        Parcel parcel = Parcel.obtain();
-        FileInputStream fin = null;
         try {
-            File stateFile = new File(mContext.getCacheDir(), STATE_FILE);
-            fin = new FileInputStream(stateFile);
-            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = fin.read(buffer)) > 0) {
-                dataStream.write(buffer, 0, read);
+            // Tabs are read from the journal when they are first shown
+            Bundle state = mJournal.readLazily();
+            if (state == null) {
+                state = readLegacyState();
             }
-            byte[] data = dataStream.toByteArray();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            state = parcel.readBundle();
             if (state != null && !state.isEmpty()) {
                 return state;
             }
-        } catch (FileNotFoundException e) {
-            // No state to recover
         } catch (Throwable e) {
             Log.w(LOGTAG, "Failed to recover state!", e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the single file state written by earlier versions, once; the
+     * next backup writes it to the journal.
+     */
+    private Bundle readLegacyState() throws IOException {
+        File file = new File(mContext.getCacheDir(), LEGACY_STATE_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] data = CrashRecoveryJournal.readFile(file);
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
         } finally {
             parcel.recycle();
-            if (fin != null) {
-                try {
-                    fin.close();
-                } catch (IOException e) { }
-            }
+            file.delete();
         }
-        return null;
     }
 
     public void startRecovery(Intent intent) {
@@ -205,6 +206,28 @@ public class CrashRecoveryHandler {
         mRecoveryState = null;
     }
 
+    /**
+     * Passes the full state of a tab restored from crash recovery to the
+     * callback, read in the background; the restored state only holds its
+     * url, title and the like.
+     */
+    public void inflateTabState(Bundle state, final ValueCallback<Bundle> callback) {
+        // The tab may change its copy while this one is read
+        final Bundle stub = new Bundle(state);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bundle inflated = mJournal.inflate(stub);
+                mForegroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReceiveValue(inflated);
+                    }
+                });
+            }
+        });
+    }
+
     public void preloadCrashState() {
         synchronized (CrashRecoveryHandler.this) {
             if (mIsPreloading) {
@@ -224,26 +247,12 @@ public class CrashRecoveryHandler {
         if (LOGV_ENABLED) {
             Log.v(LOGTAG, "Saving crash recovery state");
         }
-        Parcel p = Parcel.obtain();
         try {
-            state.writeToParcel(p, 0);
-            File stateJournal = new File(mContext.getCacheDir(),
-                    STATE_FILE + ".journal");
-            FileOutputStream fout = new FileOutputStream(stateJournal);
-            fout.write(p.marshall());
-            fout.close();
-            File stateFile = new File(mContext.getCacheDir(),
-                    STATE_FILE);
-            if (!stateJournal.renameTo(stateFile)) {
-                // Failed to rename, try deleting the existing
-                // file and try again
-                stateFile.delete();
-                stateJournal.renameTo(stateFile);
-            }
+            mJournal.write(state);
+            new File(mContext.getCacheDir(), LEGACY_STATE_FILE).delete();
+            TabStateStore.getInstance(mContext).onJournalWritten(state);
         } catch (Throwable e) {
             Log.i(LOGTAG, "Failed to save persistent state", e);
-        } finally {
-            p.recycle();
         }
     }
-}
\ No newline at end of file
+}
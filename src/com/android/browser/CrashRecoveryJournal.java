@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Crash recovery state split into one file per tab.
+ *
+ * Every nested Bundle of the saved state (one per tab) is stored in a file
+ * named after the hash of its contents, so a backup only writes the tabs
+ * that changed since the previous one. A small index file holds the
+ * remaining top level values and the key to hash mapping; it is replaced
+ * last, so a crash mid-backup leaves the previous index and its files
+ * intact.
+ *
+ * The index also keeps a summary of each nested bundle (its strings,
+ * numbers and booleans), so the state can be read back lazily: each
+ * nested bundle is then only its summary plus {@link #STATE_HASH}, and
+ * {@link #inflate} reads the rest when it is needed. Writing such a stub
+ * back refers to the existing file without reading it.
+ */
+public class CrashRecoveryJournal {
+
+    private static final String LOGTAG = "CrashRecoveryJournal";
+
+    /** Key of the state file hash in bundles returned by {@link #readLazily}. */
+    public static final String STATE_HASH = "journal_state_hash";
+
+    private static final String INDEX_FILE = "index";
+    private static final String STATE_SUFFIX = ".state";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    // Hashes of the state files on disk, null until the directory is listed
+    private HashSet<String> mStateFiles;
+    private long mBytesWritten;
+
+    public CrashRecoveryJournal(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Writes the state, only rewriting nested bundles that changed.
+     */
+    public synchronized void write(Bundle state) throws IOException {
+        listStateFiles();
+        Bundle index = new Bundle(state);
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<String> hashes = new ArrayList<String>();
+        ArrayList<Bundle> summaries = new ArrayList<Bundle>();
+        for (String key : state.keySet()) {
+            Object value = state.get(key);
+            if (!(value instanceof Bundle)) {
+                continue;
+            }
+            Bundle bundle = (Bundle) value;
+            String hash = bundle.getString(STATE_HASH);
+            // A stub that was never inflated keeps its unchanged file
+            if (hash != null && !mStateFiles.contains(hash)) {
+                if (new File(mDirectory, hash + STATE_SUFFIX).exists()) {
+                    mStateFiles.add(hash);
+                } else {
+                    // Store what is left of it rather than a null entry
+                    Log.w(LOGTAG, "Missing state " + hash);
+                    bundle = new Bundle(bundle);
+                    bundle.remove(STATE_HASH);
+                    hash = null;
+                }
+            }
+            if (hash == null) {
+                byte[] data = marshall(bundle);
+                hash = hash(data);
+                if (!mStateFiles.contains(hash)) {
+                    writeFile(new File(mDirectory, hash + STATE_SUFFIX), data);
+                    mStateFiles.add(hash);
+                }
+            }
+            index.remove(key);
+            keys.add(key);
+            hashes.add(hash);
+            summaries.add(summarize(bundle));
+        }
+        Parcel p = Parcel.obtain();
+        try {
+            p.writeBundle(index);
+            p.writeStringList(keys);
+            p.writeStringList(hashes);
+            for (Bundle summary : summaries) {
+                p.writeBundle(summary);
+            }
+            writeFile(new File(mDirectory, INDEX_FILE), p.marshall());
+        } finally {
+            p.recycle();
+        }
+        // Only now that the index no longer refers to them
+        HashSet<String> referenced = new HashSet<String>(hashes);
+        Iterator<String> it = mStateFiles.iterator();
+        while (it.hasNext()) {
+            String hash = it.next();
+            if (!referenced.contains(hash)) {
+                new File(mDirectory, hash + STATE_SUFFIX).delete();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads back the last written state, or returns null if there is none.
+     */
+    public synchronized Bundle read() throws IOException {
+        return read(false);
+    }
+
+    /**
+     * Like {@link #read()}, but nested bundles are returned as summaries
+     * to be passed to {@link #inflate} when their full state is needed.
+     */
+    public synchronized Bundle readLazily() throws IOException {
+        return read(true);
+    }
+
+    /**
+     * Returns the full state of a nested bundle returned by
+     * {@link #readLazily}. If its file is gone only the summary is left.
+     */
+    public Bundle inflate(Bundle stub) {
+        String hash = stub.getString(STATE_HASH);
+        if (hash == null) {
+            return stub;
+        }
+        Bundle state = null;
+        try {
+            synchronized (this) {
+                state = readState(hash);
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read state " + hash, e);
+        }
+        if (state == null) {
+            state = new Bundle();
+        }
+        // The stub may have been modified since it was read
+        state.putAll(stub);
+        state.remove(STATE_HASH);
+        return state;
+    }
+
+    private Bundle read(boolean lazily) throws IOException {
+        File indexFile = new File(mDirectory, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        Parcel p = Parcel.obtain();
+        try {
+            byte[] data = readFile(indexFile);
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            Bundle state = p.readBundle();
+            ArrayList<String> keys = new ArrayList<String>();
+            ArrayList<String> hashes = new ArrayList<String>();
+            p.readStringList(keys);
+            p.readStringList(hashes);
+            for (int i = 0; i < keys.size(); i++) {
+                Bundle value = p.readBundle();
+                String hash = hashes.get(i);
+                if (hash != null) {
+                    if (lazily) {
+                        value.putString(STATE_HASH, hash);
+                    } else {
+                        Bundle full = readState(hash);
+                        // A missing file leaves only the summary of that
+                        // tab, not a failed restore
+                        if (full != null) {
+                            full.putAll(value);
+                            value = full;
+                        }
+                    }
+                }
+                state.putBundle(keys.get(i), value);
+            }
+            return state;
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private Bundle readState(String hash) throws IOException {
+        File file = new File(mDirectory, hash + STATE_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        Parcel p = Parcel.obtain();
+        try {
+            byte[] data = readFile(file);
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mStateFiles = new HashSet<String>();
+    }
+
+    /**
+     * Returns the number of bytes written since this journal was created.
+     */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void listStateFiles() {
+        if (mStateFiles != null) {
+            return;
+        }
+        mStateFiles = new HashSet<String>();
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(STATE_SUFFIX)) {
+                mStateFiles.add(name.substring(0, name.length() - STATE_SUFFIX.length()));
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void writeFile(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Failed to rename, try deleting the existing file and try again
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Failed to rename " + temp);
+            }
+        }
+        mBytesWritten += data.length;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            // Parcel only unmarshalls from an array, read straight into one
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    static Bundle summarize(Bundle state) {
+        Bundle summary = new Bundle(state);
+        for (String key : state.keySet()) {
+            Object value = state.get(key);
+            if (!(value instanceof String || value instanceof Number
+                    || value instanceof Boolean)) {
+                summary.remove(key);
+            }
+        }
+        summary.remove(STATE_HASH);
+        return summary;
+    }
+
+    private static byte[] marshall(Bundle bundle) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.writeBundle(bundle);
+            return p.marshall();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
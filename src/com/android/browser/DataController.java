@@ -17,25 +17,34 @@
 
 package com.android.browser;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
+import android.content.ContentProviderOperation;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
-import android.net.Uri;
+import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.History;
+import android.provider.BrowserContract.Images;
 import android.util.Log;
 
-import com.android.browser.provider.BrowserProvider2.Thumbnails;
+import com.android.browser.provider.BrowserProvider2.HistoryVisits;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
@@ -46,16 +55,19 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    private static final int QUERY_FAVICON = 204;
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
-    private ByteBuffer mBuffer; // to capture thumbnails
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
     }
+    /* package */ static interface OnLoadFavicon {
+        void onLoadFavicon(String url, Bitmap favicon);
+    }
     private static class CallbackContainer {
         Object replyTo;
         Object[] args;
@@ -94,12 +106,18 @@ public class DataController {
                         cb.onQueryUrlIsBookmark(url, isBookmark);
                         break;
                     }
+                    case QUERY_FAVICON: {
+                        OnLoadFavicon cb = (OnLoadFavicon) cc.replyTo;
+                        cb.onLoadFavicon((String) cc.args[0], (Bitmap) cc.args[1]);
+                        break;
+                    }
                 }
             }
         };
     }
 
     public void updateVisitedHistory(String url) {
+        NavigationPredictor.getInstance(mContext).onVisited(url);
         mDataHandler.sendMessage(HISTORY_UPDATE_VISITED, url);
     }
 
@@ -116,6 +134,14 @@ public class DataController {
         mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url.trim(), replyTo);
     }
 
+    /**
+     * Looks up the stored favicon of a url; replyTo is only called if
+     * there is one.
+     */
+    public void loadFavicon(String url, OnLoadFavicon replyTo) {
+        mDataHandler.sendMessage(QUERY_FAVICON, url, replyTo);
+    }
+
     public void loadThumbnail(Tab tab) {
         mDataHandler.sendMessage(TAB_LOAD_THUMBNAIL, tab);
     }
@@ -128,11 +154,98 @@ public class DataController {
         mDataHandler.sendMessage(TAB_SAVE_THUMBNAIL, tab);
     }
 
+    /**
+     * Number of messages waiting for the data thread.
+     */
+    public int getQueueDepth() {
+        return mDataHandler.mMessageQueue.size();
+    }
+
+    /**
+     * Number of messages received by the data thread so far.
+     */
+    public long getReceivedCount() {
+        return mDataHandler.mReceived.get();
+    }
+
+    /**
+     * Number of messages that were merged into another message instead of
+     * being executed on their own.
+     */
+    public long getMergedCount() {
+        return mDataHandler.mMerged.get();
+    }
+
+    /**
+     * Number of provider batches written.
+     */
+    public long getFlushCount() {
+        return mDataHandler.mFlushes.get();
+    }
+
+    /**
+     * Writes collected during one window. Duplicate and superseded writes
+     * are merged here before they reach the provider.
+     */
+    private static class WriteBatch {
+        // url -> number of visits
+        final LinkedHashMap<String, Integer> visits = new LinkedHashMap<String, Integer>();
+        // url -> latest title
+        final LinkedHashMap<String, String> titles = new LinkedHashMap<String, String>();
+        // tab id -> tab whose current capture should be saved
+        final LinkedHashMap<Long, Tab> thumbnailSaves = new LinkedHashMap<Long, Tab>();
+        final LinkedHashSet<Long> thumbnailDeletes = new LinkedHashSet<Long>();
+
+        boolean isEmpty() {
+            return visits.isEmpty() && titles.isEmpty()
+                    && thumbnailSaves.isEmpty() && thumbnailDeletes.isEmpty();
+        }
+
+        /**
+         * @return true if the message was merged into an earlier one
+         */
+        boolean add(DCMessage msg) {
+            switch (msg.what) {
+            case HISTORY_UPDATE_VISITED: {
+                String url = (String) msg.obj;
+                Integer count = visits.get(url);
+                visits.put(url, count == null ? 1 : count + 1);
+                return count != null;
+            }
+            case HISTORY_UPDATE_TITLE: {
+                String[] args = (String[]) msg.obj;
+                return titles.put(args[0], args[1]) != null;
+            }
+            case TAB_SAVE_THUMBNAIL: {
+                Tab tab = (Tab) msg.obj;
+                boolean merged = thumbnailDeletes.remove(tab.getId());
+                // The capture is read when the batch is written, so only
+                // the newest save matters
+                return thumbnailSaves.put(tab.getId(), tab) != null || merged;
+            }
+            case TAB_DELETE_THUMBNAIL: {
+                Long id = (Long) msg.obj;
+                boolean merged = thumbnailSaves.remove(id) != null;
+                return !thumbnailDeletes.add(id) || merged;
+            }
+            }
+            throw new IllegalArgumentException("Not a write: " + msg.what);
+        }
+    }
+
     // The standard Handler and Message classes don't allow the queue manipulation
     // we want (such as peeking). So we use our own queue.
     class DataControllerHandler extends Thread {
+        // How long writes are collected before they are flushed as one batch
+        private static final long WRITE_WINDOW_MILLIS = 250;
+        // Keep batches well below SQLiteContentProvider's yield point limit
+        private static final int OPERATIONS_PER_YIELD = 100;
+
         private BlockingQueue<DCMessage> mMessageQueue
                 = new LinkedBlockingQueue<DCMessage>();
+        final AtomicLong mReceived = new AtomicLong();
+        final AtomicLong mMerged = new AtomicLong();
+        final AtomicLong mFlushes = new AtomicLong();
 
         public DataControllerHandler() {
             super("DataControllerHandler");
@@ -141,9 +254,29 @@ public class DataController {
         @Override
         public void run() {
             setPriority(Thread.MIN_PRIORITY);
+            WriteBatch batch = new WriteBatch();
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    DCMessage msg = mMessageQueue.take();
+                    long deadline = SystemClock.uptimeMillis() + WRITE_WINDOW_MILLIS;
+                    // Collect writes until the window closes or a read
+                    // arrives; reads see every write queued before them
+                    while (msg != null && isWrite(msg.what)) {
+                        if (batch.add(msg)) {
+                            mMerged.incrementAndGet();
+                        }
+                        long wait = deadline - SystemClock.uptimeMillis();
+                        msg = wait > 0
+                                ? mMessageQueue.poll(wait, TimeUnit.MILLISECONDS)
+                                : null;
+                    }
+                    if (!batch.isEmpty()) {
+                        flush(batch);
+                        batch = new WriteBatch();
+                    }
+                    if (msg != null) {
+                        handleMessage(msg);
+                    }
                 } catch (InterruptedException ex) {
                     break;
                 }
@@ -152,123 +285,184 @@ public class DataController {
 
         void sendMessage(int what, Object obj) {
             DCMessage m = new DCMessage(what, obj);
+            mReceived.incrementAndGet();
             mMessageQueue.add(m);
         }
 
         void sendMessage(int what, Object obj, Object replyTo) {
             DCMessage m = new DCMessage(what, obj);
             m.replyTo = replyTo;
+            mReceived.incrementAndGet();
             mMessageQueue.add(m);
         }
 
-        private void handleMessage(DCMessage msg) {
-            switch (msg.what) {
+        private boolean isWrite(int what) {
+            switch (what) {
             case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
-                break;
             case HISTORY_UPDATE_TITLE:
-                String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
-                break;
+            case TAB_SAVE_THUMBNAIL:
+            case TAB_DELETE_THUMBNAIL:
+                return true;
+            }
+            return false;
+        }
+
+        private void handleMessage(DCMessage msg) {
+            switch (msg.what) {
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
-                doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
+                doQueryBookmarkStatus((String) msg.obj, collectReplies(msg));
+                break;
+            case QUERY_FAVICON:
+                doLoadFavicon((String) msg.obj, msg.replyTo);
                 break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
                 break;
-            case TAB_DELETE_THUMBNAIL:
-                ContentResolver cr = mContext.getContentResolver();
-                try {
-                    cr.delete(ContentUris.withAppendedId(
-                            Thumbnails.CONTENT_URI, (Long)msg.obj),
-                            null, null);
-                } catch (Throwable t) {}
-                break;
-            case TAB_SAVE_THUMBNAIL:
-                doSaveThumbnail((Tab)msg.obj);
-                break;
             }
         }
 
-        private byte[] getCaptureBlob(Tab tab) {
-            synchronized (tab) {
-                Bitmap capture = tab.getScreenshot();
-                if (capture == null) {
-                    return null;
-                }
-                if (mBuffer == null || mBuffer.limit() < capture.getByteCount()) {
-                    mBuffer = ByteBuffer.allocate(capture.getByteCount());
+        /**
+         * Removes queued bookmark status queries for the same url and
+         * returns everyone waiting for the answer.
+         */
+        private List<Object> collectReplies(DCMessage msg) {
+            List<Object> replies = new ArrayList<Object>(1);
+            replies.add(msg.replyTo);
+            Iterator<DCMessage> it = mMessageQueue.iterator();
+            while (it.hasNext()) {
+                DCMessage queued = it.next();
+                if (queued.what == msg.what && msg.obj.equals(queued.obj)) {
+                    it.remove();
+                    replies.add(queued.replyTo);
+                    mMerged.incrementAndGet();
                 }
-                capture.copyPixelsToBuffer(mBuffer);
-                mBuffer.rewind();
-                return mBuffer.array();
             }
+            return replies;
         }
 
-        private void doSaveThumbnail(Tab tab) {
-            byte[] blob = getCaptureBlob(tab);
-            if (blob == null) {
+        private void flush(WriteBatch batch) {
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>();
+            addVisitOperations(batch.visits, ops);
+            UrlCompletionIndex index = UrlCompletionIndex.getInstance(mContext);
+            for (Map.Entry<String, String> title : batch.titles.entrySet()) {
+                addOperation(ops, ContentProviderOperation.newUpdate(History.CONTENT_URI)
+                        .withSelection(History.URL + "=?", new String[] { title.getKey() })
+                        .withValue(History.TITLE, title.getValue()));
+                index.updateTitle(title.getKey(), title.getValue());
+            }
+            // Thumbnails live in their own store, outside of the database
+            ThumbnailStore store = ThumbnailStore.getInstance(mContext);
+            for (Tab tab : batch.thumbnailSaves.values()) {
+                Bitmap capture = copyCapture(tab);
+                if (capture != null) {
+                    store.save(tab.getId(), capture);
+                    capture.recycle();
+                }
+            }
+            for (Long id : batch.thumbnailDeletes) {
+                store.delete(id);
+            }
+            mFlushes.incrementAndGet();
+            if (ops.isEmpty()) {
+                return;
+            }
+            if (applyBatch(ops)) {
                 return;
             }
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(Thumbnails._ID, tab.getId());
-            values.put(Thumbnails.THUMBNAIL, blob);
-            cr.insert(Thumbnails.CONTENT_URI, values);
+            // The batch is one transaction, so nothing was written; retry the
+            // operations one by one so a single bad one only loses itself
+            ArrayList<ContentProviderOperation> single =
+                    new ArrayList<ContentProviderOperation>(1);
+            for (ContentProviderOperation op : ops) {
+                single.clear();
+                single.add(op);
+                applyBatch(single);
+            }
         }
 
-        private void doLoadThumbnail(Tab tab) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
+        private boolean applyBatch(ArrayList<ContentProviderOperation> ops) {
             try {
-                Uri uri = ContentUris.withAppendedId(Thumbnails.CONTENT_URI, tab.getId());
-                c = cr.query(uri, new String[] {Thumbnails._ID,
-                        Thumbnails.THUMBNAIL}, null, null, null);
-                if (c.moveToFirst()) {
-                    byte[] data = c.getBlob(1);
-                    if (data != null && data.length > 0) {
-                        tab.updateCaptureFromBlob(data);
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
+                mContext.getContentResolver().applyBatch(BrowserContract.AUTHORITY, ops);
+                return true;
+            } catch (RemoteException e) {
+                Log.e(LOGTAG, "Failed to write batch", e);
+            } catch (OperationApplicationException e) {
+                Log.e(LOGTAG, "Failed to write batch", e);
+            } catch (RuntimeException e) {
+                Log.e(LOGTAG, "Failed to write batch", e);
+            }
+            return false;
+        }
+
+        private Bitmap copyCapture(Tab tab) {
+            synchronized (tab) {
+                Bitmap capture = tab.getScreenshot();
+                // Copied so the capture can be compressed without holding
+                // the tab lock
+                return capture != null ? capture.copy(capture.getConfig(), false) : null;
+            }
+        }
+
+        private void doLoadThumbnail(Tab tab) {
+            Bitmap thumbnail = ThumbnailStore.getInstance(mContext).load(tab.getId());
+            if (thumbnail != null) {
+                tab.updateCaptureFromBitmap(thumbnail);
+                thumbnail.recycle();
+            }
+        }
+
+        private void addVisitOperations(Map<String, Integer> visits,
+                ArrayList<ContentProviderOperation> ops) {
+            UrlCompletionIndex index = UrlCompletionIndex.getInstance(mContext);
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Integer> visit : visits.entrySet()) {
+                int count = visit.getValue();
+                for (int i = 0; i < count; i++) {
+                    index.recordVisit(visit.getKey());
                 }
+                addOperation(ops, ContentProviderOperation.newInsert(HistoryVisits.CONTENT_URI)
+                        .withValue(History.URL, visit.getKey())
+                        .withValue(History.VISITS, count)
+                        .withValue(History.DATE_LAST_VISITED, now));
             }
         }
 
-        private void doUpdateVisitedHistory(String url) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
+        private void addOperation(ArrayList<ContentProviderOperation> ops,
+                ContentProviderOperation.Builder builder) {
+            if (ops.size() > 0 && ops.size() % OPERATIONS_PER_YIELD == 0) {
+                builder.withYieldAllowed(true);
+            }
+            ops.add(builder.build());
+        }
+
+        private void doLoadFavicon(String url, Object replyTo) {
+            Cursor cursor = null;
+            Bitmap favicon = null;
             try {
-                c = cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
-                    ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    android.provider.Browser.truncateHistory(cr);
-                    ContentValues values = new ContentValues();
-                    values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
-                    values.put(History.DATE_CREATED, 0);
-                    values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
+                cursor = mContext.getContentResolver().query(Images.CONTENT_URI,
+                        new String[] { Images.FAVICON }, Images.URL + "=?",
+                        new String[] { url }, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    byte[] data = cursor.getBlob(0);
+                    if (data != null) {
+                        favicon = BitmapFactory.decodeByteArray(data, 0, data.length);
+                    }
                 }
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Error loading favicon: " + e);
             } finally {
-                if (c != null) c.close();
+                if (cursor != null) cursor.close();
+            }
+            if (favicon != null) {
+                CallbackContainer cc = new CallbackContainer();
+                cc.replyTo = replyTo;
+                cc.args = new Object[] { url, favicon };
+                mCbHandler.obtainMessage(QUERY_FAVICON, cc).sendToTarget();
             }
         }
 
-        private void doQueryBookmarkStatus(String url, Object replyTo) {
+        private void doQueryBookmarkStatus(String url, List<Object> replyTo) {
             // Check to see if the site is bookmarked
             Cursor cursor = null;
             boolean isBookmark = false;
@@ -285,18 +479,12 @@ public class DataController {
             } finally {
                 if (cursor != null) cursor.close();
             }
-            CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
-            cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
-        }
-
-        private void doUpdateHistoryTitle(String url, String title) {
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(History.TITLE, title);
-            cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                    new String[] { url });
+            for (Object reply : replyTo) {
+                CallbackContainer cc = new CallbackContainer();
+                cc.replyTo = reply;
+                cc.args = new Object[] { url, isBookmark };
+                mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
+            }
         }
     }
 }
@@ -19,19 +19,37 @@ package com.android.browser;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DataSetObserver;
+import android.os.Handler;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.DateSorter;
 import android.widget.BaseExpandableListAdapter;
-import android.widget.ExpandableListView;
 import android.widget.TextView;
 
+import com.android.browser.provider.BrowserProvider2.HistoryBuckets;
+
+import java.util.ArrayList;
+
 /**
  * ExpandableListAdapter which separates data into categories based on date.
- * Used for History and Downloads.
+ * Used for History.
+ *
+ * The adapter's cursor only holds the number of items in each date bin
+ * (see {@link HistoryBuckets}). The items themselves are read with
+ * {@link #queryPage} a page at a time in the background as they are
+ * shown, starting after the last item of the previous page when it was
+ * read and at the page's offset otherwise. Items of pages not read yet
+ * have no cursor, and the page after the one being shown is read ahead.
  */
-public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+public abstract class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+
+    static final int PAGE_SIZE = 64;
+    // Items from the end of a page at which the next one is read
+    private static final int PREFETCH_MARGIN = PAGE_SIZE / 2;
+
     // Array for each of our bins.  Each entry represents how many items are
     // in that bin.
     private int mItemMap[];
@@ -41,8 +59,16 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     private Cursor mCursor;
     private DateSorter mDateSorter;
     private int mDateIndex;
-    private int mIdIndex;
+    private int mKeyIndex;
     private Context mContext;
+    private Handler mHandler = new Handler();
+
+    // The pages read so far for each bin, by index
+    private ArrayList<SparseArray<Cursor>> mPages;
+    private ArrayList<SparseBooleanArray> mLoading;
+    // Incremented whenever the pages are dropped, so that pages read in
+    // the background for older data are discarded
+    private int mGeneration;
 
     boolean mDataValid;
 
@@ -59,129 +85,75 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
             notifyDataSetInvalidated();
         }
     };
-    
-    public DateSortedExpandableListAdapter(Context context, int dateIndex) {
+
+    /**
+     * @param dateIndex Index of the date column of the pages
+     * @param keyIndex Index of a column of the pages that orders items of
+     *        the same date, passed back to {@link #queryPage}
+     */
+    public DateSortedExpandableListAdapter(Context context, int dateIndex, int keyIndex) {
         mContext = context;
-        mDateSorter = new DateSorter(context);
         mDateIndex = dateIndex;
+        mKeyIndex = keyIndex;
         mDataValid = false;
-        mIdIndex = -1;
     }
 
     /**
-     * Set up the bins for determining which items belong to which groups.
+     * Returns the bin boundaries to query the bin counts with, as
+     * {@link HistoryBuckets#PARAM_BOUNDARIES}.
      */
-    private void buildMap() {
-        // The cursor is sorted by date
-        // The ItemMap will store the number of items in each bin.
-        int array[] = new int[DateSorter.DAY_COUNT];
-        // Zero out the array.
-        for (int j = 0; j < DateSorter.DAY_COUNT; j++) {
-            array[j] = 0;
-        }
-        mNumberOfBins = 0;
-        int dateIndex = -1;
-        if (mCursor.moveToFirst() && mCursor.getCount() > 0) {
-            while (!mCursor.isAfterLast()) {
-                long date = getLong(mDateIndex);
-                int index = mDateSorter.getIndex(date);
-                if (index > dateIndex) {
-                    mNumberOfBins++;
-                    if (index == DateSorter.DAY_COUNT - 1) {
-                        // We are already in the last bin, so it will
-                        // include all the remaining items
-                        array[index] = mCursor.getCount()
-                                - mCursor.getPosition();
-                        break;
-                    }
-                    dateIndex = index;
-                }
-                array[dateIndex]++;
-                mCursor.moveToNext();
+    static String getBoundaries(DateSorter sorter) {
+        StringBuilder boundaries = new StringBuilder();
+        for (int i = 0; i < DateSorter.DAY_COUNT - 1; i++) {
+            if (i > 0) {
+                boundaries.append(',');
             }
+            boundaries.append(sorter.getBoundary(i));
         }
-        mItemMap = array;
-    }
-
-    /**
-     * Get the byte array at cursorIndex from the Cursor.  Assumes the Cursor
-     * has already been moved to the correct position.  Along with
-     * {@link #getInt} and {@link #getString}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding byte array from the Cursor.
-     */
-    /* package */ byte[] getBlob(int cursorIndex) {
-        if (!mDataValid) return null; 
-        return mCursor.getBlob(cursorIndex);
-    }
-
-    /* package */ Context getContext() {
-        return mContext;
+        return boundaries.toString();
     }
 
     /**
-     * Get the integer at cursorIndex from the Cursor.  Assumes the Cursor has
-     * already been moved to the correct position.  Along with
-     * {@link #getBlob} and {@link #getString}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding integer from the Cursor.
+     * Reads up to limit items dated after newerThan and not after
+     * notNewerThan, newest first. If afterKey isn't null, only the items
+     * following the one with the given date and key are read, otherwise
+     * the first offset items are skipped. Called on a background thread.
      */
-    /* package */ int getInt(int cursorIndex) {
-        if (!mDataValid) return 0; 
-        return mCursor.getInt(cursorIndex);
-    }
+    abstract Cursor queryPage(long newerThan, long notNewerThan,
+            long afterDate, Long afterKey, int offset, int limit);
 
     /**
-     * Get the long at cursorIndex from the Cursor.  Assumes the Cursor has
-     * already been moved to the correct position.
+     * Returns the sorter of the current cursor, or null if there is none.
      */
-    /* package */ long getLong(int cursorIndex) {
-        if (!mDataValid) return 0; 
-        return mCursor.getLong(cursorIndex);
+    DateSorter getDateSorter() {
+        return mDateSorter;
     }
 
     /**
-     * Get the String at cursorIndex from the Cursor.  Assumes the Cursor has
-     * already been moved to the correct position.  Along with
-     * {@link #getInt} and {@link #getInt}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding String from the Cursor.
+     * Set up the bins for determining which items belong to which groups.
      */
-    /* package */ String getString(int cursorIndex) {
-        if (!mDataValid) return null; 
-        return mCursor.getString(cursorIndex);
-    }
-
-    /**
-     * Determine which group an item belongs to.
-     * @param childId ID of the child view in question.
-     * @return int Group position of the containing group.
-    /* package */ int groupFromChildId(long childId) {
-        if (!mDataValid) return -1; 
-        int group = -1;
-        for (mCursor.moveToFirst(); !mCursor.isAfterLast();
-                mCursor.moveToNext()) {
-            if (getLong(mIdIndex) == childId) {
-                int bin = mDateSorter.getIndex(getLong(mDateIndex));
-                // bin is the same as the group if the number of bins is the
-                // same as DateSorter
-                if (DateSorter.DAY_COUNT == mNumberOfBins) {
-                    return bin;
-                }
-                // There are some empty bins.  Find the corresponding group.
-                group = 0;
-                for (int i = 0; i < bin; i++) {
-                    if (mItemMap[i] != 0) {
-                        group++;
+    private void buildMap() {
+        // The cursor holds one row per non-empty bin
+        int array[] = new int[DateSorter.DAY_COUNT];
+        mNumberOfBins = 0;
+        int binIndex = mCursor.getColumnIndexOrThrow(HistoryBuckets.BUCKET);
+        int countIndex = mCursor.getColumnIndexOrThrow(HistoryBuckets.COUNT);
+        if (mCursor.moveToFirst()) {
+            do {
+                int bin = mCursor.getInt(binIndex);
+                if (bin >= 0 && bin < DateSorter.DAY_COUNT && array[bin] == 0) {
+                    array[bin] = mCursor.getInt(countIndex);
+                    if (array[bin] > 0) {
+                        mNumberOfBins++;
                     }
                 }
-                break;
-            }
+            } while (mCursor.moveToNext());
         }
-        return group;
+        mItemMap = array;
+    }
+
+    /* package */ Context getContext() {
+        return mContext;
     }
 
     /**
@@ -216,43 +188,117 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     }
 
     /**
-     * Move the cursor to the position indicated.
-     * @param packedPosition Position in packed position representation.
-     * @return True on success, false otherwise.
+     * Returns the cursor of the page holding the given item, moved to it.
+     * If the page wasn't read yet, it is read in the background and the
+     * observers are notified once it is.
+     * @param groupPosition Index of the group containing the desired item.
+     * @param childPosition Index of the item within the specified group.
+     * @return The cursor, or null if the data is not valid, the page is
+     *      being read or the item no longer exists.
      */
-    boolean moveCursorToPackedChildPosition(long packedPosition) {
-        if (ExpandableListView.getPackedPositionType(packedPosition) !=
-                ExpandableListView.PACKED_POSITION_TYPE_CHILD) {
-            return false;
+    /* package */ Cursor getChildCursor(int groupPosition, int childPosition) {
+        if (!mDataValid || mCursor.isClosed()) {
+            return null;
+        }
+        int bin = groupPositionToBin(groupPosition);
+        int page = childPosition / PAGE_SIZE;
+        Cursor cursor = mPages.get(bin).get(page);
+        if (cursor == null) {
+            loadPage(bin, page);
+            return null;
+        }
+        if (childPosition % PAGE_SIZE >= PAGE_SIZE - PREFETCH_MARGIN) {
+            loadPage(bin, page + 1);
         }
-        int groupPosition = ExpandableListView.getPackedPositionGroup(
-                packedPosition);
-        int childPosition = ExpandableListView.getPackedPositionChild(
-                packedPosition);
-        return moveCursorToChildPosition(groupPosition, childPosition);
+        return cursor.moveToPosition(childPosition % PAGE_SIZE) ? cursor : null;
     }
 
     /**
-     * Move the cursor the the position indicated.
-     * @param groupPosition Index of the group containing the desired item.
-     * @param childPosition Index of the item within the specified group.
-     * @return boolean False if the cursor is closed, so the Cursor was not
-     *      moved.  True on success.
+     * Reads the given page of a bin in the background, unless it was read
+     * or is being read already.
      */
-    /* package */ boolean moveCursorToChildPosition(int groupPosition,
-            int childPosition) {
-        if (!mDataValid || mCursor.isClosed()) {
-            return false;
+    private void loadPage(final int bin, final int page) {
+        final SparseArray<Cursor> pages = mPages.get(bin);
+        final SparseBooleanArray loading = mLoading.get(bin);
+        if (page * PAGE_SIZE >= mItemMap[bin] || pages.get(page) != null
+                || loading.get(page)) {
+            return;
+        }
+        // Seek from the previous page if it was read, it is cheaper than
+        // skipping the items before the page
+        long date = 0;
+        Long key = null;
+        int skip = page * PAGE_SIZE;
+        Cursor previous = pages.get(page - 1);
+        if (previous != null && previous.getCount() == PAGE_SIZE && previous.moveToLast()) {
+            date = previous.getLong(mDateIndex);
+            key = previous.getLong(mKeyIndex);
+            skip = 0;
+        }
+        final long afterDate = date;
+        final Long afterKey = key;
+        final int offset = skip;
+        final long newerThan = getNewerThan(bin);
+        final long notNewerThan = getNotNewerThan(bin);
+        final int generation = mGeneration;
+        loading.put(page, true);
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor cursor = queryPage(newerThan, notNewerThan, afterDate, afterKey,
+                        offset, PAGE_SIZE);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            if (cursor != null) cursor.close();
+                            return;
+                        }
+                        loading.delete(page);
+                        if (cursor != null) {
+                            pages.put(page, cursor);
+                            // Fill in the items shown without it
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private long getNewerThan(int bin) {
+        return mDateSorter.getBoundary(bin);
+    }
+
+    private long getNotNewerThan(int bin) {
+        return bin == 0 ? Long.MAX_VALUE : mDateSorter.getBoundary(bin - 1);
+    }
+
+    private void closePages() {
+        mGeneration++;
+        if (mPages != null) {
+            for (SparseArray<Cursor> pages : mPages) {
+                for (int i = 0; i < pages.size(); i++) {
+                    pages.valueAt(i).close();
+                }
+            }
         }
-        groupPosition = groupPositionToBin(groupPosition);
-        int index = childPosition;
-        for (int i = 0; i < groupPosition; i++) {
-            index += mItemMap[i];
+        mPages = new ArrayList<SparseArray<Cursor>>(DateSorter.DAY_COUNT);
+        mLoading = new ArrayList<SparseBooleanArray>(DateSorter.DAY_COUNT);
+        for (int i = 0; i < DateSorter.DAY_COUNT; i++) {
+            mPages.add(new SparseArray<Cursor>());
+            mLoading.add(new SparseBooleanArray());
         }
-        return mCursor.moveToPosition(index);
     }
 
-    public void changeCursor(Cursor cursor) {
+    /**
+     * Changes the cursor of bin counts, dropping the pages read so far.
+     * @param sorter The sorter whose boundaries the counts were queried
+     *        with, see {@link #getBoundaries}. The pages and labels of the
+     *        bins are computed from it as well, so that they keep matching
+     *        the counts after midnight.
+     */
+    public void changeCursor(Cursor cursor, DateSorter sorter) {
         if (cursor == mCursor) {
             return;
         }
@@ -260,16 +306,20 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
             mCursor.unregisterDataSetObserver(mDataSetObserver);
             mCursor.close();
         }
+        closePages();
         mCursor = cursor;
+        mDateSorter = sorter;
         if (cursor != null) {
             cursor.registerDataSetObserver(mDataSetObserver);
-            mIdIndex = cursor.getColumnIndexOrThrow("_id");
             mDataValid = true;
             buildMap();
+            // Read the first page of every bin ahead of the first expansion
+            for (int bin = 0; bin < DateSorter.DAY_COUNT; bin++) {
+                loadPage(bin, 0);
+            }
             // notify the observers about the new cursor
             notifyDataSetChanged();
         } else {
-            mIdIndex = -1;
             mDataValid = false;
             // notify the observers about the lack of a data set
             notifyDataSetInvalidated();
@@ -337,15 +387,6 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
         return groupPosition;
     }
 
-    @Override
-    public long getChildId(int groupPosition, int childPosition) {
-        if (!mDataValid) return 0; 
-        if (moveCursorToChildPosition(groupPosition, childPosition)) {
-            return getLong(mIdIndex);
-        }
-        return 0;
-    }
-
     @Override
     public boolean hasStableIds() {
         return true;
@@ -373,6 +414,6 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public boolean isEmpty() {
-        return !mDataValid || mCursor == null || mCursor.isClosed() || mCursor.getCount() == 0;
+        return !mDataValid || mCursor == null || mCursor.isClosed() || mNumberOfBins == 0;
     }
 }
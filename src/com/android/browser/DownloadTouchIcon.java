@@ -17,11 +17,10 @@
 package com.android.browser;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.conn.params.ConnRouteParams;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -29,8 +28,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Proxy;
-import android.net.http.AndroidHttpClient;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Message;
@@ -110,24 +107,22 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
         String url = values[0];
 
         if (inDatabase || mMessage != null) {
-            AndroidHttpClient client = null;
             HttpGet request = null;
 
             try {
-                client = AndroidHttpClient.newInstance(mUserAgent);
-                HttpHost httpHost = Proxy.getPreferredHttpHost(mContext, url);
-                if (httpHost != null) {
-                    ConnRouteParams.setDefaultProxy(client.getParams(), httpHost);
-                }
-
+                // Shared, so icons of the same site reuse the connection
+                HttpClient client = HttpClientPool.getInstance(mContext).getClient();
                 request = new HttpGet(url);
+                if (mUserAgent != null) {
+                    request.setHeader("User-Agent", mUserAgent);
+                }
 
                 // Follow redirects
-                HttpClientParams.setRedirecting(client.getParams(), true);
+                HttpClientParams.setRedirecting(request.getParams(), true);
 
                 HttpResponse response = client.execute(request);
+                HttpEntity entity = response.getEntity();
                 if (response.getStatusLine().getStatusCode() == 200) {
-                    HttpEntity entity = response.getEntity();
                     if (entity != null) {
                         InputStream content = entity.getContent();
                         if (content != null) {
@@ -142,14 +137,14 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
                         }
                     }
                 }
+                if (entity != null) {
+                    // Hands the connection back to the pool
+                    entity.consumeContent();
+                }
             } catch (Exception ex) {
                 if (request != null) {
                     request.abort();
                 }
-            } finally {
-                if (client != null) {
-                    client.close();
-                }
             }
         }
 
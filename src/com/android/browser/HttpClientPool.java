@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One HTTP client shared by the requests the browser makes outside of
+ * WebView (search suggestions and touch icons), so that they reuse open
+ * connections rather than paying a TCP and TLS handshake each.
+ *
+ * Connections are kept alive for at most {@link #KEEP_ALIVE_MS} and
+ * bounded in total and per host. TLS sessions are cached across
+ * connections. Proxies come from the system ProxySelector, which the
+ * framework keeps up to date, instead of being looked up per request.
+ *
+ * Like the AndroidHttpClient instances it replaces, it keeps no cookies.
+ *
+ * Callers must consume or close response entities, or abort the request,
+ * to hand their connection back.
+ */
+public class HttpClientPool {
+
+    private static final String USER_AGENT = "Android/1.0";
+
+    static final int MAX_CONNECTIONS = 8;
+    // As recommended by RFC 2616
+    static final int MAX_CONNECTIONS_PER_HOST = 2;
+    static final long KEEP_ALIVE_MS = 30 * 1000;
+    private static final int SOCKET_TIMEOUT_MS = 20 * 1000;
+
+    private static HttpClientPool sInstance;
+
+    private final DefaultHttpClient mClient;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mConnectCount = new AtomicInteger();
+    private long mLastIdleSweep;
+
+    public static synchronized HttpClientPool getInstance(Context context) {
+        if (sInstance == null) {
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http",
+                    PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https",
+                    SSLCertificateSocketFactory.getHttpSocketFactory(SOCKET_TIMEOUT_MS,
+                            new SSLSessionCache(context.getApplicationContext())), 443));
+            sInstance = new HttpClientPool(registry, MAX_CONNECTIONS,
+                    MAX_CONNECTIONS_PER_HOST);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param transport The socket factories connections are opened with
+     */
+    public HttpClientPool(SchemeRegistry transport, int maxConnections,
+            int maxConnectionsPerHost) {
+        SchemeRegistry registry = new SchemeRegistry();
+        for (String name : transport.getSchemeNames()) {
+            Scheme scheme = transport.getScheme(name);
+            SocketFactory factory = scheme.getSocketFactory();
+            registry.register(new Scheme(name, factory instanceof LayeredSocketFactory
+                    ? new CountingLayeredSocketFactory((LayeredSocketFactory) factory)
+                    : new CountingSocketFactory(factory), scheme.getDefaultPort()));
+        }
+
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setUserAgent(params, USER_AGENT);
+        // Pooled connections may have been closed by the server meanwhile
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setConnectionTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        // Requests that want redirects followed set it on their own params
+        HttpClientParams.setRedirecting(params, false);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(maxConnectionsPerHost));
+
+        mClient = new DefaultHttpClient(
+                new ThreadSafeClientConnManager(params, registry), params) {
+            @Override
+            protected HttpContext createHttpContext() {
+                // Same as DefaultHttpClient minus the cookie store, like
+                // AndroidHttpClient: cookies belong to WebView, which honors
+                // the user's cookie settings
+                HttpContext context = new BasicHttpContext();
+                context.setAttribute(ClientContext.AUTHSCHEME_REGISTRY, getAuthSchemes());
+                context.setAttribute(ClientContext.COOKIESPEC_REGISTRY, getCookieSpecs());
+                context.setAttribute(ClientContext.CREDS_PROVIDER, getCredentialsProvider());
+                return context;
+            }
+        };
+        mClient.setRoutePlanner(new ProxySelectorRoutePlanner(registry,
+                ProxySelector.getDefault()));
+        mClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration < 0 || duration > KEEP_ALIVE_MS ? KEEP_ALIVE_MS : duration;
+            }
+        });
+        mClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                mRequestCount.incrementAndGet();
+                closeIdleConnections();
+            }
+        });
+    }
+
+    /**
+     * Returns the shared client. Never close or shut it down.
+     */
+    public HttpClient getClient() {
+        return mClient;
+    }
+
+    /** Returns the number of requests sent, redirects and retries included. */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Returns the number of connections opened. */
+    public int getConnectCount() {
+        return mConnectCount.get();
+    }
+
+    /** Closes the connections that have been idle for longer than idleMs. */
+    public void closeIdleConnections(long idleMs) {
+        mClient.getConnectionManager().closeIdleConnections(idleMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeIdleConnections() {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (now - mLastIdleSweep < KEEP_ALIVE_MS) {
+                return;
+            }
+            mLastIdleSweep = now;
+        }
+        ClientConnectionManager manager = mClient.getConnectionManager();
+        manager.closeIdleConnections(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private class CountingSocketFactory implements SocketFactory {
+        final SocketFactory mFactory;
+
+        CountingSocketFactory(SocketFactory factory) {
+            mFactory = factory;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return mFactory.createSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params)
+                throws IOException, UnknownHostException {
+            mConnectCount.incrementAndGet();
+            return mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            return mFactory.isSecure(sock);
+        }
+    }
+
+    private class CountingLayeredSocketFactory extends CountingSocketFactory
+            implements LayeredSocketFactory {
+
+        CountingLayeredSocketFactory(LayeredSocketFactory factory) {
+            super(factory);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException, UnknownHostException {
+            // Tunnelled through a proxy, the connection to it was counted
+            return ((LayeredSocketFactory) mFactory).createSocket(
+                    socket, host, port, autoClose);
+        }
+    }
+}
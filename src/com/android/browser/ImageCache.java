@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BrowserContract.Images;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.browser.provider.BrowserProvider2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+/**
+ * Decoded favicons, thumbnails and touch icons, keyed by image column and
+ * url, shared by the bookmarks page, the history page and the bookmark
+ * widget.
+ *
+ * Listings only query which images their rows have (see
+ * {@link com.android.browser.provider.BrowserProvider2.ImagePresence}) and
+ * fetch the images here, one query per batch of rows about to be shown.
+ * Views look images up with {@link #get} and leave misses to
+ * {@link #fetchInBackground}, which calls them back once the batch is read.
+ * The cache is bounded by the size of the bitmaps and entries are dropped
+ * when the provider reports that the images of their url changed.
+ *
+ * Bitmaps returned by {@link #acquire} are handed back with
+ * {@link #release}; once such a bitmap is released and no longer cached,
+ * it is decoded over by a later fetch of an image of the same size. Views
+ * showing images acquire them. Bitmaps returned by {@link #get} may be
+ * kept anywhere, so they are never reused; it is meant for images handed
+ * to other components, such as intents.
+ */
+public class ImageCache {
+
+    private static final String LOGTAG = "ImageCache";
+    private static final boolean DEBUG = false;
+
+    // Share of the memory class used for the cache
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+    // Share of the cache size kept as released bitmaps for reuse
+    private static final int POOL_DIVISOR = 4;
+
+    /** Number of rows worth fetching together, about a screenful. */
+    public static final int BATCH_SIZE = 24;
+
+    private static ImageCache sInstance;
+
+    /**
+     * Selects the rows {@link #getUpcomingUrls} fetches besides the first.
+     */
+    public interface RowFilter {
+        boolean accept(Cursor cursor);
+    }
+
+    private static class Ref {
+        int count;
+        // Removed from the cache while acquired
+        boolean detached;
+    }
+
+    private final Context mContext;
+    private final LruCache<String, Bitmap> mCache;
+    // Serves the background fetches in order
+    private final Handler mLoaderHandler = new Handler(BackgroundHandler.getLooper());
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Keys being fetched in the background, guarded by this
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    // Guarded by this. Weak so that holders that never release don't leak.
+    private final WeakHashMap<Bitmap, Ref> mRefs = new WeakHashMap<Bitmap, Ref>();
+    private final WeakHashMap<Bitmap, Boolean> mShared = new WeakHashMap<Bitmap, Boolean>();
+    private final LinkedList<Bitmap> mPool = new LinkedList<Bitmap>();
+    private final int mMaxPoolBytes;
+    private int mPoolBytes;
+    // Incremented on every invalidation, so that a fetch racing with one
+    // doesn't cache what it read before it
+    private int mGeneration;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mDecodeCount;
+    private int mReuseCount;
+
+    public static synchronized ImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ImageCache(Context context) {
+        mContext = context;
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+        mMaxPoolBytes = maxBytes / POOL_DIVISOR;
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                    Bitmap oldValue, Bitmap newValue) {
+                onEntryRemoved(oldValue);
+            }
+        };
+        context.getContentResolver().registerContentObserver(Images.CONTENT_URI,
+                false, new ContentObserver(mLoaderHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onChange(selfChange, null);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        String url = uri != null ? uri.getQueryParameter(
+                                BrowserProvider2.PARAM_IMAGE_URL) : null;
+                        invalidate(url);
+                    }
+                });
+    }
+
+    /**
+     * Returns the image if it is cached.
+     *
+     * @param column One of {@link Images#FAVICON}, {@link Images#THUMBNAIL}
+     *        or {@link Images#TOUCH_ICON}
+     */
+    public synchronized Bitmap get(String column, String url) {
+        Bitmap bitmap = lookup(column, url);
+        if (bitmap != null) {
+            mShared.put(bitmap, Boolean.TRUE);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Like {@link #get}, but the bitmap must be passed to {@link #release}
+     * once it is no longer shown.
+     */
+    public synchronized Bitmap acquire(String column, String url) {
+        Bitmap bitmap = lookup(column, url);
+        if (bitmap != null) {
+            Ref ref = mRefs.get(bitmap);
+            if (ref == null) {
+                ref = new Ref();
+                mRefs.put(bitmap, ref);
+            }
+            ref.count++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Takes another reference to a bitmap returned by {@link #acquire},
+     * which is released separately.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        Ref ref = bitmap != null ? mRefs.get(bitmap) : null;
+        if (ref != null) {
+            ref.count++;
+        }
+    }
+
+    /**
+     * Releases a bitmap returned by {@link #acquire}.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Ref ref = bitmap != null ? mRefs.get(bitmap) : null;
+        if (ref == null || --ref.count > 0) {
+            return;
+        }
+        mRefs.remove(bitmap);
+        if (ref.detached) {
+            addToPool(bitmap);
+        }
+    }
+
+    /**
+     * Fetches the images of all urls not yet cached with a single query.
+     */
+    public void fetch(String column, Collection<String> urls) {
+        ArrayList<String> missing = new ArrayList<String>(urls.size());
+        int generation;
+        synchronized (this) {
+            for (String url : urls) {
+                if (url != null && !missing.contains(url)
+                        && mCache.get(getKey(column, url)) == null) {
+                    missing.add(url);
+                }
+            }
+            generation = mGeneration;
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        StringBuilder where = new StringBuilder(Images.URL + " IN (");
+        for (int i = 0; i < missing.size(); i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(')');
+        Cursor c = mContext.getContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.URL, column }, where.toString(),
+                missing.toArray(new String[missing.size()]), null);
+        if (c == null) {
+            return;
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            while (c.moveToNext()) {
+                byte[] data = c.getBlob(1);
+                if (data == null || data.length == 0) {
+                    continue;
+                }
+                Bitmap bitmap = decode(data, options);
+                if (bitmap == null) {
+                    continue;
+                }
+                synchronized (this) {
+                    if (generation == mGeneration) {
+                        mCache.put(getKey(column, c.getString(0)), bitmap);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Like {@link #fetch}, but on a background thread, then calls the
+     * callback on the UI thread if it isn't null. Fetches are served in
+     * order, so urls already being fetched are not queried again and are
+     * cached by the time the callback runs.
+     */
+    public void fetchInBackground(final String column, Collection<String> urls,
+            final Runnable callback) {
+        final ArrayList<String> missing = new ArrayList<String>(urls.size());
+        synchronized (this) {
+            for (String url : urls) {
+                if (url != null && mPending.add(getKey(column, url))) {
+                    missing.add(url);
+                }
+            }
+        }
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetch(column, missing);
+                } finally {
+                    synchronized (ImageCache.this) {
+                        for (String url : missing) {
+                            mPending.remove(getKey(column, url));
+                        }
+                    }
+                }
+                if (callback != null) {
+                    mMainHandler.post(callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the urls of the rows with an image starting at the cursor's
+     * position, which are the ones about to be shown, so that they are
+     * fetched in one batch. The cursor is left at its position.
+     *
+     * @param hasImageIndex Index of the column that is non zero for rows
+     *        with an image
+     * @param urlIndex Index of the url column
+     * @param count Number of rows to look at, see {@link #BATCH_SIZE}
+     * @param filter If not null, rows after the first are only fetched if
+     *        it accepts them
+     */
+    public static ArrayList<String> getUpcomingUrls(Cursor cursor, int hasImageIndex,
+            int urlIndex, int count, RowFilter filter) {
+        ArrayList<String> urls = new ArrayList<String>(count);
+        int position = cursor.getPosition();
+        do {
+            if (cursor.getInt(hasImageIndex) != 0 && (urls.isEmpty() || filter == null
+                    || filter.accept(cursor))) {
+                urls.add(cursor.getString(urlIndex));
+            }
+        } while (cursor.getPosition() - position < count - 1 && cursor.moveToNext());
+        cursor.moveToPosition(position);
+        return urls;
+    }
+
+    /**
+     * Drops the cached images of the given url, or of every url if null.
+     */
+    public synchronized void invalidate(String url) {
+        mGeneration++;
+        if (url == null) {
+            mCache.evictAll();
+            return;
+        }
+        mCache.remove(getKey(Images.FAVICON, url));
+        mCache.remove(getKey(Images.THUMBNAIL, url));
+        mCache.remove(getKey(Images.TOUCH_ICON, url));
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the number of images decoded, see {@link #getReuseCount}. */
+    public synchronized int getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    /** Returns the number of decodes that reused a released bitmap. */
+    public synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    private Bitmap lookup(String column, String url) {
+        if (url == null) {
+            return null;
+        }
+        Bitmap bitmap = mCache.get(getKey(column, url));
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        if (DEBUG && ((mHitCount + mMissCount) % 100) == 0) {
+            Log.d(LOGTAG, "hits " + mHitCount + " misses " + mMissCount
+                    + " decodes " + mDecodeCount + " reused " + mReuseCount
+                    + " size " + mCache.size() + "/" + mCache.maxSize());
+        }
+        return bitmap;
+    }
+
+    private Bitmap decode(byte[] data, BitmapFactory.Options options) {
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inJustDecodeBounds = false;
+        // RemoteViews require a valid bitmap config, reuse a mutable one
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inBitmap = takeFromPool(options.outWidth, options.outHeight);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException ex) {
+            // Failed to re-use bitmap, create a new one
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        synchronized (this) {
+            mDecodeCount++;
+            if (bitmap != null && bitmap == options.inBitmap) {
+                mReuseCount++;
+            }
+        }
+        options.inBitmap = null;
+        return bitmap;
+    }
+
+    private void onEntryRemoved(Bitmap bitmap) {
+        // Called by mCache, so with this held
+        if (mShared.containsKey(bitmap)) {
+            return;
+        }
+        Ref ref = mRefs.get(bitmap);
+        if (ref != null) {
+            ref.detached = true;
+        } else {
+            addToPool(bitmap);
+        }
+    }
+
+    private void addToPool(Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        mPool.addLast(bitmap);
+        mPoolBytes += bitmap.getByteCount();
+        while (mPoolBytes > mMaxPoolBytes) {
+            mPoolBytes -= mPool.removeFirst().getByteCount();
+        }
+    }
+
+    private synchronized Bitmap takeFromPool(int width, int height) {
+        Iterator<Bitmap> it = mPool.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                it.remove();
+                mPoolBytes -= bitmap.getByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private static String getKey(String column, String url) {
+        return column + '|' + url;
+    }
+}
@@ -283,8 +283,13 @@ public class NavScreen extends RelativeLayout
 
         @Override
         public View getView(final int position, View convertView, ViewGroup parent) {
-            final NavTabView tabview = new NavTabView(mActivity);
+            final NavTabView tabview = (convertView instanceof NavTabView)
+                    ? (NavTabView) convertView : new NavTabView(mActivity);
             final Tab tab = getItem(position);
+            Tab recycled = tabview.getTab();
+            if (recycled != null && mTabViews.get(recycled) == tabview.mImage) {
+                mTabViews.remove(recycled);
+            }
             tabview.setWebView(tab);
             mTabViews.put(tab, tabview.mImage);
             tabview.setOnClickListener(new OnClickListener() {
@@ -34,13 +34,23 @@ import android.widget.LinearLayout;
 
 import com.android.browser.view.ScrollerView;
 
+import java.util.ArrayList;
+
 /**
  * custom view for displaying tabs in the nav screen
+ *
+ * Only the tabs on screen, and BIND_MARGIN on either side of it, have a
+ * view; the others are stood in for by padding, as all tabs are the same
+ * size. Views scrolled off screen are handed back to the adapter as
+ * convertView for the tabs scrolled in.
  */
 public class NavTabScroller extends ScrollerView {
 
     static final int INVALID_POSITION = -1;
     static final float[] PULL_FACTOR = { 2.5f, 0.9f };
+    // covers the scroll and gap of animateOut, and the frame between a
+    // scroll and the layout binding the tabs it reveals
+    static final int BIND_MARGIN = 2;
 
     interface OnRemoveListener {
         public void onRemovePosition(int position);
@@ -57,6 +67,10 @@ public class NavTabScroller extends ScrollerView {
     private int mGap;
     private int mGapPosition;
     private ObjectAnimator mGapAnimator;
+    // adapter position of the first bound tab
+    private int mFirstPosition;
+    private int mItemSize;
+    private ArrayList<View> mScrapViews = new ArrayList<View>();
 
     // after drag animation velocity in pixels/sec
     private static final float MIN_VELOCITY = 1500;
@@ -108,8 +122,16 @@ public class NavTabScroller extends ScrollerView {
         scrollTo(mHorizontal ? value : 0, mHorizontal ? 0 : value);
     }
 
+    /**
+     * @return the view of the tab at pos, or null if it isn't bound
+     */
     protected NavTabView getTabView(int pos) {
-        return (NavTabView) mContentView.getChildAt(pos);
+        return (NavTabView) getBoundView(pos);
+    }
+
+    private View getBoundView(int pos) {
+        if (pos < mFirstPosition) return null;
+        return mContentView.getChildAt(pos - mFirstPosition);
     }
 
     protected boolean isHorizontal() {
@@ -131,19 +153,135 @@ public class NavTabScroller extends ScrollerView {
     @Override
     protected void onMeasure(int wspec, int hspec) {
         super.onMeasure(wspec, hspec);
-        calcPadding();
+        if (calcPadding()) {
+            super.onMeasure(wspec, hspec);
+        }
     }
 
-    private void calcPadding() {
-        if (mAdapter.getCount() > 0) {
-            View v = mContentView.getChildAt(0);
-            if (mHorizontal) {
-                int pad = (getMeasuredWidth() - v.getMeasuredWidth()) / 2 + 2;
-                mContentView.setPadding(pad, 0, pad, 0);
-            } else {
-                int pad = (getMeasuredHeight() - v.getMeasuredHeight()) / 2 + 2;
-                mContentView.setPadding(0, pad, 0, pad);
-            }
+    /**
+     * @return whether the padding changed
+     */
+    private boolean calcPadding() {
+        View v = mContentView.getChildAt(0);
+        if (v == null) return false;
+        mItemSize = mHorizontal ? v.getMeasuredWidth() : v.getMeasuredHeight();
+        int pad = getEdgePadding();
+        int before = pad + mFirstPosition * mItemSize;
+        int after = pad + (mAdapter.getCount() - mFirstPosition
+                - mContentView.getChildCount()) * mItemSize;
+        int left = mHorizontal ? before : 0;
+        int top = mHorizontal ? 0 : before;
+        int right = mHorizontal ? after : 0;
+        int bottom = mHorizontal ? 0 : after;
+        if (left == mContentView.getPaddingLeft() && top == mContentView.getPaddingTop()
+                && right == mContentView.getPaddingRight()
+                && bottom == mContentView.getPaddingBottom()) {
+            return false;
+        }
+        mContentView.setPadding(left, top, right, bottom);
+        return true;
+    }
+
+    private int getEdgePadding() {
+        return ((mHorizontal ? getMeasuredWidth() : getMeasuredHeight()) - mItemSize) / 2 + 2;
+    }
+
+    /**
+     * @return the scroll value centering the tab at pos
+     */
+    private int getScrollFor(int pos) {
+        return getEdgePadding() + pos * mItemSize + mItemSize / 2
+                - (mHorizontal ? getMeasuredWidth() : getMeasuredHeight()) / 2;
+    }
+
+    /**
+     * Binds the tabs visible at scroll, or those around position while
+     * the tab size isn't known yet.
+     */
+    private void bindVisible(int scroll, int position) {
+        int viewport = mHorizontal ? getMeasuredWidth() : getMeasuredHeight();
+        if (mItemSize > 0 && viewport > 0) {
+            int start = scroll - getEdgePadding();
+            int first = (int) Math.floor((float) start / mItemSize);
+            int last = (int) Math.floor((float) (start + viewport) / mItemSize);
+            bindRange(first - BIND_MARGIN, last + BIND_MARGIN);
+        } else {
+            bindRange(position - BIND_MARGIN, position + BIND_MARGIN);
+        }
+    }
+
+    /**
+     * Binds the tabs from first to last, keeping the views of those
+     * already bound and recycling the others.
+     */
+    private void bindRange(int first, int last) {
+        first = Math.max(0, first);
+        last = Math.min(mAdapter.getCount() - 1, last);
+        int bound = mContentView.getChildCount();
+        if (mAnimator != null && bound > 0) {
+            // keep the view animating out attached
+            first = Math.min(first, mFirstPosition);
+            last = Math.max(last, mFirstPosition + bound - 1);
+        }
+        if (bound == 0 || first > mFirstPosition + bound - 1 || last < mFirstPosition) {
+            recycleViews();
+            mFirstPosition = first;
+        }
+        while (mContentView.getChildCount() > 0 && mFirstPosition < first) {
+            recycleView(0);
+            mFirstPosition++;
+        }
+        while (mContentView.getChildCount() > 0
+                && mFirstPosition + mContentView.getChildCount() - 1 > last) {
+            recycleView(mContentView.getChildCount() - 1);
+        }
+        while (mFirstPosition > first) {
+            mFirstPosition--;
+            addTab(mFirstPosition, 0);
+        }
+        while (mFirstPosition + mContentView.getChildCount() - 1 < last) {
+            addTab(mFirstPosition + mContentView.getChildCount(),
+                    mContentView.getChildCount());
+        }
+    }
+
+    private void addTab(int position, int index) {
+        View convert = mScrapViews.isEmpty() ? null
+                : mScrapViews.remove(mScrapViews.size() - 1);
+        View v = mAdapter.getView(position, convert, mContentView);
+        LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
+                LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+        lp.gravity = (mHorizontal ? Gravity.CENTER_VERTICAL : Gravity.CENTER_HORIZONTAL);
+        mContentView.addView(v, index, lp);
+        if (mGapPosition > INVALID_POSITION) {
+            adjustViewGap(v, position);
+        }
+    }
+
+    private void recycleView(int index) {
+        View v = mContentView.getChildAt(index);
+        mContentView.removeViewAt(index);
+        // undo drag, pull and gap offsets before the view is reused
+        v.setAlpha(1f);
+        v.setTranslationX(0);
+        v.setTranslationY(0);
+        v.setRotationX(0);
+        v.setRotationY(0);
+        mScrapViews.add(v);
+    }
+
+    private void recycleViews() {
+        for (int i = mContentView.getChildCount() - 1; i >= 0; i--) {
+            recycleView(i);
+        }
+        mFirstPosition = 0;
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        if (mAdapter != null && mItemSize > 0) {
+            bindVisible(mHorizontal ? l : t, mFirstPosition);
         }
     }
 
@@ -183,7 +321,7 @@ public class NavTabScroller extends ScrollerView {
     }
 
     protected int getRelativeChildTop(int ix) {
-        return mContentView.getChildAt(ix).getTop() - mScrollY;
+        return getBoundView(ix).getTop() - mScrollY;
     }
 
     protected void handleDataChanged() {
@@ -195,23 +333,17 @@ public class NavTabScroller extends ScrollerView {
         if (mGapAnimator != null) {
             mGapAnimator.cancel();
         }
-        mContentView.removeAllViews();
-        for (int i = 0; i < mAdapter.getCount(); i++) {
-            View v = mAdapter.getView(i, null, mContentView);
-            LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
-                    LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-            lp.gravity = (mHorizontal ? Gravity.CENTER_VERTICAL : Gravity.CENTER_HORIZONTAL);
-            mContentView.addView(v, lp);
-            if (mGapPosition > INVALID_POSITION){
-                adjustViewGap(v, i);
-            }
-        }
+        // positions have shifted, rebind every tab
+        int first = mFirstPosition;
+        recycleViews();
         if (newscroll > INVALID_POSITION) {
             newscroll = Math.min(mAdapter.getCount() - 1, newscroll);
+            bindVisible(getScrollFor(newscroll), newscroll);
             mNeedsScroll = true;
             mScrollPosition = newscroll;
             requestLayout();
         } else {
+            bindVisible(scroll, first);
             setScrollValue(scroll);
         }
     }
@@ -228,6 +360,10 @@ public class NavTabScroller extends ScrollerView {
             snapToSelected(mScrollPosition, false);
             mNeedsScroll = false;
         }
+        // now that the tab size is known, fill the screen
+        if (mAdapter != null) {
+            bindVisible(getScrollValue(), mFirstPosition);
+        }
         if (mLayoutListener != null) {
             mLayoutListener.onLayout(l, t, r, b);
             mLayoutListener = null;
@@ -235,20 +371,13 @@ public class NavTabScroller extends ScrollerView {
     }
 
     void clearTabs() {
-        mContentView.removeAllViews();
+        recycleViews();
     }
 
     void snapToSelected(int pos, boolean smooth) {
-        if (pos < 0) return;
-        View v = mContentView.getChildAt(pos);
-        if (v == null) return;
-        int sx = 0;
-        int sy = 0;
-        if (mHorizontal) {
-            sx = (v.getLeft() + v.getRight() - getWidth()) / 2;
-        } else {
-            sy = (v.getTop() + v.getBottom() - getHeight()) / 2;
-        }
+        if (pos < 0 || pos >= mAdapter.getCount() || mItemSize == 0) return;
+        int sx = mHorizontal ? getScrollFor(pos) : 0;
+        int sy = mHorizontal ? 0 : getScrollFor(pos);
         if ((sx != mScrollX) || (sy != mScrollY)) {
             if (smooth) {
                 smoothScrollTo(sx,sy);
@@ -270,7 +399,7 @@ public class NavTabScroller extends ScrollerView {
 
     private void animateOut(final View v, float velocity, float start) {
         if ((v == null) || (mAnimator != null)) return;
-        final int position = mContentView.indexOfChild(v);
+        final int position = mFirstPosition + mContentView.indexOfChild(v);
         int target = 0;
         if (velocity < 0) {
             target = mHorizontal ? -getHeight() :  -getWidth();
@@ -372,7 +501,7 @@ public class NavTabScroller extends ScrollerView {
     void adjustGap() {
         for (int i = 0; i < mContentView.getChildCount(); i++) {
             final View child = mContentView.getChildAt(i);
-            adjustViewGap(child, i);
+            adjustViewGap(child, mFirstPosition + i);
         }
     }
 
@@ -121,9 +121,17 @@ public class NavTabView extends LinearLayout {
             if (tab != null) {
                 mImage.setContentDescription(tab.getTitle());
             }
+        } else {
+            // don't show the screenshot of the tab this view was recycled from
+            mImage.setImageResource(R.drawable.ic_stop_holo_dark);
+            mImage.setContentDescription(null);
         }
     }
 
+    protected Tab getTab() {
+        return mTab;
+    }
+
     @Override
     public void setOnClickListener(OnClickListener listener) {
         mClickListener = listener;
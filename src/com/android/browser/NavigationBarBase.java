@@ -44,6 +44,7 @@ public class NavigationBarBase extends LinearLayout implements
     protected UrlInputView mUrlInput;
 
     private ImageView mFavicon;
+    private Bitmap mFaviconIcon;
     private ImageView mLockIcon;
 
     public NavigationBarBase(Context context) {
@@ -89,6 +90,9 @@ public class NavigationBarBase extends LinearLayout implements
 
     public void setFavicon(Bitmap icon) {
         if (mFavicon == null) return;
+        // Tab data changes often, the favicon rarely
+        if (icon == mFaviconIcon && mFavicon.getDrawable() != null) return;
+        mFaviconIcon = icon;
         mFavicon.setImageDrawable(mBaseUi.getFaviconDrawable(icon));
     }
 
@@ -56,6 +56,7 @@ public class NavigationBarTablet extends NavigationBarBase implements StateListe
     private Drawable mUnfocusDrawable;
     private boolean mHideNavButtons;
     private Drawable mFaviconDrawable;
+    private Bitmap mFaviconIcon;
 
     public NavigationBarTablet(Context context) {
         super(context);
@@ -198,7 +199,10 @@ public class NavigationBarTablet extends NavigationBarBase implements StateListe
 
     @Override
     public void setFavicon(Bitmap icon) {
-        mFaviconDrawable = mBaseUi.getFaviconDrawable(icon);
+        if (icon != mFaviconIcon || mFaviconDrawable == null) {
+            mFaviconIcon = icon;
+            mFaviconDrawable = mBaseUi.getFaviconDrawable(icon);
+        }
         updateUrlIcon();
     }
 
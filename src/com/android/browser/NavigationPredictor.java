@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.SuggestionsAdapter.SuggestItem;
+import com.android.browser.provider.Frecency;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predicts the page the user is about to open from the omnibox, and warms
+ * it up while they are still typing.
+ *
+ * Each url suggestion is weighed by its decayed number of visits, from the
+ * history frecency of the suggestion and from the visits seen since
+ * startup. The confidence of the heaviest one is its share of the total
+ * plus {@link #NEW_PAGE_PRIOR}, the chance that the user goes somewhere
+ * else. Above {@link #WARM_THRESHOLD} its host is resolved; above
+ * {@link #PRELOAD_THRESHOLD} the page is loaded in a low priority
+ * {@link Preloader} session, which warms the connections and cache of the
+ * network stack the tabs share. Both respect the preload setting.
+ *
+ * The first visit after a url is submitted from the omnibox settles the
+ * prediction. Its precision is the share of predictions that were right,
+ * its recall the share of those navigations that were predicted.
+ *
+ * All methods should be called from the UI thread.
+ */
+public class NavigationPredictor {
+
+    private static final String LOGTAG = "NavigationPredictor";
+    private static final boolean LOGD_ENABLED = com.android.browser.Browser.LOGD_ENABLED;
+
+    static final double WARM_THRESHOLD = 0.5;
+    static final double PRELOAD_THRESHOLD = 0.8;
+    // Weight of an unknown destination, in decayed visits
+    private static final double NEW_PAGE_PRIOR = 1;
+    // Suggestions older than this didn't lead to the next visit
+    private static final long EPISODE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int MAX_VISITS = 256;
+    private static final String PRELOAD_ID = "browser.predictor";
+
+    private static NavigationPredictor sInstance;
+
+    private final Context mContext;
+    // Normalized url to frecency of the visits seen since startup
+    private final LinkedHashMap<String, Double> mVisits =
+            new LinkedHashMap<String, Double>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+                    return size() > MAX_VISITS;
+                }
+            };
+
+    // Current episode, from the first suggestions to the next visit
+    private long mSuggestedAt;
+    private boolean mNavigating;
+    private String mPredictedUrl;
+    private String mPreloadedUrl;
+    private String mWarmedHost;
+
+    private int mNavigations;
+    private int mPredictions;
+    private int mCorrect;
+    private int mPreloads;
+    private int mPreloadHits;
+
+    public static synchronized NavigationPredictor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NavigationPredictor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NavigationPredictor(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Called with the suggestions shown for the text typed so far.
+     */
+    public void onSuggestions(List<SuggestItem> items) {
+        mSuggestedAt = SystemClock.uptimeMillis();
+        long now = System.currentTimeMillis();
+        String best = null;
+        double bestWeight = 0;
+        double total = NEW_PAGE_PRIOR;
+        for (SuggestItem item : items) {
+            if (TextUtils.isEmpty(item.targetUrl)) {
+                continue;
+            }
+            double weight = getWeight(item, now);
+            total += weight;
+            if (weight > bestWeight) {
+                best = item.targetUrl;
+                bestWeight = weight;
+            }
+        }
+        double confidence = bestWeight / total;
+        if (confidence < WARM_THRESHOLD
+                || !PreloadRequestReceiver.isPreloadEnabledOnCurrentNetwork(mContext)) {
+            mPredictedUrl = null;
+            return;
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Predicting " + best + " at " + confidence);
+        mPredictedUrl = best;
+        warmHost(best);
+        if (confidence >= PRELOAD_THRESHOLD && !best.equals(mPreloadedUrl)) {
+            if (mPreloadedUrl == null) {
+                mPreloads++;
+            }
+            mPreloadedUrl = best;
+            Preloader.getInstance().handlePreloadRequest(PRELOAD_ID, best, null, null,
+                    Preloader.PRIORITY_LOW);
+        }
+    }
+
+    /**
+     * Called when the omnibox is closed, with the url or query submitted
+     * from it or null if it was dismissed.
+     */
+    public void onInputFinished(String url) {
+        if (mSuggestedAt == 0) {
+            return;
+        }
+        if (TextUtils.isEmpty(url)) {
+            endEpisode(false);
+        } else {
+            mNavigating = true;
+        }
+    }
+
+    /**
+     * Called for every page added to the history.
+     */
+    public void onVisited(String url) {
+        String key = normalize(url);
+        Double frecency = mVisits.get(key);
+        mVisits.put(key, Frecency.visit(frecency != null ? frecency : Frecency.NONE,
+                System.currentTimeMillis()));
+        if (mSuggestedAt == 0) {
+            return;
+        }
+        if (SystemClock.uptimeMillis() - mSuggestedAt > EPISODE_TIMEOUT_MILLIS) {
+            endEpisode(false);
+            return;
+        }
+        if (!mNavigating) {
+            // Not a navigation from the omnibox
+            return;
+        }
+        mNavigations++;
+        boolean correct = false;
+        if (mPredictedUrl != null) {
+            mPredictions++;
+            correct = key.equals(normalize(mPredictedUrl));
+            if (correct) {
+                mCorrect++;
+            }
+        }
+        endEpisode(correct);
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "Visited " + url + ": precision " + getPrecision()
+                    + ", recall " + getRecall() + ", preload hits " + mPreloadHits
+                    + "/" + mPreloads);
+        }
+    }
+
+    private void endEpisode(boolean correct) {
+        if (mPreloadedUrl != null) {
+            if (correct && normalize(mPreloadedUrl).equals(normalize(mPredictedUrl))) {
+                // The page was loaded through the warmed up stack, the
+                // preload has served its purpose
+                mPreloadHits++;
+                Preloader.getInstance().consumePreload(PRELOAD_ID);
+            } else {
+                Preloader.getInstance().discardPreload(PRELOAD_ID);
+            }
+        }
+        mSuggestedAt = 0;
+        mNavigating = false;
+        mPredictedUrl = null;
+        mPreloadedUrl = null;
+    }
+
+    /**
+     * Returns the decayed number of visits of a suggestion. Bookmarks
+     * carry {@link Frecency#BOOKMARK} rather than their visits, so they
+     * only count the visits seen since startup.
+     */
+    private double getWeight(SuggestItem item, long now) {
+        double weight = 0;
+        if (item.frecency != Frecency.BOOKMARK) {
+            weight = Frecency.score(item.frecency, now);
+        }
+        Double frecency = mVisits.get(normalize(item.targetUrl));
+        if (frecency != null) {
+            weight = Math.max(weight, Frecency.score(frecency, now));
+        }
+        return weight;
+    }
+
+    private void warmHost(String url) {
+        final String host = Uri.parse(url).getHost();
+        if (host == null || host.equals(mWarmedHost)) {
+            return;
+        }
+        mWarmedHost = host;
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Fills the resolver cache the network stack reads
+                    InetAddress.getAllByName(host);
+                } catch (UnknownHostException e) {
+                    // The navigation will report it
+                }
+            }
+        });
+    }
+
+    private static String normalize(String url) {
+        String s = UrlCompletionIndex.normalizeUrl(url);
+        return s.endsWith("/") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /** Returns the share of predictions that were right. */
+    public double getPrecision() {
+        return mPredictions == 0 ? 0 : (double) mCorrect / mPredictions;
+    }
+
+    /** Returns the share of navigations from the omnibox that were predicted. */
+    public double getRecall() {
+        return mNavigations == 0 ? 0 : (double) mCorrect / mNavigations;
+    }
+
+    public int getPreloadCount() {
+        return mPreloads;
+    }
+
+    public int getPreloadHitCount() {
+        return mPreloadHits;
+    }
+}
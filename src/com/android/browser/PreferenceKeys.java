@@ -122,4 +122,9 @@ public interface PreferenceKeys {
      * Key for whether or not the last run was paused.
      */
     static final String KEY_LAST_RUN_PAUSED = "last_paused";
+
+    /**
+     * Client id of the default homepage, as of the last run.
+     */
+    static final String KEY_CLIENT_ID = "client_id";
 }
@@ -41,8 +41,8 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
     static final String EXTRA_PRELOAD_DISCARD = "preload_discard";
     static final String EXTRA_SEARCHBOX_CANCEL = "searchbox_cancel";
     static final String EXTRA_SEARCHBOX_SETQUERY = "searchbox_query";
-
-    private ConnectivityManager mConnectivityManager;
+    // One of the Preloader PRIORITY constants
+    static final String EXTRA_PRELOAD_PRIORITY = "preload_priority";
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -53,7 +53,11 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
         }
     }
 
-    private boolean isPreloadEnabledOnCurrentNetwork(Context context) {
+    /**
+     * Returns whether the preload setting allows preloading on the
+     * current network.
+     */
+    static boolean isPreloadEnabledOnCurrentNetwork(Context context) {
         String preload = BrowserSettings.getInstance().getPreloadEnabled();
         if (LOGD_ENABLED) Log.d(LOGTAG, "Preload setting: " + preload);
         if (BrowserSettings.getPreloadAlwaysPreferenceString(context).equals(preload)) {
@@ -67,12 +71,10 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
         }
     }
 
-    private boolean isOnWifi(Context context) {
-        if (mConnectivityManager == null) {
-            mConnectivityManager = (ConnectivityManager)
-                    context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        }
-        NetworkInfo ni = mConnectivityManager.getActiveNetworkInfo();
+    private static boolean isOnWifi(Context context) {
+        ConnectivityManager cm = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
         if (ni == null) {
             return false;
         }
@@ -121,12 +123,14 @@ public class PreloadRequestReceiver extends BroadcastReceiver {
                 }
             }
             String sbQuery = i.getStringExtra(EXTRA_SEARCHBOX_SETQUERY);
+            int priority = i.getIntExtra(EXTRA_PRELOAD_PRIORITY, Preloader.PRIORITY_NORMAL);
             if (url != null) {
                 if (LOGD_ENABLED){
                     Log.d(LOGTAG, "Preload request(" + id + ", " + url + ", " +
-                            headers + ", " + sbQuery + ")");
+                            headers + ", " + sbQuery + ", " + priority + ")");
                 }
-                Preloader.getInstance().handlePreloadRequest(id, url, headers, sbQuery);
+                Preloader.getInstance().handlePreloadRequest(id, url, headers, sbQuery,
+                        priority);
             }
         }
     }
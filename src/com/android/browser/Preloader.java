@@ -15,16 +15,30 @@
  */
 package com.android.browser;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.webkit.WebView;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Singleton class for handling preload requests.
+ *
+ * Preloads are kept in a pool of slots, as many as the available memory
+ * allows. When the pool is full a new request replaces the least recently
+ * used session of the lowest priority, unless all of them have a higher
+ * priority than the request. Each slot counts the preloads that were shown
+ * (hits), the ones that were dropped before being shown (waste) and the
+ * requests to show a preload it had already dropped (misses).
+ *
+ * All methods should be called from the UI thread.
  */
 public class Preloader {
 
@@ -33,12 +47,40 @@ public class Preloader {
 
     private static final int PRERENDER_TIMEOUT_MILLIS = 30 * 1000; // 30s
 
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    static final int MAX_SLOTS = 4;
+    // Share of the tabs' memory budget that preloads may use
+    private static final int TAB_BUDGET_DIVISOR = 4;
+    // Share of the memory left above the low memory threshold
+    private static final int AVAIL_MEMORY_DIVISOR = 8;
+    // Dropped sessions remembered to attribute misses to their slot
+    private static final int MAX_DROPPED = 16;
+
     private static Preloader sInstance;
 
     private final Context mContext;
     private final Handler mHandler;
     private final BrowserWebViewFactory mFactory;
-    private volatile PreloaderSession mSession;
+    // Least recently used first
+    private final LinkedHashMap<String, PreloaderSession> mSessions =
+            new LinkedHashMap<String, PreloaderSession>(MAX_SLOTS, 0.75f, true);
+    // Ids of sessions dropped before being shown, to their slot
+    private final LinkedHashMap<String, Integer> mDropped =
+            new LinkedHashMap<String, Integer>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_DROPPED;
+                }
+            };
+    private final int[] mHits = new int[MAX_SLOTS];
+    private final int[] mMisses = new int[MAX_SLOTS];
+    private final int[] mWaste = new int[MAX_SLOTS];
+    private final int[] mConsumed = new int[MAX_SLOTS];
+    private int mUnknownMisses;
+    private int mRejected;
 
     public static void initialize(Context context) {
         sInstance = new Preloader(context);
@@ -51,48 +93,123 @@ public class Preloader {
     private Preloader(Context context) {
         mContext = context.getApplicationContext();
         mHandler = new Handler(Looper.getMainLooper());
-        mSession = null;
         mFactory = new BrowserWebViewFactory(context);
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
 
+            @Override
+            public void onLowMemory() {
+                trimMemory(TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
     }
 
-    private PreloaderSession getSession(String id) {
-        if (mSession == null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Create new preload session " + id);
-            mSession = new PreloaderSession(id);
-            WebViewTimersControl.getInstance().onPrerenderStart(
-                    mSession.getWebView());
-            return mSession;
-        } else if (mSession.mId.equals(id)) {
+    /**
+     * Returns how many preloads fit in memory: a share of the tabs' budget
+     * and of the memory the system has left, at the estimated cost of a
+     * live WebView the size of the screen.
+     */
+    int getSlotCount() {
+        ActivityManager am = (ActivityManager) mContext.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        if (info.lowMemory) {
+            return 1;
+        }
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        long perSlot = TabMemoryManager.estimateWebView(
+                metrics.widthPixels, metrics.heightPixels, false);
+        long budget = Math.min(TabMemoryManager.getDefaultBudget(mContext) / TAB_BUDGET_DIVISOR,
+                (info.availMem - info.threshold) / AVAIL_MEMORY_DIVISOR);
+        return (int) Math.max(1, Math.min(MAX_SLOTS, budget / perSlot));
+    }
+
+    private PreloaderSession getSession(String id, int priority) {
+        PreloaderSession s = mSessions.get(id);
+        if (s != null) {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Returning existing preload session " + id);
-            return mSession;
+            s.mPriority = priority;
+            return s;
+        }
+        int slotCount = getSlotCount();
+        while (mSessions.size() >= slotCount) {
+            PreloaderSession victim = getVictim(priority);
+            if (victim == null) {
+                if (LOGD_ENABLED) Log.d(LOGTAG, "All " + mSessions.size()
+                        + " slots have a higher priority than " + id + ", returning null.");
+                mRejected++;
+                return null;
+            }
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Replacing preload session " + victim.mId);
+            drop(victim.mId);
         }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Create new preload session " + id);
+        s = new PreloaderSession(id, getFreeSlot(), priority);
+        mSessions.put(id, s);
+        WebViewTimersControl.getInstance().onPrerenderStart(s.getWebView());
+        return s;
+    }
 
-        if (LOGD_ENABLED) Log.d(LOGTAG, "Existing session in progress : " + mSession.mId +
-                " returning null.");
-        return null;
+    /**
+     * Returns the least recently used of the lowest priority sessions, or
+     * null if they all have a higher priority than the given one.
+     */
+    private PreloaderSession getVictim(int priority) {
+        PreloaderSession victim = null;
+        for (PreloaderSession s : mSessions.values()) {
+            if (s.mPriority <= priority
+                    && (victim == null || s.mPriority < victim.mPriority)) {
+                victim = s;
+            }
+        }
+        return victim;
     }
 
-    private PreloaderSession takeSession(String id) {
-        PreloaderSession s = null;
-        if (mSession != null && mSession.mId.equals(id)) {
-            s = mSession;
-            mSession = null;
+    private int getFreeSlot() {
+        boolean[] used = new boolean[MAX_SLOTS];
+        for (PreloaderSession s : mSessions.values()) {
+            used[s.mSlot] = true;
+        }
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            if (!used[i]) {
+                return i;
+            }
         }
+        throw new IllegalStateException("No free preload slot");
+    }
 
+    private PreloaderSession takeSession(String id) {
+        PreloaderSession s = mSessions.remove(id);
         if (s != null) {
             s.cancelTimeout();
+            WebViewTimersControl.getInstance().onPrerenderDone(s.getWebView());
         }
-
         return s;
     }
 
     public void handlePreloadRequest(String id, String url, Map<String, String> headers,
             String searchBoxQuery) {
-        PreloaderSession s = getSession(id);
+        handlePreloadRequest(id, url, headers, searchBoxQuery, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param priority One of the PRIORITY constants. Higher priority
+     *        sessions are kept longer and aren't replaced by lower ones.
+     */
+    public void handlePreloadRequest(String id, String url, Map<String, String> headers,
+            String searchBoxQuery, int priority) {
+        PreloaderSession s = getSession(id, priority);
         if (s == null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Discarding preload request, existing"
-                    + " session in progress");
+            if (LOGD_ENABLED) Log.d(LOGTAG, "Discarding preload request, no slot for "
+                    + id);
             return;
         }
 
@@ -107,7 +224,7 @@ public class Preloader {
     }
 
     public void cancelSearchBoxPreload(String id) {
-        PreloaderSession s = getSession(id);
+        PreloaderSession s = mSessions.get(id);
         if (s != null) {
             s.touch(); // reset timer
             PreloadedTabControl tab = s.getTabControl();
@@ -116,17 +233,41 @@ public class Preloader {
     }
 
     public void discardPreload(String id) {
-        PreloaderSession s = takeSession(id);
-        if (s != null) {
-            if (LOGD_ENABLED) Log.d(LOGTAG, "Discard preload session " + id);
-            WebViewTimersControl.getInstance().onPrerenderDone(s == null ? null : s.getWebView());
-            PreloadedTabControl t = s.getTabControl();
-            t.destroy();
-        } else {
+        if (!drop(id)) {
             if (LOGD_ENABLED) Log.d(LOGTAG, "Ignored discard request " + id);
         }
     }
 
+    /**
+     * Destroys a session that served its purpose without being shown, such
+     * as warming up the network stack for a page loaded elsewhere. It
+     * counts as neither a hit nor waste.
+     */
+    public void consumePreload(String id) {
+        PreloaderSession s = takeSession(id);
+        if (s == null) {
+            return;
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Consumed preload session " + id);
+        mConsumed[s.mSlot]++;
+        s.getTabControl().destroy();
+    }
+
+    /**
+     * Destroys a session that wasn't shown, counting it as wasted.
+     */
+    private boolean drop(String id) {
+        PreloaderSession s = takeSession(id);
+        if (s == null) {
+            return false;
+        }
+        if (LOGD_ENABLED) Log.d(LOGTAG, "Discard preload session " + id);
+        mWaste[s.mSlot]++;
+        mDropped.put(id, s.mSlot);
+        s.getTabControl().destroy();
+        return true;
+    }
+
     /**
      * Return a preloaded tab, and remove it from the preloader. This is used when the
      * view is about to be displayed.
@@ -134,11 +275,85 @@ public class Preloader {
     public PreloadedTabControl getPreloadedTab(String id) {
         PreloaderSession s = takeSession(id);
         if (LOGD_ENABLED) Log.d(LOGTAG, "Showing preload session " + id + "=" + s);
+        if (s != null) {
+            mHits[s.mSlot]++;
+        } else {
+            Integer slot = mDropped.remove(id);
+            if (slot != null) {
+                mMisses[slot]++;
+            } else {
+                mUnknownMisses++;
+            }
+        }
+        if (LOGD_ENABLED) logStats();
         return s == null ? null : s.getTabControl();
     }
 
+    /**
+     * Drops sessions, lowest priority and least recently used first, down
+     * to what memory allows at the trim level.
+     */
+    void trimMemory(int level) {
+        int keep;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            keep = 0;
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            keep = 1;
+        } else {
+            return;
+        }
+        while (mSessions.size() > keep) {
+            drop(getVictim(PRIORITY_HIGH).mId);
+        }
+    }
+
+    public int getHitCount(int slot) {
+        return mHits[slot];
+    }
+
+    /** Returns the requests to show a preload the slot had dropped. */
+    public int getMissCount(int slot) {
+        return mMisses[slot];
+    }
+
+    /** Returns the preloads the slot dropped before they were shown. */
+    public int getWasteCount(int slot) {
+        return mWaste[slot];
+    }
+
+    /** Returns the preloads of the slot consumed without being shown. */
+    public int getConsumedCount(int slot) {
+        return mConsumed[slot];
+    }
+
+    /** Returns the requests to show a preload that was never made. */
+    public int getUnknownMissCount() {
+        return mUnknownMisses;
+    }
+
+    /** Returns the preload requests that found no slot. */
+    public int getRejectedCount() {
+        return mRejected;
+    }
+
+    private void logStats() {
+        StringBuilder sb = new StringBuilder("Preload stats (hit/miss/waste/consumed):");
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            sb.append(" [").append(mHits[i]).append('/').append(mMisses[i])
+                    .append('/').append(mWaste[i]).append('/').append(mConsumed[i])
+                    .append(']');
+        }
+        sb.append(" unknown misses ").append(mUnknownMisses)
+                .append(", rejected ").append(mRejected);
+        Log.d(LOGTAG, sb.toString());
+    }
+
     private class PreloaderSession {
         private final String mId;
+        private final int mSlot;
+        private int mPriority;
         private final PreloadedTabControl mTabControl;
 
         private final Runnable mTimeoutTask = new Runnable(){
@@ -148,8 +363,10 @@ public class Preloader {
                 discardPreload(mId);
             }};
 
-        public PreloaderSession(String id) {
+        public PreloaderSession(String id, int slot, int priority) {
             mId = id;
+            mSlot = slot;
+            mPriority = priority;
             mTabControl = new PreloadedTabControl(
                     new Tab(new PreloadController(mContext), mFactory.createWebView(false)));
             touch();
@@ -161,7 +378,9 @@ public class Preloader {
 
         public void touch() {
             cancelTimeout();
-            mHandler.postDelayed(mTimeoutTask, PRERENDER_TIMEOUT_MILLIS);
+            // Higher priority sessions are more likely to be shown, wait longer
+            mHandler.postDelayed(mTimeoutTask,
+                    PRERENDER_TIMEOUT_MILLIS * (mPriority + 1) / (PRIORITY_NORMAL + 1));
         }
 
         public PreloadedTabControl getTabControl() {
@@ -50,9 +50,17 @@ public class ShortcutActivity extends Activity
         if (isFolder) {
             return false;
         }
-        Intent intent = BrowserBookmarksPage.createShortcutIntent(this, c);
-        setResult(RESULT_OK, intent);
-        finish();
+        final String url = c.getString(BookmarksLoader.COLUMN_INDEX_URL);
+        final String title = c.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
+        BrowserBookmarksPage.loadImages(this, c, new Runnable() {
+            @Override
+            public void run() {
+                Intent intent = BrowserBookmarksPage.createShortcutIntent(
+                        ShortcutActivity.this, url, title);
+                setResult(RESULT_OK, intent);
+                finish();
+            }
+        });
         return true;
     }
 
@@ -42,6 +42,7 @@ public class SnapshotBar extends LinearLayout implements OnClickListener {
     private static final long DURATION_SHOW_DATE = BaseUi.HIDE_TITLEBAR_DELAY;
 
     private ImageView mFavicon;
+    private Bitmap mFaviconIcon;
     private TextView mDate;
     private TextView mTitle;
     private View mBookmarks;
@@ -199,6 +200,8 @@ public class SnapshotBar extends LinearLayout implements OnClickListener {
 
     public void setFavicon(Bitmap icon) {
         if (mFavicon == null) return;
+        if (icon == mFaviconIcon && mFavicon.getDrawable() != null) return;
+        mFaviconIcon = icon;
         mFavicon.setImageDrawable(mTitleBar.getUi().getFaviconDrawable(icon));
     }
 
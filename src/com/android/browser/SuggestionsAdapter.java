@@ -19,6 +19,7 @@ package com.android.browser;
 import android.app.SearchManager;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.provider.BrowserContract;
@@ -35,9 +36,11 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.provider.Frecency;
 import com.android.browser.search.SearchEngine;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -56,12 +59,10 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             OmniboxSuggestions._ID,
             OmniboxSuggestions.TITLE,
             OmniboxSuggestions.URL,
-            OmniboxSuggestions.IS_BOOKMARK
+            OmniboxSuggestions.IS_BOOKMARK,
+            OmniboxSuggestions.FRECENCY
             };
 
-    private static final String COMBINED_SELECTION =
-            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
-
     final Context mContext;
     final Filter mFilter;
     SuggestionResults mMixedResults;
@@ -74,6 +75,12 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     final Object mResultsLock = new Object();
     boolean mIncognitoMode;
     BrowserSettings mSettings;
+    final UrlCompletionIndex mCompletionIndex;
+    final NavigationPredictor mPredictor;
+    final CombinedCursor mCombinedCursor;
+    // Only touched on the filter thread
+    SlowFilterTask mSlowFilterTask;
+    HistoryFillTask mHistoryFillTask;
 
     interface CompletionListener {
 
@@ -86,6 +93,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     public SuggestionsAdapter(Context ctx, CompletionListener listener) {
         mContext = ctx;
         mSettings = BrowserSettings.getInstance();
+        mCompletionIndex = UrlCompletionIndex.getInstance(ctx);
+        mPredictor = NavigationPredictor.getInstance(ctx);
         mListener = listener;
         mLinesPortrait = mContext.getResources().
                 getInteger(R.integer.max_suggest_lines_portrait);
@@ -93,7 +102,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 getInteger(R.integer.max_suggest_lines_landscape);
 
         mFilter = new SuggestFilter();
-        addSource(new CombinedCursor());
+        mCombinedCursor = new CombinedCursor();
+        addSource(mCombinedCursor);
     }
 
     public void setLandscapeMode(boolean mode) {
@@ -221,6 +231,67 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             mSuggestResults = items;
             mMixedResults = buildSuggestionResults();
             notifyDataSetChanged();
+            predict();
+        }
+    }
+
+    /**
+     * Queries the provider for the history and bookmarks the completion
+     * index couldn't supply, and adds them to the filter results they were
+     * missing from, unless those were replaced meanwhile.
+     */
+    class HistoryFillTask extends AsyncTask<Void, Void, List<SuggestItem>> {
+        private final CharSequence mConstraint;
+        private final int mLimit;
+        private final List<SuggestItem> mBase;
+
+        HistoryFillTask(CharSequence constraint, int limit, List<SuggestItem> base) {
+            mConstraint = constraint;
+            mLimit = limit;
+            mBase = base;
+        }
+
+        @Override
+        protected List<SuggestItem> doInBackground(Void... params) {
+            List<SuggestItem> results = new ArrayList<SuggestItem>();
+            Cursor c = mCombinedCursor.queryProvider(mConstraint, mLimit);
+            if (c != null) {
+                try {
+                    while (!isCancelled() && c.moveToNext()) {
+                        results.add(mCombinedCursor.toItem(c));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            return results;
+        }
+
+        @Override
+        protected void onPostExecute(List<SuggestItem> items) {
+            synchronized (mResultsLock) {
+                if (mFilterResults != mBase) {
+                    return;
+                }
+                List<SuggestItem> merged = new ArrayList<SuggestItem>(mBase);
+                HashSet<String> urls = new HashSet<String>();
+                for (SuggestItem item : mBase) {
+                    urls.add(item.targetUrl);
+                }
+                int maxLines = getMaxLines();
+                for (SuggestItem item : items) {
+                    if (merged.size() >= maxLines) {
+                        break;
+                    }
+                    if (urls.add(item.targetUrl)) {
+                        merged.add(item);
+                    }
+                }
+                mFilterResults = merged;
+            }
+            mMixedResults = buildSuggestionResults();
+            notifyDataSetChanged();
+            predict();
         }
     }
 
@@ -260,8 +331,16 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         }
 
         void startSuggestionsAsync(final CharSequence constraint) {
+            if (mSlowFilterTask != null) {
+                // Superseded, don't wait for or show its suggestions
+                mSlowFilterTask.cancel(true);
+                mSlowFilterTask = null;
+            }
             if (!mIncognitoMode) {
-                new SlowFilterTask().execute(constraint);
+                // In parallel, so that the SuggestionService sees the new
+                // query and cancels the request of the previous one
+                mSlowFilterTask = new SlowFilterTask();
+                mSlowFilterTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, constraint);
             }
         }
 
@@ -272,6 +351,11 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
         @Override
         protected FilterResults performFiltering(CharSequence constraint) {
+            if (mHistoryFillTask != null) {
+                // Its results would be merged into stale ones
+                mHistoryFillTask.cancel(true);
+                mHistoryFillTask = null;
+            }
             FilterResults res = new FilterResults();
             if (TextUtils.isEmpty(constraint) && !shouldProcessEmptyQuery()) {
                 res.count = 0;
@@ -289,6 +373,12 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             synchronized (mResultsLock) {
                 mFilterResults = filterResults;
             }
+            if (constraint != null && mCombinedCursor.getFillLimit() > 0
+                    && filterResults.size() < getMaxLines()) {
+                mHistoryFillTask = new HistoryFillTask(constraint,
+                        mCombinedCursor.getFillLimit(), filterResults);
+                mHistoryFillTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
             SuggestionResults mixed = buildSuggestionResults();
             res.count = mixed.getLineCount();
             res.values = mixed;
@@ -314,10 +404,17 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             if (fresults.values instanceof SuggestionResults) {
                 mMixedResults = (SuggestionResults) fresults.values;
                 notifyDataSetChanged();
+                predict();
             }
         }
     }
 
+    private void predict() {
+        if (!mIncognitoMode && mMixedResults != null) {
+            mPredictor.onSuggestions(mMixedResults.items);
+        }
+    }
+
     private int getMaxLines() {
         int maxLines = mLandscapeMode ? mLinesLandscape : mLinesPortrait;
         maxLines = (int) Math.ceil(maxLines / 2.0);
@@ -380,6 +477,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         public String url;
         public int type;
         public String extra;
+        // Full url to open, null for searches
+        public String targetUrl;
+        public double frecency = Frecency.NONE;
 
         public SuggestItem(String text, String u, int t) {
             title = text;
@@ -417,14 +517,13 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
      */
     class CombinedCursor extends CursorSource {
 
+        // Only touched on the filter thread
+        private int mFillLimit;
+
         @Override
         public SuggestItem getItem() {
             if ((mCursor != null) && (!mCursor.isAfterLast())) {
-                String title = mCursor.getString(1);
-                String url = mCursor.getString(2);
-                boolean isBookmark = (mCursor.getInt(3) == 1);
-                return new SuggestItem(getTitle(title, url), getUrl(title, url),
-                        isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
+                return toItem(mCursor);
             }
             return null;
         }
@@ -435,32 +534,51 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             if (mCursor != null) {
                 mCursor.close();
             }
-            String like = constraint + "%";
-            String[] args = null;
-            String selection = null;
-            if (like.startsWith("http") || like.startsWith("file")) {
-                args = new String[1];
-                args[0] = like;
-                selection = "url LIKE ?";
-            } else {
-                args = new String[5];
-                args[0] = "http://" + like;
-                args[1] = "http://www." + like;
-                args[2] = "https://" + like;
-                args[3] = "https://www." + like;
-                // To match against titles.
-                args[4] = like;
-                selection = COMBINED_SELECTION;
+            int limit = Math.max(mLinesLandscape, mLinesPortrait);
+            MatrixCursor c = new MatrixCursor(COMBINED_PROJECTION, limit);
+            if (mCompletionIndex.isLoaded()) {
+                for (UrlCompletionIndex.Entry e : mCompletionIndex.query(constraint, limit)) {
+                    c.addRow(new Object[] { c.getCount(), e.title, e.url, e.bookmark ? 1 : 0,
+                            e.frecency });
+                }
             }
+            // The index only holds the top urls and matches prefixes, the
+            // rest of the history is filled in without holding these back
+            mFillLimit = c.getCount() < limit ? limit : 0;
+            mCursor = c;
+            mCursor.moveToFirst();
+        }
+
+        /**
+         * Returns the number of provider rows to fill the results of the
+         * last query with, or 0 if the index supplied enough.
+         */
+        int getFillLimit() {
+            return mFillLimit;
+        }
+
+        SuggestItem toItem(Cursor c) {
+            String title = c.getString(1);
+            String url = c.getString(2);
+            boolean isBookmark = (c.getInt(3) == 1);
+            SuggestItem item = new SuggestItem(getTitle(title, url), getUrl(title, url),
+                    isBookmark ? TYPE_BOOKMARK : TYPE_HISTORY);
+            item.targetUrl = url;
+            item.frecency = c.getDouble(4);
+            return item;
+        }
+
+        /**
+         * The provider matches the input against its full-text index of
+         * titles and url tokens.
+         */
+        Cursor queryProvider(CharSequence constraint, int limit) {
             Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
-            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
-                    Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
-            mCursor =
-                    mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
-                            selection, (constraint != null) ? args : null, null);
-            if (mCursor != null) {
-                mCursor.moveToFirst();
-            }
+            ub.appendQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_MATCH,
+                    constraint.toString());
+            ub.appendQueryParameter(BrowserContract.PARAM_LIMIT, Integer.toString(limit));
+            return mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
+                    null, null, null);
         }
 
         /**
@@ -509,6 +627,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                         mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_INTENT_DATA));
                 int type = (TextUtils.isEmpty(url)) ? TYPE_SUGGEST : TYPE_SUGGEST_URL;
                 SuggestItem item = new SuggestItem(title, url, type);
+                item.targetUrl = url;
                 item.extra = mCursor.getString(
                         mCursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA));
                 return item;
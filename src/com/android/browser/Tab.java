@@ -32,11 +32,13 @@ import android.graphics.Paint;
 import android.graphics.Picture;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.SystemClock;
 import android.security.KeyChain;
 import android.security.KeyChainAliasCallback;
@@ -75,7 +77,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.UUID;
@@ -86,7 +87,7 @@ import java.util.zip.GZIPOutputStream;
 /**
  * Class for maintaining Tabs with a main WebView and a subwindow.
  */
-class Tab implements PictureListener {
+class Tab implements PictureListener, TabMemoryManager.ManagedTab {
 
     // Log Tag
     private static final String LOGTAG = "Tab";
@@ -152,6 +153,13 @@ class Tab implements PictureListener {
     private Vector<Tab> mChildren;
     // If true, the tab is in the foreground of the current activity.
     private boolean mInForeground;
+    // Paused and trimmed in the background by TabMemoryManager
+    private boolean mTrimmed;
+    // Marshalled size of mSavedState, -1 until measured
+    private int mSavedStateSize = -1;
+    // mSavedState is being written to or read from the TabStateStore
+    private boolean mWritingState;
+    private boolean mReadingState;
     // If true, the tab is in page loading state (after onPageStarted,
     // before onPageFinsihed)
     private boolean mInPageLoad;
@@ -862,13 +870,18 @@ class Tab implements PictureListener {
          *            deny quota has been made. Don't forget to call this!
          */
         @Override
-        public void onExceededDatabaseQuota(String url,
-            String databaseIdentifier, long currentQuota, long estimatedSize,
-            long totalUsedQuota, WebStorage.QuotaUpdater quotaUpdater) {
-            mSettings.getWebStorageSizeManager()
-                    .onExceededDatabaseQuota(url, databaseIdentifier,
+        public void onExceededDatabaseQuota(final String url,
+            final String databaseIdentifier, final long currentQuota,
+            final long estimatedSize, final long totalUsedQuota,
+            final WebStorage.QuotaUpdater quotaUpdater) {
+            mSettings.getWebStorageSizeManager(new ValueCallback<WebStorageSizeManager>() {
+                @Override
+                public void onReceiveValue(WebStorageSizeManager manager) {
+                    manager.onExceededDatabaseQuota(url, databaseIdentifier,
                             currentQuota, estimatedSize, totalUsedQuota,
                             quotaUpdater);
+                }
+            });
         }
 
         /**
@@ -882,11 +895,15 @@ class Tab implements PictureListener {
          *            WebCore thread is woken up.
          */
         @Override
-        public void onReachedMaxAppCacheSize(long spaceNeeded,
-                long totalUsedQuota, WebStorage.QuotaUpdater quotaUpdater) {
-            mSettings.getWebStorageSizeManager()
-                    .onReachedMaxAppCacheSize(spaceNeeded, totalUsedQuota,
+        public void onReachedMaxAppCacheSize(final long spaceNeeded,
+                final long totalUsedQuota, final WebStorage.QuotaUpdater quotaUpdater) {
+            mSettings.getWebStorageSizeManager(new ValueCallback<WebStorageSizeManager>() {
+                @Override
+                public void onReceiveValue(WebStorageSizeManager manager) {
+                    manager.onReachedMaxAppCacheSize(spaceNeeded, totalUsedQuota,
                             quotaUpdater);
+                }
+            });
         }
 
         /**
@@ -1281,6 +1298,8 @@ class Tab implements PictureListener {
         }
         // set the new one
         mMainView = w;
+        mTrimmed = false;
+        mSavedStateSize = -1;
         // attach the WebViewClient, WebChromeClient and DownloadListener
         if (mMainView != null) {
             mMainView.setWebViewClient(mWebViewClient);
@@ -1296,18 +1315,61 @@ class Tab implements PictureListener {
                 mMainView.setPictureListener(this);
             }
             if (restore && (mSavedState != null)) {
-                restoreUserAgent();
-                WebBackForwardList restoredState
-                        = mMainView.restoreState(mSavedState);
-                if (restoredState == null || restoredState.getSize() == 0) {
-                    Log.w(LOGTAG, "Failed to restore WebView state!");
-                    loadUrl(mCurrentState.mOriginalUrl, null);
+                if (mSavedState.containsKey(TabStateStore.STATE_FILE)
+                        || mSavedState.containsKey(CrashRecoveryJournal.STATE_HASH)) {
+                    readSavedState(w);
+                } else {
+                    restoreSavedState();
                 }
-                mSavedState = null;
             }
         }
     }
 
+    /**
+     * Reads a state moved to the TabStateStore or restored lazily from
+     * crash recovery in the background, then restores it into the given
+     * WebView unless it was replaced or navigated meanwhile.
+     */
+    private void readSavedState(final WebView view) {
+        final Bundle stub = mSavedState;
+        mReadingState = true;
+        ValueCallback<Bundle> callback = new ValueCallback<Bundle>() {
+            @Override
+            public void onReceiveValue(Bundle state) {
+                mReadingState = false;
+                if (mSavedState != stub) {
+                    return;
+                }
+                // Keep the state in memory even if it isn't restored now,
+                // the file was released
+                mSavedState = state;
+                if (mMainView == view && view.copyBackForwardList().getSize() == 0) {
+                    restoreSavedState();
+                }
+            }
+        };
+        CrashRecoveryHandler crashRecovery = CrashRecoveryHandler.getInstance();
+        if (stub.containsKey(TabStateStore.STATE_FILE)) {
+            TabStateStore.getInstance(mContext).read(stub, callback);
+        } else if (crashRecovery != null) {
+            crashRecovery.inflateTabState(stub, callback);
+        } else {
+            stub.remove(CrashRecoveryJournal.STATE_HASH);
+            callback.onReceiveValue(stub);
+        }
+    }
+
+    private void restoreSavedState() {
+        restoreUserAgent();
+        WebBackForwardList restoredState
+                = mMainView.restoreState(mSavedState);
+        if (restoredState == null || restoredState.getSize() == 0) {
+            Log.w(LOGTAG, "Failed to restore WebView state!");
+            loadUrl(mCurrentState.mOriginalUrl, null);
+        }
+        mSavedState = null;
+    }
+
     /**
      * Destroy the tab's main WebView and subWindow if any
      */
@@ -1474,6 +1536,7 @@ class Tab implements PictureListener {
             return;
         }
         mInForeground = true;
+        mTrimmed = false;
         resume();
         Activity activity = mWebViewController.getActivity();
         mMainView.setOnCreateContextMenuListener(activity);
@@ -1504,6 +1567,87 @@ class Tab implements PictureListener {
         return mInForeground;
     }
 
+    @Override
+    public int getTier() {
+        if (mMainView != null) {
+            return mTrimmed ? TabMemoryManager.TIER_PAUSED : TabMemoryManager.TIER_LIVE;
+        }
+        // A state being written counts as on disk, demoting it again waits
+        if (mWritingState || (mSavedState != null
+                && (mSavedState.containsKey(TabStateStore.STATE_FILE)
+                || mSavedState.containsKey(CrashRecoveryJournal.STATE_HASH)))) {
+            return TabMemoryManager.TIER_ON_DISK;
+        }
+        return TabMemoryManager.TIER_SERIALIZED;
+    }
+
+    @Override
+    public long getMemoryEstimate() {
+        switch (getTier()) {
+            case TabMemoryManager.TIER_LIVE:
+            case TabMemoryManager.TIER_PAUSED:
+                int width = mMainView.getWidth();
+                int height = mMainView.getHeight();
+                if (width == 0 || height == 0) {
+                    // Never laid out, assume it fills the screen
+                    width = mContext.getResources().getDisplayMetrics().widthPixels;
+                    height = mContext.getResources().getDisplayMetrics().heightPixels;
+                }
+                return TabMemoryManager.estimateWebView(width, height, mTrimmed);
+            case TabMemoryManager.TIER_SERIALIZED:
+                if (mSavedStateSize < 0 && mSavedState != null) {
+                    Parcel p = Parcel.obtain();
+                    mSavedState.writeToParcel(p, 0);
+                    mSavedStateSize = p.dataSize();
+                    p.recycle();
+                }
+                return Math.max(mSavedStateSize, 0);
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void demote(int tier) {
+        if (mInForeground) {
+            return;
+        }
+        if (mMainView != null && !mTrimmed) {
+            pause();
+            mMainView.freeMemory();
+            mTrimmed = true;
+        }
+        // A tab without a url yet has no state to come back to, keep it
+        if (tier >= TabMemoryManager.TIER_SERIALIZED && mMainView != null
+                && saveState() != null) {
+            destroy();
+        }
+        if (tier >= TabMemoryManager.TIER_ON_DISK && mSavedState != null
+                && getTier() != TabMemoryManager.TIER_ON_DISK) {
+            writeSavedState();
+        }
+    }
+
+    /**
+     * Writes mSavedState to the TabStateStore in the background and keeps
+     * its stub in its place, unless the tab was restored meanwhile.
+     */
+    private void writeSavedState() {
+        final Bundle state = mSavedState;
+        mWritingState = true;
+        TabStateStore.getInstance(mContext).write(mId, state, new ValueCallback<Bundle>() {
+            @Override
+            public void onReceiveValue(Bundle stub) {
+                mWritingState = false;
+                if (mSavedState == state) {
+                    mSavedState = stub;
+                } else if (stub.containsKey(TabStateStore.STATE_FILE)) {
+                    TabStateStore.getInstance(mContext).delete(mId);
+                }
+            }
+        });
+    }
+
     /**
      * Return the top window of this tab; either the subwindow if it is not
      * null or the main window.
@@ -1705,8 +1849,9 @@ class Tab implements PictureListener {
      */
     public Bundle saveState() {
         // If the WebView is null it means we ran low on memory and we already
-        // stored the saved state in mSavedState.
-        if (mMainView == null) {
+        // stored the saved state in mSavedState. The same while it is read
+        // back into an empty WebView.
+        if (mMainView == null || mReadingState) {
             return mSavedState;
         }
 
@@ -1762,8 +1907,24 @@ class Tab implements PictureListener {
                 DataController.getInstance(mContext).loadThumbnail(this);
             }
         }
+        if (url != null && !incognito) {
+            mDataController.loadFavicon(url, mFaviconCallback);
+        }
     }
 
+    private DataController.OnLoadFavicon mFaviconCallback
+            = new DataController.OnLoadFavicon() {
+        @Override
+        public void onLoadFavicon(String url, Bitmap favicon) {
+            // Only until the WebView reports its own
+            if (mMainView == null && mCurrentState.mFavicon == null
+                    && url.equals(mCurrentState.mUrl)) {
+                mCurrentState.mFavicon = favicon;
+                mWebViewController.onFavicon(Tab.this, null, favicon);
+            }
+        }
+    };
+
     private void restoreUserAgent() {
         if (mMainView == null || mSavedState == null) {
             return;
@@ -1982,20 +2143,21 @@ class Tab implements PictureListener {
         DataController.getInstance(mContext).deleteThumbnail(this);
     }
 
-    void updateCaptureFromBlob(byte[] blob) {
+    void updateCaptureFromBitmap(Bitmap thumbnail) {
         synchronized (Tab.this) {
             if (mCapture == null) {
                 return;
             }
-            ByteBuffer buffer = ByteBuffer.wrap(blob);
-            try {
-                mCapture.copyPixelsFromBuffer(buffer);
-            } catch (RuntimeException rex) {
-                Log.e(LOGTAG, "Load capture has mismatched sizes; buffer: "
-                        + buffer.capacity() + " blob: " + blob.length
-                        + "capture: " + mCapture.getByteCount());
-                throw rex;
+            Canvas c = new Canvas(mCapture);
+            if (thumbnail.getWidth() == mCapture.getWidth()
+                    && thumbnail.getHeight() == mCapture.getHeight()) {
+                c.drawBitmap(thumbnail, 0, 0, null);
+            } else {
+                // Captured at a different size, e.g. before a rotation
+                c.drawBitmap(thumbnail, null,
+                        new Rect(0, 0, mCapture.getWidth(), mCapture.getHeight()), null);
             }
+            c.setBitmap(null);
         }
     }
 
@@ -16,6 +16,7 @@
 
 package com.android.browser;
 
+import android.content.ComponentCallbacks2;
 import android.os.Bundle;
 import android.util.Log;
 import android.webkit.WebView;
@@ -23,7 +24,6 @@ import android.webkit.WebView;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
 
 class TabControl {
     // Log Tag
@@ -52,6 +52,8 @@ class TabControl {
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
 
+    private final TabMemoryManager mMemoryManager;
+
     /**
      * Construct a new TabControl object
      */
@@ -60,6 +62,8 @@ class TabControl {
         mMaxTabs = mController.getMaxTabs();
         mTabs = new ArrayList<Tab>(mMaxTabs);
         mTabQueue = new ArrayList<Tab>(mMaxTabs);
+        mMemoryManager = new TabMemoryManager(
+                TabMemoryManager.getDefaultBudget(mController.getContext()));
     }
 
     synchronized static long getNextId() {
@@ -259,6 +263,7 @@ class TabControl {
 
         // destroy the tab
         t.destroy();
+        TabStateStore.getInstance(mController.getContext()).delete(t.getId());
         // clear it's references to parent and children
         t.removeFromTree();
 
@@ -451,22 +456,23 @@ class TabControl {
     }
 
     /**
-     * Free the memory in this order, 1) free the background tabs; 2) free the
-     * WebView cache;
+     * Free the memory in this order, 1) demote the background tabs as far
+     * as the trim level calls for; 2) free the WebView cache;
+     *
+     * @param level A ComponentCallbacks2 TRIM_MEMORY level
      */
-    void freeMemory() {
+    void trimMemory(int level) {
         if (getTabCount() == 0) return;
 
-        // free the least frequently used background tabs
-        Vector<Tab> tabs = getHalfLeastUsedTabs(getCurrentTab());
-        if (tabs.size() > 0) {
-            Log.w(LOGTAG, "Free " + tabs.size() + " tabs in the browser");
-            for (Tab t : tabs) {
-                // store the WebView's state.
-                t.saveState();
-                // destroy the tab
-                t.destroy();
-            }
+        Tab current = getCurrentTab();
+        if (mMemoryManager.onTrimMemory(level, getDemotableTabs(current),
+                getPinnedMemory(current)) > 0) {
+            return;
+        }
+        // Not on UI_HIDDEN or BACKGROUND, which are sent every time the user
+        // leaves, for a page the user is likely to return to
+        if (level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                && level < ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
             return;
         }
 
@@ -478,38 +484,53 @@ class TabControl {
         }
     }
 
-    private Vector<Tab> getHalfLeastUsedTabs(Tab current) {
-        Vector<Tab> tabsToGo = new Vector<Tab>();
-
-        // Don't do anything if we only have 1 tab or if the current tab is
-        // null.
-        if (getTabCount() == 1 || current == null) {
-            return tabsToGo;
+    /**
+     * Demotes background tabs until their estimated memory fits the
+     * budget while memory is under pressure, see {@link TabMemoryManager}.
+     */
+    void enforceMemoryBudget() {
+        if (!mMemoryManager.isUnderPressure()) {
+            return;
         }
+        Tab current = getCurrentTab();
+        mMemoryManager.enforceBudget(getDemotableTabs(current), getPinnedMemory(current));
+    }
 
-        if (mTabQueue.size() == 0) {
-            return tabsToGo;
-        }
+    TabMemoryManager getMemoryManager() {
+        return mMemoryManager;
+    }
 
-        // Rip through the queue starting at the beginning and tear down half of
-        // available tabs which are not the current tab or the parent of the
-        // current tab.
-        int openTabCount = 0;
-        for (Tab t : mTabQueue) {
-            if (t != null && t.getWebView() != null) {
-                openTabCount++;
-                if (t != current && t != current.getParent()) {
-                    tabsToGo.add(t);
-                }
+    /**
+     * Returns the tabs other than the current tab and its parent, least
+     * recently used first. Tabs never shown come before those shown.
+     */
+    private List<Tab> getDemotableTabs(Tab current) {
+        ArrayList<Tab> tabs = new ArrayList<Tab>(mTabs.size());
+        for (Tab t : mTabs) {
+            if (!mTabQueue.contains(t)) {
+                tabs.add(t);
             }
         }
-
-        openTabCount /= 2;
-        if (tabsToGo.size() > openTabCount) {
-            tabsToGo.setSize(openTabCount);
+        tabs.addAll(mTabQueue);
+        ArrayList<Tab> demotable = new ArrayList<Tab>(tabs.size());
+        for (Tab t : tabs) {
+            if (t != current && (current == null || t != current.getParent())
+                    && !t.isSnapshot()) {
+                demotable.add(t);
+            }
         }
+        return demotable;
+    }
 
-        return tabsToGo;
+    private long getPinnedMemory(Tab current) {
+        long bytes = 0;
+        if (current != null) {
+            bytes += current.getMemoryEstimate();
+            if (current.getParent() != null) {
+                bytes += current.getParent().getMemoryEstimate();
+            }
+        }
+        return bytes;
     }
 
     Tab getLeastUsedTab(Tab current) {
@@ -677,6 +698,7 @@ class TabControl {
             newTab.setWebView(mainView);
         }
         newTab.putInForeground();
+        enforceMemoryBudget();
         return true;
     }
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Decides how much of each background tab is kept in memory.
+ *
+ * Tabs go down through four tiers, each cheaper to hold and slower to show
+ * again than the one before: a live WebView, a paused WebView whose caches
+ * were freed, the WebView state serialized in memory, and that state
+ * written to disk with only a summary kept. Tabs are demoted least
+ * recently used first, when the system asks, by as many tiers as the trim
+ * level calls for, and to keep their estimated memory under a budget.
+ * The estimates are rough, so the budget is only enforced for a while
+ * after the system reported memory pressure, see {@link #isUnderPressure}.
+ *
+ * The policy only sees {@link ManagedTab}s, so it can be tested without
+ * WebViews.
+ */
+public class TabMemoryManager {
+
+    private static final String LOGTAG = "TabMemoryManager";
+
+    public static final int TIER_LIVE = 0;
+    public static final int TIER_PAUSED = 1;
+    public static final int TIER_SERIALIZED = 2;
+    public static final int TIER_ON_DISK = 3;
+
+    // What a WebView holds besides its tiles: DOM, script heap, decoded
+    // images. A rough average, WebView doesn't report it.
+    static final long WEBVIEW_BASE_BYTES = 4 * 1024 * 1024;
+    // Tiles cover about twice the visible area at 4 bytes per pixel
+    private static final int TILE_BYTES_PER_PIXEL = 8;
+    // Share of the memory class the tabs may use
+    private static final int MEMORY_CLASS_DIVISOR = 2;
+    // How long the budget is enforced after a trim request
+    static final long PRESSURE_WINDOW_MILLIS = 60 * 1000;
+
+    public interface ManagedTab {
+        /** One of the TIER constants. */
+        int getTier();
+
+        /** Returns the memory held at the current tier, in bytes. */
+        long getMemoryEstimate();
+
+        /** Moves the tab down to the given tier, below its current one. */
+        void demote(int tier);
+    }
+
+    private long mBudget;
+    private final int[] mDemotions = new int[TIER_ON_DISK + 1];
+    private long mPressureUntil;
+
+    public static long getDefaultBudget(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        return (long) am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+    }
+
+    /**
+     * Estimates the memory of a live WebView of the given size. A paused
+     * one has freed its tiles.
+     */
+    public static long estimateWebView(int width, int height, boolean paused) {
+        long bytes = WEBVIEW_BASE_BYTES;
+        if (!paused) {
+            bytes += (long) width * height * TILE_BYTES_PER_PIXEL;
+        }
+        return bytes;
+    }
+
+    public TabMemoryManager(long budget) {
+        mBudget = budget;
+    }
+
+    public void setBudget(long budget) {
+        mBudget = budget;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Demotes tabs, one tier at a time and least recently used first,
+     * until the estimated memory is within the budget.
+     *
+     * @param tabs The tabs that may be demoted, least recently used first
+     * @param pinnedBytes Memory of the tabs that may not be, such as the
+     *        current one
+     * @return the number of demotions
+     */
+    public int enforceBudget(List<? extends ManagedTab> tabs, long pinnedBytes) {
+        long total = pinnedBytes;
+        for (ManagedTab tab : tabs) {
+            total += tab.getMemoryEstimate();
+        }
+        int demoted = 0;
+        for (int tier = TIER_PAUSED; tier <= TIER_ON_DISK && total > mBudget; tier++) {
+            for (ManagedTab tab : tabs) {
+                if (total <= mBudget) {
+                    break;
+                }
+                if (tab.getTier() < tier) {
+                    total -= tab.getMemoryEstimate();
+                    demote(tab, tier);
+                    total += tab.getMemoryEstimate();
+                    demoted++;
+                }
+            }
+        }
+        if (demoted > 0) {
+            Log.i(LOGTAG, "Demoted " + demoted + " tabs to fit " + (mBudget >> 10) + "k, "
+                    + (total >> 10) + "k left");
+        }
+        return demoted;
+    }
+
+    /**
+     * Demotes tabs as far as the trim level calls for, then enforces the
+     * budget.
+     *
+     * @param level A ComponentCallbacks2 TRIM_MEMORY level
+     * @param tabs The tabs that may be demoted, least recently used first
+     * @param pinnedBytes see {@link #enforceBudget}
+     * @return the number of demotions
+     */
+    public int onTrimMemory(int level, List<? extends ManagedTab> tabs, long pinnedBytes) {
+        if (level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mPressureUntil = SystemClock.uptimeMillis() + PRESSURE_WINDOW_MILLIS;
+        }
+        int tier = getTierForLevel(level);
+        int demoted = 0;
+        if (tier > TIER_LIVE) {
+            int count = tabs.size() - getKeptForLevel(level);
+            for (int i = 0; i < count; i++) {
+                ManagedTab tab = tabs.get(i);
+                if (tab.getTier() < tier) {
+                    demote(tab, tier);
+                    demoted++;
+                }
+            }
+            Log.w(LOGTAG, "Trim level " + level + ": demoted " + demoted
+                    + " tabs to tier " + tier);
+        }
+        return demoted + enforceBudget(tabs, pinnedBytes);
+    }
+
+    /**
+     * Returns the tier background tabs are demoted to at the trim level.
+     */
+    static int getTierForLevel(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                return TIER_PAUSED;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return TIER_SERIALIZED;
+            default:
+                // Next in line to be killed, keep as little as possible
+                return level > ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                        ? TIER_ON_DISK : TIER_LIVE;
+        }
+    }
+
+    /**
+     * Returns how many of the most recently used background tabs are
+     * spared at the trim level, so switching back to the last tab stays
+     * quick while memory is only getting low.
+     */
+    static int getKeptForLevel(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Whether the system asked to trim memory for another reason than the
+     * UI being hidden within the last {@link #PRESSURE_WINDOW_MILLIS}.
+     * Otherwise showing a tab doesn't demote the others to fit the budget.
+     */
+    public boolean isUnderPressure() {
+        return SystemClock.uptimeMillis() < mPressureUntil;
+    }
+
+    /** Returns the number of demotions to the given tier so far. */
+    public int getDemotionCount(int tier) {
+        return mDemotions[tier];
+    }
+
+    private void demote(ManagedTab tab, int tier) {
+        tab.demote(tier);
+        mDemotions[tier]++;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.util.Log;
+import android.webkit.ValueCallback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Saved states of background tabs moved out of memory by
+ * {@link TabMemoryManager}, one file per tab id.
+ *
+ * Writing a state returns a stub in its place: the summary the tab needs
+ * before it is shown (see {@link CrashRecoveryJournal}) plus
+ * {@link #STATE_FILE}. Stubs may be saved as instance or crash recovery
+ * state, so a file is only deleted once the tab no longer needs it and
+ * the crash recovery journal was written without it; the rest are pruned
+ * for tabs that weren't restored.
+ *
+ * Files are read and written in order on the background looper, which
+ * also writes the journal. Callbacks run on the UI thread.
+ */
+public class TabStateStore {
+
+    private static final String LOGTAG = "TabStateStore";
+
+    /** Key of the tab id in stubs returned by {@link #write}. */
+    public static final String STATE_FILE = "tab_state_file";
+
+    private static final String DIRECTORY = "tab_states";
+    private static final String SUFFIX = ".state";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static TabStateStore sInstance;
+
+    private final File mDirectory;
+    private final Handler mHandler = new Handler(BackgroundHandler.getLooper());
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Ids of the files no tab uses anymore, guarded by this
+    private final HashSet<Long> mReleased = new HashSet<Long>();
+
+    public static synchronized TabStateStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TabStateStore(
+                    context.getApplicationContext().getDir(DIRECTORY, 0));
+        }
+        return sInstance;
+    }
+
+    TabStateStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Writes the state of the given tab in the background, then passes
+     * its stub to the callback, or the state itself if it couldn't be
+     * written. The state is marshalled before this returns, so the caller
+     * may keep using it.
+     */
+    public void write(final long tabId, final Bundle state,
+            final ValueCallback<Bundle> callback) {
+        Parcel p = Parcel.obtain();
+        final byte[] data;
+        try {
+            p.writeBundle(state);
+            data = p.marshall();
+        } finally {
+            p.recycle();
+        }
+        final Bundle stub = CrashRecoveryJournal.summarize(state);
+        stub.putLong(STATE_FILE, tabId);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (TabStateStore.this) {
+                    mReleased.remove(tabId);
+                }
+                final boolean written = writeFile(tabId, data);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReceiveValue(written ? stub : state);
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean writeFile(long tabId, byte[] data) {
+        File temp = new File(mDirectory, tabId + TEMP_SUFFIX);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            return temp.renameTo(getFile(tabId));
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to write state of tab " + tabId, e);
+            return false;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Passes the full state of a stub returned by {@link #write} to the
+     * callback, read in the background. If the file is gone only the
+     * summary is left. The file is released, see {@link #delete}.
+     */
+    public void read(final Bundle stub, final ValueCallback<Bundle> callback) {
+        if (!stub.containsKey(STATE_FILE)) {
+            callback.onReceiveValue(stub);
+            return;
+        }
+        final long tabId = stub.getLong(STATE_FILE);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bundle read = readFile(tabId);
+                release(tabId);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Bundle state = read != null ? read : new Bundle();
+                        // The stub may have been modified since it was
+                        // written, it is only read on the UI thread
+                        state.putAll(stub);
+                        state.remove(STATE_FILE);
+                        callback.onReceiveValue(state);
+                    }
+                });
+            }
+        });
+    }
+
+    private Bundle readFile(long tabId) {
+        File file = getFile(tabId);
+        Parcel p = Parcel.obtain();
+        try {
+            FileInputStream in = new FileInputStream(file);
+            byte[] data;
+            try {
+                data = new byte[(int) file.length()];
+                int read = 0;
+                while (read < data.length) {
+                    int count = in.read(data, read, data.length - read);
+                    if (count < 0) {
+                        throw new IOException("Truncated " + file);
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read " + file, e);
+            return null;
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * Releases the file of a tab that was closed. It is deleted once the
+     * crash recovery journal no longer refers to it, see
+     * {@link #onJournalWritten}.
+     */
+    public void delete(long tabId) {
+        release(tabId);
+    }
+
+    private synchronized void release(long tabId) {
+        mReleased.add(tabId);
+    }
+
+    /**
+     * Deletes the released files the given crash recovery state doesn't
+     * refer to. Called once the state was written, with an empty state
+     * once the journal was cleared.
+     */
+    public void onJournalWritten(Bundle state) {
+        HashSet<Long> referenced = new HashSet<Long>();
+        for (String key : state.keySet()) {
+            Object value = state.get(key);
+            if (value instanceof Bundle && ((Bundle) value).containsKey(STATE_FILE)) {
+                referenced.add(((Bundle) value).getLong(STATE_FILE));
+            }
+        }
+        synchronized (this) {
+            Iterator<Long> it = mReleased.iterator();
+            while (it.hasNext()) {
+                long tabId = it.next();
+                if (!referenced.contains(tabId)) {
+                    getFile(tabId).delete();
+                    it.remove();
+                }
+            }
+        }
+    }
+    /**
+     * Deletes the states of every tab not in keepIds, or all of them if
+     * keepIds is null.
+     */
+    public void prune(Collection<Long> keepIds) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (keepIds != null && name.endsWith(SUFFIX)) {
+                try {
+                    long id = Long.parseLong(
+                            name.substring(0, name.length() - SUFFIX.length()));
+                    if (keepIds.contains(id)) {
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not ours, delete it
+                }
+            }
+            file.delete();
+        }
+    }
+
+    private File getFile(long tabId) {
+        return new File(mDirectory, tabId + SUFFIX);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Stores tab thumbnails as compressed files keyed by tab id, outside of
+ * the browser database. Files are written to a temporary name and renamed
+ * so a crash never leaves a partially written thumbnail behind.
+ */
+public class ThumbnailStore {
+
+    private static final String LOGTAG = "ThumbnailStore";
+
+    private static final String DIRECTORY = "thumbnails";
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int QUALITY = 80;
+
+    private static ThumbnailStore sInstance;
+
+    private final File mDirectory;
+
+    public static synchronized ThumbnailStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailStore(
+                    context.getApplicationContext().getDir(DIRECTORY, 0));
+        }
+        return sInstance;
+    }
+
+    ThumbnailStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Compresses and stores the capture for the given tab, replacing any
+     * previous thumbnail.
+     */
+    public boolean save(long tabId, Bitmap capture) {
+        File temp = new File(mDirectory, tabId + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            if (!capture.compress(Bitmap.CompressFormat.JPEG, QUALITY, out)) {
+                return false;
+            }
+            out.close();
+            out = null;
+            return temp.renameTo(getFile(tabId));
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to save thumbnail for tab " + tabId, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns the stored thumbnail of the given tab, or null if there is none.
+     */
+    public Bitmap load(long tabId) {
+        File file = getFile(tabId);
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    public void delete(long tabId) {
+        getFile(tabId).delete();
+    }
+
+    /**
+     * Deletes the thumbnails of every tab not in keepIds, or all of them if
+     * keepIds is null.
+     */
+    public void prune(Collection<Long> keepIds) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Being written by save()
+                continue;
+            }
+            if (keepIds != null && name.endsWith(SUFFIX)) {
+                try {
+                    long id = Long.parseLong(
+                            name.substring(0, name.length() - SUFFIX.length()));
+                    if (keepIds.contains(id)) {
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not ours, delete it
+                }
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the total size of the stored thumbnails in bytes.
+     */
+    public long getSize() {
+        File[] files = mDirectory.listFiles();
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private File getFile(long tabId) {
+        return new File(mDirectory, tabId + SUFFIX);
+    }
+}
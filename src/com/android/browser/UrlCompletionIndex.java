@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
+import android.provider.BrowserContract;
+
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.provider.Frecency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * In-memory prefix index of the highest ranked history and bookmark urls,
+ * so omnibox completions don't need a provider round trip per keystroke.
+ *
+ * Keys (the url without scheme and "www.", and the first few title words)
+ * are kept in a sorted array; a lookup is a binary search followed by a
+ * walk over the matching range, keeping the highest frecency. The index
+ * holds at most {@link #MAX_ENTRIES} urls, is loaded from the omnibox
+ * suggestions view in the background and kept current by
+ * {@link DataController}. Callers complete short results from the
+ * provider, whose full-text index covers the rest of the history.
+ */
+public class UrlCompletionIndex {
+
+    static final int MAX_ENTRIES = 1000;
+    private static final int MAX_TITLE_KEYS = 4;
+
+    // Delay before reloading after the provider reports a change, so that
+    // bursts of writes cause one reload
+    private static final long RELOAD_DELAY_MILLIS = 5000;
+    private static final int MSG_RELOAD = 1;
+
+    private static final String[] LOAD_PROJECTION = new String[] {
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.IS_BOOKMARK,
+            OmniboxSuggestions.FRECENCY,
+    };
+
+    private static UrlCompletionIndex sInstance;
+
+    static class Entry {
+        String url;
+        String title;
+        boolean bookmark;
+        // Bookmarks carry Frecency.BOOKMARK, as in the suggestions view
+        double frecency;
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // Guarded by this
+    private HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private String[] mKeys = new String[0];
+    private Entry[] mKeyEntries = new Entry[0];
+    private int mKeyCount;
+    private boolean mLoaded;
+
+    public static synchronized UrlCompletionIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UrlCompletionIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UrlCompletionIndex(Context context) {
+        mContext = context;
+        mHandler = new Handler(BackgroundHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_RELOAD) {
+                    load();
+                }
+            }
+        };
+        // Visits and titles reach the index through recordVisit and
+        // updateTitle, and every visit notifies History, so only bookmark
+        // changes and history removals, which the provider reports on the
+        // suggestions uri, reload it
+        ContentObserver observer = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleReload(RELOAD_DELAY_MILLIS);
+            }
+        };
+        ContentResolver cr = mContext.getContentResolver();
+        cr.registerContentObserver(BrowserContract.Bookmarks.CONTENT_URI, true, observer);
+        cr.registerContentObserver(OmniboxSuggestions.CONTENT_URI, true, observer);
+        scheduleReload(0);
+    }
+
+    private void scheduleReload(long delay) {
+        mHandler.removeMessages(MSG_RELOAD);
+        mHandler.sendEmptyMessageDelayed(MSG_RELOAD, delay);
+    }
+
+    /**
+     * Whether the initial load has finished; until then callers should fall
+     * back to querying the provider.
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    void load() {
+        ContentResolver cr = mContext.getContentResolver();
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT,
+                        Integer.toString(MAX_ENTRIES))
+                .build();
+        HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        Cursor c = null;
+        try {
+            c = cr.query(uri, LOAD_PROJECTION, null, null, null);
+            if (c == null) {
+                return;
+            }
+            while (c.moveToNext()) {
+                String url = c.getString(0);
+                if (url == null || entries.containsKey(url)) {
+                    continue;
+                }
+                Entry e = new Entry();
+                e.url = url;
+                e.title = c.getString(1);
+                e.bookmark = c.getInt(2) != 0;
+                e.frecency = c.getDouble(3);
+                entries.put(url, e);
+            }
+        } finally {
+            if (c != null) c.close();
+        }
+        synchronized (this) {
+            mEntries = entries;
+            rebuildKeys();
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Records a visit to the given url, adding it to the index if needed.
+     */
+    public synchronized void recordVisit(String url) {
+        if (!mLoaded || url == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry e = mEntries.get(url);
+        if (e != null) {
+            if (!e.bookmark) {
+                e.frecency = Frecency.visit(e.frecency, now);
+            }
+            return;
+        }
+        e = new Entry();
+        e.url = url;
+        e.title = url;
+        e.frecency = Frecency.visit(Frecency.NONE, now);
+        if (mEntries.size() >= MAX_ENTRIES && !evictLowest(e.frecency)) {
+            return;
+        }
+        mEntries.put(url, e);
+        addKeys(e);
+    }
+
+    /**
+     * Updates the title of an indexed url.
+     */
+    public synchronized void updateTitle(String url, String title) {
+        Entry e = mEntries.get(url);
+        if (e == null || title == null || title.equals(e.title)) {
+            return;
+        }
+        removeKeys(e);
+        e.title = title;
+        addKeys(e);
+    }
+
+    /**
+     * Returns up to max entries matching the typed text, best first.
+     */
+    public synchronized List<Entry> query(CharSequence constraint, int max) {
+        ArrayList<Entry> results = new ArrayList<Entry>(max);
+        if (constraint == null || max <= 0) {
+            return results;
+        }
+        String prefix = normalizeUrl(constraint.toString());
+        if (prefix.length() == 0) {
+            return results;
+        }
+        int start = lowerBound(prefix);
+        for (int i = start; i < mKeyCount && mKeys[i].startsWith(prefix); i++) {
+            Entry e = mKeyEntries[i];
+            if (results.contains(e)) {
+                continue;
+            }
+            // Keep results sorted by frecency, dropping the lowest when full
+            int pos = results.size();
+            while (pos > 0 && results.get(pos - 1).frecency < e.frecency) {
+                pos--;
+            }
+            if (pos < max) {
+                results.add(pos, e);
+                if (results.size() > max) {
+                    results.remove(max);
+                }
+            }
+        }
+        return results;
+    }
+
+    private boolean evictLowest(double frecency) {
+        Entry lowest = null;
+        for (Entry e : mEntries.values()) {
+            if (lowest == null || e.frecency < lowest.frecency) {
+                lowest = e;
+            }
+        }
+        if (lowest == null || lowest.frecency >= frecency) {
+            return false;
+        }
+        mEntries.remove(lowest.url);
+        removeKeys(lowest);
+        return true;
+    }
+
+    private void removeKeys(Entry e) {
+        int n = 0;
+        for (int i = 0; i < mKeyCount; i++) {
+            if (mKeyEntries[i] != e) {
+                mKeys[n] = mKeys[i];
+                mKeyEntries[n] = mKeyEntries[i];
+                n++;
+            }
+        }
+        Arrays.fill(mKeys, n, mKeyCount, null);
+        Arrays.fill(mKeyEntries, n, mKeyCount, null);
+        mKeyCount = n;
+    }
+
+    /**
+     * Replaces all keys with those of the current entries, sorted once
+     * rather than inserted one by one.
+     */
+    private void rebuildKeys() {
+        final ArrayList<String> keys = new ArrayList<String>(mEntries.size() * 2);
+        ArrayList<Entry> keyEntries = new ArrayList<Entry>(mEntries.size() * 2);
+        for (Entry e : mEntries.values()) {
+            for (String key : getKeys(e)) {
+                keys.add(key);
+                keyEntries.add(e);
+            }
+        }
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return keys.get(lhs).compareTo(keys.get(rhs));
+            }
+        });
+        mKeys = new String[Math.max(16, order.length)];
+        mKeyEntries = new Entry[mKeys.length];
+        for (int i = 0; i < order.length; i++) {
+            mKeys[i] = keys.get(order[i]);
+            mKeyEntries[i] = keyEntries.get(order[i]);
+        }
+        mKeyCount = order.length;
+    }
+
+    private void addKeys(Entry e) {
+        for (String key : getKeys(e)) {
+            insertKey(key, e);
+        }
+    }
+
+    private static List<String> getKeys(Entry e) {
+        ArrayList<String> keys = new ArrayList<String>(1 + MAX_TITLE_KEYS);
+        keys.add(normalizeUrl(e.url));
+        if (e.title == null || e.title.equals(e.url)) {
+            return keys;
+        }
+        // Same locale as normalizeUrl, which the typed text goes through
+        String[] words = e.title.toLowerCase(Locale.US).split("\\s+");
+        for (int i = 0; i < words.length && keys.size() <= MAX_TITLE_KEYS; i++) {
+            if (words[i].length() > 0) {
+                keys.add(words[i]);
+            }
+        }
+        return keys;
+    }
+
+    private void insertKey(String key, Entry e) {
+        if (mKeyCount == mKeys.length) {
+            int size = Math.max(16, mKeyCount * 2);
+            mKeys = Arrays.copyOf(mKeys, size);
+            mKeyEntries = Arrays.copyOf(mKeyEntries, size);
+        }
+        int pos = lowerBound(key);
+        System.arraycopy(mKeys, pos, mKeys, pos + 1, mKeyCount - pos);
+        System.arraycopy(mKeyEntries, pos, mKeyEntries, pos + 1, mKeyCount - pos);
+        mKeys[pos] = key;
+        mKeyEntries[pos] = e;
+        mKeyCount++;
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = mKeyCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mKeys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Lower cases the url and strips the scheme and "www." so that typed
+     * text matches regardless of how the page was reached.
+     */
+    static String normalizeUrl(String url) {
+        String s = url.toLowerCase(Locale.US);
+        if (s.startsWith("http://")) {
+            s = s.substring(7);
+        } else if (s.startsWith("https://")) {
+            s = s.substring(8);
+        }
+        if (s.startsWith("www.")) {
+            s = s.substring(4);
+        }
+        return s;
+    }
+}
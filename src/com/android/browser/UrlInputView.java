@@ -254,6 +254,7 @@ public class UrlInputView extends AutoCompleteTextView
         mNeedsUpdate = true;
         dismissDropDown();
         mInputManager.hideSoftInputFromWindow(getWindowToken(), 0);
+        NavigationPredictor.getInstance(mContext).onInputFinished(url);
         if (TextUtils.isEmpty(url)) {
             mListener.onDismiss();
         } else {
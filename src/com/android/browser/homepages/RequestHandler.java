@@ -30,6 +30,7 @@ import android.util.Log;
 
 import com.android.browser.R;
 import com.android.browser.homepages.Template.ListEntityIterator;
+import com.android.browser.provider.Frecency;
 
 import java.io.File;
 import java.io.IOException;
@@ -110,7 +111,7 @@ public class RequestHandler extends Thread {
         Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
         Cursor historyResults = mContext.getContentResolver().query(
                 History.CONTENT_URI, PROJECTION, SELECTION,
-                null, History.VISITS + " DESC LIMIT 12");
+                null, Frecency.COLUMN + " DESC LIMIT 12");
         Cursor cursor = historyResults;
         try {
             if (cursor.getCount() < 12) {
@@ -35,7 +35,10 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
 import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.Browser.BookmarkColumns;
@@ -53,6 +56,7 @@ import android.provider.ContactsContract.RawContacts;
 import android.provider.SyncStateContract;
 import android.text.TextUtils;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.R;
 import com.android.browser.UrlUtils;
 import com.android.browser.widget.BookmarkThumbnailWidgetProvider;
@@ -63,6 +67,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -70,11 +75,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     public static final String PARAM_GROUP_BY = "groupBy";
     public static final String PARAM_ALLOW_EMPTY_ACCOUNTS = "allowEmptyAccounts";
+    // Names the url whose images changed in Images.CONTENT_URI notifications
+    public static final String PARAM_IMAGE_URL = "url";
 
     public static final String LEGACY_AUTHORITY = "browser";
     static final Uri LEGACY_AUTHORITY_URI = new Uri.Builder()
             .authority(LEGACY_AUTHORITY).scheme("content").build();
 
+    /**
+     * Legacy thumbnail table, tab thumbnails are kept by
+     * {@link com.android.browser.ThumbnailStore}.
+     */
     public static interface Thumbnails {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(
                 BrowserContract.AUTHORITY_URI, "thumbnails");
@@ -89,6 +100,72 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String URL = "url";
         public static final String TITLE = "title";
         public static final String IS_BOOKMARK = "bookmark";
+        public static final String FRECENCY = Frecency.COLUMN;
+        /**
+         * Query parameter holding the raw text typed by the user. When set,
+         * suggestions are matched against the full-text index of titles
+         * and url tokens instead of the selection.
+         */
+        public static final String QUERY_PARAMETER_MATCH = "match";
+    }
+
+    /**
+     * Extra bookmark, history and combined columns telling whether a url has
+     * each image, for listings that load the images themselves separately.
+     */
+    public static interface ImagePresence {
+        public static final String HAS_FAVICON = "has_favicon";
+        public static final String HAS_THUMBNAIL = "has_thumbnail";
+        public static final String HAS_TOUCH_ICON = "has_touch_icon";
+        /**
+         * Changes whenever any image of the url is written, so that copies
+         * of the images made elsewhere can be keyed by it. Also a column of
+         * {@link Images}.
+         */
+        public static final String IMAGE_VERSION = "image_version";
+    }
+
+    /**
+     * Inserting {@link History#URL} here records {@link History#VISITS}
+     * visits (default 1) at {@link History#DATE_LAST_VISITED} (default now),
+     * updating the url's history row or creating it. An optional
+     * {@link History#TITLE} is applied as well.
+     */
+    public static interface HistoryVisits {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "history/visit");
+    }
+
+    /**
+     * Number of history rows visited in each date bucket, one row per
+     * non-empty bucket. Bucket i holds the rows visited after the i-th
+     * of the {@link #PARAM_BOUNDARIES}, and not after any earlier one; the
+     * last bucket holds the rest. Use the selection to filter the rows,
+     * e.g. on {@link History#VISITS}.
+     */
+    public static interface HistoryBuckets {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "history/buckets");
+        /** Comma separated, descending times, as from DateSorter.getBoundary(). */
+        public static final String PARAM_BOUNDARIES = "boundaries";
+        public static final String BUCKET = "bucket";
+        public static final String COUNT = "_count";
+    }
+
+    /**
+     * History rows with the columns of {@link Combined}, newest first, read
+     * one page at a time. Pass the {@link #HISTORY_ID} and
+     * {@link Combined#DATE_LAST_VISITED} of the last row of the previous
+     * page as {@link #PARAM_AFTER_ID} and {@link #PARAM_AFTER_DATE}, and the
+     * page size as {@link BrowserContract#PARAM_LIMIT}.
+     */
+    public static interface HistoryWindow {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "history/window");
+        /** The history row id, {@link Combined#_ID} may be a bookmark's. */
+        public static final String HISTORY_ID = "history_id";
+        public static final String PARAM_AFTER_DATE = "afterDate";
+        public static final String PARAM_AFTER_ID = "afterId";
     }
 
     static final String TABLE_BOOKMARKS = "bookmarks";
@@ -99,6 +176,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
+    static final String TABLE_IMAGE_PRUNE_QUEUE = "image_prune_queue";
+    static final String TABLE_HISTORY_FTS = "history_fts";
+    static final String TABLE_BOOKMARKS_FTS = "bookmarks_fts";
+    // Not "combined", the name of the view of older versions
+    static final String TABLE_COMBINED = "combined_rows";
 
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
@@ -119,6 +201,62 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             Accounts.ACCOUNT_NAME + " IS NOT NULL DESC, "
             + Accounts.ACCOUNT_NAME + " ASC";
 
+    // Rows of the combined table with the columns of the combined query
+    static final String COMBINED_TABLE_SUBQUERY = "(SELECT "
+            + TABLE_COMBINED + "." + Combined._ID + " AS " + Combined._ID + ", "
+            + Combined.TITLE + ", "
+            + TABLE_COMBINED + "." + Combined.URL + " AS " + Combined.URL + ", "
+            + Combined.DATE_CREATED + ", "
+            + Combined.DATE_LAST_VISITED + ", "
+            + Combined.IS_BOOKMARK + ", "
+            + Combined.VISITS + ", "
+            + Combined.FAVICON + ", "
+            + Combined.THUMBNAIL + ", "
+            + Combined.TOUCH_ICON + ", "
+            + "NULL AS " + Combined.USER_ENTERED + ", "
+            + "(" + Images.FAVICON + " IS NOT NULL) AS " + ImagePresence.HAS_FAVICON + ", "
+            + "(" + Images.THUMBNAIL + " IS NOT NULL) AS " + ImagePresence.HAS_THUMBNAIL + ", "
+            + "(" + Images.TOUCH_ICON + " IS NOT NULL) AS " + ImagePresence.HAS_TOUCH_ICON + ", "
+            + ImagePresence.IMAGE_VERSION
+            + " FROM " + TABLE_COMBINED + " LEFT OUTER JOIN " + TABLE_IMAGES
+            + " ON " + TABLE_COMBINED + "." + Combined.URL + " = " + TABLE_IMAGES + "."
+            + Images.URL + ")";
+
+    private static final String COMBINED_TABLE_COLUMNS = Combined._ID + ", "
+            + Combined.TITLE + ", " + Combined.URL + ", " + Combined.DATE_CREATED + ", "
+            + Combined.DATE_LAST_VISITED + ", " + Combined.IS_BOOKMARK + ", "
+            + Combined.VISITS;
+
+    // The history half of the combined query, %s restricts the history rows
+    private static final String FORMAT_INSERT_COMBINED_HISTORY = "INSERT INTO "
+            + TABLE_COMBINED + " (" + COMBINED_TABLE_COLUMNS + ") SELECT "
+            + "CASE WHEN bookmarks._id IS NOT NULL THEN bookmarks._id"
+            + " ELSE history._id END, "
+            + "CASE WHEN bookmarks.title IS NOT NULL THEN bookmarks.title"
+            + " ELSE history.title END, "
+            + "history.url, history.created, history.date, "
+            + "bookmarks._id IS NOT NULL, history.visits"
+            + " FROM history LEFT OUTER JOIN (SELECT _id, title, url FROM bookmarks"
+            + " WHERE deleted = 0) bookmarks ON history.url = bookmarks.url%s";
+
+    // The bookmark half of the combined query, %s restricts the bookmarks
+    private static final String FORMAT_INSERT_COMBINED_BOOKMARKS = "INSERT INTO "
+            + TABLE_COMBINED + " (" + COMBINED_TABLE_COLUMNS + ")"
+            + " SELECT _id, title, url, created, NULL, 1, 0 FROM bookmarks"
+            + " WHERE deleted = 0 AND url NOT IN (SELECT url FROM history)%s";
+
+    /**
+     * Returns the statements that rebuild the combined table rows of the
+     * url given by the SQL expression url.
+     */
+    static String getRefreshCombinedSql(String url) {
+        return "DELETE FROM " + TABLE_COMBINED + " WHERE " + Combined.URL + " = " + url
+                + "; " + String.format(FORMAT_INSERT_COMBINED_HISTORY,
+                        " WHERE history.url = " + url)
+                + "; " + String.format(FORMAT_INSERT_COMBINED_BOOKMARKS,
+                        " AND url = " + url) + ";";
+    }
+
     private static final String TABLE_BOOKMARKS_JOIN_HISTORY =
         "history LEFT OUTER JOIN bookmarks ON history.url = bookmarks.url";
 
@@ -135,13 +273,34 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             "history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
             + " OR history.title LIKE ? OR bookmarks.title LIKE ?";
 
+    private static final String SUGGEST_FTS_SELECTION =
+            "history._id IN (SELECT docid FROM history_fts WHERE history_fts MATCH ?)"
+            + " OR bookmarks._id IN"
+            + " (SELECT docid FROM bookmarks_fts WHERE bookmarks_fts MATCH ?)";
+
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
+    // Only ever evaluated for the url_keys in the prune queue, so each
+    // check is an index lookup rather than a scan of bookmarks and history
     private static final String IMAGE_PRUNE =
-            "url_key NOT IN (SELECT url FROM bookmarks " +
-            "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
-            "(SELECT url FROM history WHERE url IS NOT NULL)";
+            "url_key = ? AND NOT EXISTS (SELECT 1 FROM bookmarks " +
+            "WHERE url = url_key AND deleted == 0) AND NOT EXISTS " +
+            "(SELECT 1 FROM history WHERE url = url_key)";
+
+    // Number of queued urls checked per prune pass
+    static final int IMAGE_PRUNE_BATCH_SIZE = 100;
+    // Delay before draining the queue, so bursts of writes share one pass
+    static final long IMAGE_PRUNE_DELAY_MILLIS = 5000;
+    private static final int MSG_PRUNE_IMAGES = 1;
+
+    // History is truncated to MAX_HISTORY_COUNT rows, oldest first, once
+    // every HISTORY_TRUNCATE_INTERVAL new urls rather than on every insert
+    static final int MAX_HISTORY_COUNT = 250;
+    static final int HISTORY_TRUNCATE_INTERVAL = 16;
+
+    // Rows of a top-k omnibox suggestions query with a malformed limit
+    static final int DEFAULT_OMNIBOX_SUGGESTIONS_LIMIT = 20;
 
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
@@ -156,6 +315,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
     static final int HISTORY = 2000;
     static final int HISTORY_ID = 2001;
+    static final int HISTORY_VISIT = 2002;
+    static final int HISTORY_BUCKETS = 2003;
+    static final int HISTORY_WINDOW = 2004;
 
     static final int SEARCHES = 3000;
     static final int SEARCHES_ID = 3001;
@@ -195,6 +357,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final HashMap<String, String> IMAGES_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> COMBINED_HISTORY_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> COMBINED_BOOKMARK_PROJECTION_MAP = new HashMap<String, String>();
+    static final HashMap<String, String> HISTORY_WINDOW_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> SEARCHES_PROJECTION_MAP = new HashMap<String, String>();
     static final HashMap<String, String> SETTINGS_PROJECTION_MAP = new HashMap<String, String>();
 
@@ -215,6 +378,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 BOOKMARKS_SUGGESTIONS);
         matcher.addURI(authority, "history", HISTORY);
         matcher.addURI(authority, "history/#", HISTORY_ID);
+        matcher.addURI(authority, "history/visit", HISTORY_VISIT);
+        matcher.addURI(authority, "history/buckets", HISTORY_BUCKETS);
+        matcher.addURI(authority, "history/window", HISTORY_WINDOW);
         matcher.addURI(authority, "searches", SEARCHES);
         matcher.addURI(authority, "searches/#", SEARCHES_ID);
         matcher.addURI(authority, "syncstate", SYNCSTATE);
@@ -273,6 +439,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Bookmarks.SYNC3, Bookmarks.SYNC3);
         map.put(Bookmarks.SYNC4, Bookmarks.SYNC4);
         map.put(Bookmarks.SYNC5, Bookmarks.SYNC5);
+        putImagePresence(map);
         map.put(Bookmarks.PARENT_SOURCE_ID, "(SELECT " + Bookmarks.SOURCE_ID +
                 " FROM " + TABLE_BOOKMARKS + " A WHERE " +
                 "A." + Bookmarks._ID + "=" + TABLE_BOOKMARKS + "." + Bookmarks.PARENT +
@@ -310,6 +477,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
         map.put(History.USER_ENTERED, History.USER_ENTERED);
+        map.put(Frecency.COLUMN, Frecency.COLUMN);
+        putImagePresence(map);
 
         // Sync state
         map = SYNC_STATE_PROJECTION_MAP;
@@ -324,6 +493,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Images.FAVICON, Images.FAVICON);
         map.put(Images.THUMBNAIL, Images.THUMBNAIL);
         map.put(Images.TOUCH_ICON, Images.TOUCH_ICON);
+        map.put(ImagePresence.IMAGE_VERSION, ImagePresence.IMAGE_VERSION);
 
         // Combined history half
         map = COMBINED_HISTORY_PROJECTION_MAP;
@@ -340,6 +510,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
         map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
+        putImagePresence(map);
+
+        // History window
+        HISTORY_WINDOW_PROJECTION_MAP.putAll(COMBINED_HISTORY_PROJECTION_MAP);
+        HISTORY_WINDOW_PROJECTION_MAP.put(HistoryWindow.HISTORY_ID,
+                TABLE_HISTORY + "." + History._ID + " AS " + HistoryWindow.HISTORY_ID);
 
         // Combined bookmark half
         map = COMBINED_BOOKMARK_PROJECTION_MAP;
@@ -354,6 +530,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(Combined.THUMBNAIL, Combined.THUMBNAIL);
         map.put(Combined.TOUCH_ICON, Combined.TOUCH_ICON);
         map.put(Combined.USER_ENTERED, "NULL AS " + Combined.USER_ENTERED);
+        putImagePresence(map);
 
         // Searches
         map = SEARCHES_PROJECTION_MAP;
@@ -378,6 +555,16 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 "\" ELSE \"" + historyValue + "\" END";
     }
 
+    private static void putImagePresence(HashMap<String, String> map) {
+        map.put(ImagePresence.HAS_FAVICON, "(" + Images.FAVICON + " IS NOT NULL) AS "
+                + ImagePresence.HAS_FAVICON);
+        map.put(ImagePresence.HAS_THUMBNAIL, "(" + Images.THUMBNAIL + " IS NOT NULL) AS "
+                + ImagePresence.HAS_THUMBNAIL);
+        map.put(ImagePresence.HAS_TOUCH_ICON, "(" + Images.TOUCH_ICON + " IS NOT NULL) AS "
+                + ImagePresence.HAS_TOUCH_ICON);
+        map.put(ImagePresence.IMAGE_VERSION, ImagePresence.IMAGE_VERSION);
+    }
+
     static final String qualifyColumn(String table, String column) {
         return table + "." + column + " AS " + column;
     }
@@ -388,10 +575,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     ContentObserver mWidgetObserver = null;
     boolean mUpdateWidgets = false;
     boolean mSyncToNetwork = true;
+    boolean mPruneImages = false;
+    private Handler mPruneHandler;
+    // Starts one short of the interval so the first new url after start up
+    // checks the history size
+    int mHistoryInsertsSinceTruncate = HISTORY_TRUNCATE_INTERVAL - 1;
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 42;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -422,8 +614,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Bookmarks.SYNC5 + " TEXT" +
                     ");");
 
-            // TODO indices
-
             db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
                     History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                     History.TITLE + " TEXT," +
@@ -431,17 +621,20 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     History.DATE_CREATED + " INTEGER," +
                     History.DATE_LAST_VISITED + " INTEGER," +
                     History.VISITS + " INTEGER NOT NULL DEFAULT 0," +
-                    History.USER_ENTERED + " INTEGER" +
+                    History.USER_ENTERED + " INTEGER," +
+                    Frecency.COLUMN + " REAL NOT NULL DEFAULT 0" +
                     ");");
 
             db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
                     Images.URL + " TEXT UNIQUE NOT NULL," +
                     Images.FAVICON + " BLOB," +
                     Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
+                    Images.TOUCH_ICON + " BLOB," +
+                    ImagePresence.IMAGE_VERSION + " INTEGER NOT NULL DEFAULT 0" +
                     ");");
             db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
                     "(" + Images.URL + ")");
+            createImageVersion(db);
 
             db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
                     Searches._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -465,12 +658,177 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
             enableSync(db);
             createOmniboxSuggestions(db);
+            createIndices(db);
+            createImagePruneQueue(db);
+            createFullTextIndex(db);
+            createCombinedTable(db);
+        }
+
+        /**
+         * Indices backing the url and folder lookups done on every page load
+         * (bookmark status, visit recording, image pruning, suggestions).
+         * Partial indices would need SQLite 3.8, so the deleted flag is
+         * included as a second column instead.
+         */
+        void createIndices(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksUrlIndex ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.URL + ", "
+                    + Bookmarks.IS_DELETED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksParentIndex ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.PARENT + ", "
+                    + Bookmarks.IS_DELETED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyUrlIndex ON "
+                    + TABLE_HISTORY + "(" + History.URL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyDateIndex ON "
+                    + TABLE_HISTORY + "(" + History.DATE_LAST_VISITED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyFrecencyIndex ON "
+                    + TABLE_HISTORY + "(" + Frecency.COLUMN + ")");
         }
 
         void createOmniboxSuggestions(SQLiteDatabase db) {
             db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
         }
 
+        /**
+         * Images are shared by url between bookmarks and history. Rather
+         * than searching for orphans after every write, triggers record the
+         * urls that may have lost their last reference and
+         * {@link BrowserProvider2#pruneImages()} only checks those.
+         */
+        void createImagePruneQueue(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_IMAGE_PRUNE_QUEUE + " (" +
+                    Images.URL + " TEXT PRIMARY KEY" +
+                    ");");
+            final String enqueue = " BEGIN INSERT OR IGNORE INTO " + TABLE_IMAGE_PRUNE_QUEUE
+                    + " VALUES (%s); END";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_prune_delete"
+                    + " AFTER DELETE ON " + TABLE_HISTORY
+                    + " WHEN old.url IS NOT NULL"
+                    + String.format(enqueue, "old.url"));
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_prune_update"
+                    + " AFTER UPDATE OF url ON " + TABLE_HISTORY
+                    + " WHEN old.url IS NOT new.url"
+                    + String.format(enqueue, "old.url"));
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_prune_delete"
+                    + " AFTER DELETE ON " + TABLE_BOOKMARKS
+                    + " WHEN old.url IS NOT NULL"
+                    + String.format(enqueue, "old.url"));
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_prune_update"
+                    + " AFTER UPDATE OF url, deleted ON " + TABLE_BOOKMARKS
+                    + " WHEN old.url IS NOT NULL"
+                    + " AND (new.deleted != 0 OR old.url IS NOT new.url)"
+                    + String.format(enqueue, "old.url"));
+            // Images can be written before (or without) the row that owns them
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_prune_insert"
+                    + " AFTER INSERT ON " + TABLE_IMAGES
+                    + String.format(enqueue, "new.url_key"));
+        }
+
+        /**
+         * Stamps image rows with the time they were last written, bumped by
+         * at least one so that two writes within a millisecond still differ.
+         * A url whose images are pruned and written again gets a new stamp.
+         */
+        void createImageVersion(SQLiteDatabase db) {
+            final String now = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_version_insert"
+                    + " AFTER INSERT ON " + TABLE_IMAGES
+                    + " BEGIN UPDATE " + TABLE_IMAGES
+                    + " SET " + ImagePresence.IMAGE_VERSION + " = " + now
+                    + " WHERE " + Images.URL + " = new." + Images.URL + "; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_version_update"
+                    + " AFTER UPDATE OF " + Images.FAVICON + ", " + Images.THUMBNAIL + ", "
+                    + Images.TOUCH_ICON + " ON " + TABLE_IMAGES
+                    // Rewriting the same image keeps the cached copies valid
+                    + " WHEN old." + Images.FAVICON + " IS NOT new." + Images.FAVICON
+                    + " OR old." + Images.THUMBNAIL + " IS NOT new." + Images.THUMBNAIL
+                    + " OR old." + Images.TOUCH_ICON + " IS NOT new." + Images.TOUCH_ICON
+                    + " BEGIN UPDATE " + TABLE_IMAGES
+                    + " SET " + ImagePresence.IMAGE_VERSION + " = MAX(old."
+                    + ImagePresence.IMAGE_VERSION + " + 1, " + now + ")"
+                    + " WHERE " + Images.URL + " = new." + Images.URL + "; END");
+        }
+
+        /**
+         * FTS shadow tables of history and bookmark titles and urls, used to
+         * match omnibox input. The default tokenizer splits urls on
+         * punctuation, so host and path segments are indexed as words.
+         * Rows share the docid of their source row and are kept in sync by
+         * triggers.
+         */
+        void createFullTextIndex(SQLiteDatabase db) {
+            for (String table : new String[] { TABLE_HISTORY, TABLE_BOOKMARKS }) {
+                String fts = table + "_fts";
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + fts
+                        + " USING fts3(title, url)");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + fts + "_insert"
+                        + " AFTER INSERT ON " + table + " BEGIN"
+                        + " INSERT INTO " + fts + " (docid, title, url)"
+                        + " VALUES (new._id, new.title, new.url); END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + fts + "_update"
+                        + " AFTER UPDATE OF title, url ON " + table + " BEGIN"
+                        + " UPDATE " + fts + " SET title = new.title, url = new.url"
+                        + " WHERE docid = old._id; END");
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + fts + "_delete"
+                        + " AFTER DELETE ON " + table + " BEGIN"
+                        + " DELETE FROM " + fts + " WHERE docid = old._id; END");
+            }
+        }
+
+        /**
+         * The rows of the combined history and bookmarks query, without
+         * images, so that {@link Combined} reads are an indexed scan rather
+         * than a union of joins. It only holds the rows for bookmarks of
+         * every account; queries restricted to an account still run the
+         * union. Triggers refresh the rows of a url whenever a history or
+         * bookmark row with that url changes. Bookmark folders, which have
+         * no url, are left out.
+         */
+        void createCombinedTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_COMBINED + " (" +
+                    Combined._ID + " INTEGER," +
+                    Combined.TITLE + " TEXT," +
+                    Combined.URL + " TEXT NOT NULL," +
+                    Combined.DATE_CREATED + " INTEGER," +
+                    Combined.DATE_LAST_VISITED + " INTEGER," +
+                    Combined.IS_BOOKMARK + " INTEGER NOT NULL," +
+                    Combined.VISITS + " INTEGER NOT NULL" +
+                    ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS combinedUrlIndex ON "
+                    + TABLE_COMBINED + "(" + Combined.URL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS combinedDateIndex ON "
+                    + TABLE_COMBINED + "(" + Combined.DATE_LAST_VISITED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS combinedVisitsIndex ON "
+                    + TABLE_COMBINED + "(" + Combined.VISITS + ")");
+
+            for (String table : new String[] { TABLE_HISTORY, TABLE_BOOKMARKS }) {
+                String columns = TABLE_BOOKMARKS.equals(table)
+                        ? "title, url, created, deleted"
+                        : "title, url, created, date, visits";
+                String refresh = " BEGIN " + getRefreshCombinedSql("%1$s.url") + " END";
+                String withUrl = " WHEN %1$s.url IS NOT NULL" + refresh;
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_combined_insert"
+                        + " AFTER INSERT ON " + table
+                        + String.format(withUrl, "new"));
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_combined_update"
+                        + " AFTER UPDATE OF " + columns + " ON " + table
+                        + String.format(withUrl, "new"));
+                // A changed url also leaves the rows of the old one stale
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_combined_update_url"
+                        + " AFTER UPDATE OF url ON " + table
+                        + " WHEN old.url IS NOT NULL AND old.url IS NOT new.url"
+                        + String.format(refresh, "old"));
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_combined_delete"
+                        + " AFTER DELETE ON " + table
+                        + String.format(withUrl, "old"));
+            }
+
+            db.execSQL("DELETE FROM " + TABLE_COMBINED);
+            db.execSQL(String.format(FORMAT_INSERT_COMBINED_HISTORY, ""));
+            db.execSQL(String.format(FORMAT_INSERT_COMBINED_BOOKMARKS,
+                    " AND " + Bookmarks.URL + " IS NOT NULL"));
+        }
+
         void createThumbnails(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_THUMBNAILS + " (" +
                     Thumbnails._ID + " INTEGER PRIMARY KEY," +
@@ -602,6 +960,63 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 42 && oldVersion >= 38) {
+                // The combined table was named like the legacy view
+                for (String table : new String[] { TABLE_HISTORY, TABLE_BOOKMARKS }) {
+                    for (String trigger : new String[] {
+                            "_combined_insert", "_combined_update",
+                            "_combined_update_url", "_combined_delete" }) {
+                        db.execSQL("DROP TRIGGER IF EXISTS " + table + trigger);
+                    }
+                }
+                db.execSQL("DROP TABLE IF EXISTS combined");
+                createCombinedTable(db);
+            }
+            if (oldVersion < 41 && oldVersion >= 39) {
+                db.execSQL("DROP TRIGGER IF EXISTS images_version_update");
+                createImageVersion(db);
+            }
+            if (oldVersion < 40) {
+                db.execSQL("DROP TRIGGER IF EXISTS history_prune_delete");
+                createImagePruneQueue(db);
+            }
+            if (oldVersion < 39) {
+                db.execSQL("ALTER TABLE " + TABLE_IMAGES + " ADD COLUMN "
+                        + ImagePresence.IMAGE_VERSION + " INTEGER NOT NULL DEFAULT 0");
+                createImageVersion(db);
+            }
+            if (oldVersion < 38) {
+                createCombinedTable(db);
+            }
+            if (oldVersion < 37) {
+                // Tab thumbnails moved to ThumbnailStore
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_THUMBNAILS);
+                createThumbnails(db);
+            }
+            if (oldVersion < 36) {
+                db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN "
+                        + Frecency.COLUMN + " REAL NOT NULL DEFAULT 0");
+                backfillFrecency(db);
+                createIndices(db);
+                db.execSQL("DROP VIEW IF EXISTS " + VIEW_OMNIBOX_SUGGESTIONS);
+                createOmniboxSuggestions(db);
+            }
+            if (oldVersion < 35) {
+                createFullTextIndex(db);
+                db.execSQL("INSERT INTO " + TABLE_HISTORY_FTS + " (docid, title, url)"
+                        + " SELECT _id, title, url FROM " + TABLE_HISTORY);
+                db.execSQL("INSERT INTO " + TABLE_BOOKMARKS_FTS + " (docid, title, url)"
+                        + " SELECT _id, title, url FROM " + TABLE_BOOKMARKS);
+            }
+            if (oldVersion < 34) {
+                createImagePruneQueue(db);
+                // Check every existing image once, then only what changes
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE_IMAGE_PRUNE_QUEUE
+                        + " SELECT " + Images.URL + " FROM " + TABLE_IMAGES);
+            }
+            if (oldVersion < 33) {
+                createIndices(db);
+            }
             if (oldVersion < 32) {
                 createOmniboxSuggestions(db);
             }
@@ -627,11 +1042,32 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCHES);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SETTINGS);
+                // Built from the dropped tables by the steps above
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY_FTS);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOKMARKS_FTS);
                 mSyncHelper.onAccountsChanged(db, new Account[] {}); // remove all sync info
                 onCreate(db);
             }
         }
 
+        void backfillFrecency(SQLiteDatabase db) {
+            Cursor c = db.query(TABLE_HISTORY, new String[] {
+                    History._ID, History.VISITS, History.DATE_LAST_VISITED },
+                    History.VISITS + " > 0", null, null, null, null);
+            SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_HISTORY
+                    + " SET " + Frecency.COLUMN + " = ? WHERE " + History._ID + " = ?");
+            try {
+                while (c.moveToNext()) {
+                    update.bindDouble(1, Frecency.estimate(c.getInt(1), c.getLong(2)));
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
+                }
+            } finally {
+                c.close();
+                update.close();
+            }
+        }
+
         public void onOpen(SQLiteDatabase db) {
             mSyncHelper.onDatabaseOpened(db);
         }
@@ -810,6 +1246,68 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         mUpdateWidgets = true;
     }
 
+    /**
+     * Marks that the image prune queue may have grown; it is drained in
+     * the background once the current transaction ends.
+     */
+    void queuePruneImages() {
+        mPruneImages = true;
+    }
+
+    void schedulePruneImages() {
+        synchronized (this) {
+            if (mPruneHandler == null) {
+                mPruneHandler = new Handler(BackgroundHandler.getLooper()) {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        if (msg.what == MSG_PRUNE_IMAGES) {
+                            drainPruneImages();
+                        }
+                    }
+                };
+            }
+        }
+        if (!mPruneHandler.hasMessages(MSG_PRUNE_IMAGES)) {
+            mPruneHandler.sendEmptyMessageDelayed(MSG_PRUNE_IMAGES,
+                    IMAGE_PRUNE_DELAY_MILLIS);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (mPruneHandler != null) {
+                mPruneHandler.removeMessages(MSG_PRUNE_IMAGES);
+            }
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Prunes the queued images one batch per transaction until the queue
+     * is empty, so writers only wait for a single batch.
+     */
+    @VisibleForTesting
+    public int drainPruneImages() {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int pruned = 0;
+        while (DatabaseUtils.queryNumEntries(db, TABLE_IMAGE_PRUNE_QUEUE) > 0) {
+            db.beginTransaction();
+            try {
+                pruned += pruneImages();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (pruned > 0) {
+            // Legacy clients see favicons as part of bookmarks and history.
+            // Images aren't synced, so don't sync to network.
+            getContext().getContentResolver().notifyChange(LEGACY_AUTHORITY_URI, null, false);
+        }
+        return pruned;
+    }
+
     @Override
     protected void onEndTransaction(boolean callerIsSyncAdapter) {
         super.onEndTransaction(callerIsSyncAdapter);
@@ -821,6 +1319,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
             mUpdateWidgets = false;
         }
+        if (mPruneImages) {
+            mPruneImages = false;
+            schedulePruneImages();
+        }
         mSyncToNetwork = true;
     }
 
@@ -1042,6 +1544,59 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
+            case HISTORY_BUCKETS: {
+                String boundaries = uri.getQueryParameter(HistoryBuckets.PARAM_BOUNDARIES);
+                String[] times = TextUtils.isEmpty(boundaries)
+                        ? new String[0] : boundaries.split(",");
+                StringBuilder bucket = new StringBuilder("CASE");
+                for (int i = 0; i < times.length; i++) {
+                    long time;
+                    try {
+                        time = Long.parseLong(times[i].trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid "
+                                + HistoryBuckets.PARAM_BOUNDARIES + ": " + boundaries);
+                    }
+                    bucket.append(" WHEN " + History.DATE_LAST_VISITED + " > "
+                            + time + " THEN " + i);
+                }
+                bucket.append(" ELSE " + times.length + " END");
+                HashMap<String, String> map = new HashMap<String, String>();
+                map.put(HistoryBuckets.BUCKET, bucket + " AS " + HistoryBuckets.BUCKET);
+                map.put(HistoryBuckets.COUNT, "COUNT(*) AS " + HistoryBuckets.COUNT);
+                qb.setProjectionMap(map);
+                qb.setTables(TABLE_HISTORY);
+                groupBy = HistoryBuckets.BUCKET;
+                if (sortOrder == null) {
+                    sortOrder = HistoryBuckets.BUCKET;
+                }
+                break;
+            }
+
+            case HISTORY_WINDOW: {
+                Object[] bookmarksWhere = getCombinedBookmarksWhere(uri);
+                setCombinedHistoryTables(qb, (String) bookmarksWhere[0],
+                        HISTORY_WINDOW_PROJECTION_MAP);
+                if (bookmarksWhere[1] != null) {
+                    // The bookmarks subquery comes first
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(
+                            (String[]) bookmarksWhere[1], selectionArgs);
+                }
+                String date = TABLE_HISTORY + "." + History.DATE_LAST_VISITED;
+                String id = TABLE_HISTORY + "." + History._ID;
+                String afterDate = uri.getQueryParameter(HistoryWindow.PARAM_AFTER_DATE);
+                String afterId = uri.getQueryParameter(HistoryWindow.PARAM_AFTER_ID);
+                if (afterDate != null && afterId != null) {
+                    // Keyset paging, the history date index finds the start
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            date + " < ? OR (" + date + " = ? AND " + id + " < ?)");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[] { afterDate, afterDate, afterId });
+                }
+                sortOrder = date + " DESC, " + id + " DESC";
+                break;
+            }
+
             case SEARCHES_ID: {
                 selection = DatabaseUtils.concatenateWhere(selection, TABLE_SEARCHES + "._id=?");
                 selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
@@ -1114,7 +1669,36 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case OMNIBOX_SUGGESTIONS: {
-                qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                String input = uri.getQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_MATCH);
+                if (input == null) {
+                    if (TextUtils.isEmpty(selection) && TextUtils.isEmpty(sortOrder)
+                            && limit != null) {
+                        // Top-k: merge both halves in frecency order inside
+                        // the subquery so only the first rows are read
+                        limit = Integer.toString(
+                                parseLimit(limit, DEFAULT_OMNIBOX_SUGGESTIONS_LIMIT));
+                        qb.setTables("(" + SQL_OMNIBOX_SUGGESTIONS + " ORDER BY "
+                                + DEFAULT_SORT_OMNIBOX_SUGGESTIONS
+                                + " LIMIT " + limit + ")");
+                    } else {
+                        qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    }
+                    break;
+                }
+                String match = buildFullTextMatch(input);
+                if (match == null) {
+                    // Nothing indexable was typed, so nothing can match
+                    selection = "0";
+                    selectionArgs = null;
+                    qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                    break;
+                }
+                qb.setTables("(" + SQL_OMNIBOX_SUGGESTIONS_MATCH + ")");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[] { match, match }, selectionArgs);
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = DEFAULT_SORT_OMNIBOX_SUGGESTIONS;
+                }
                 break;
             }
 
@@ -1129,13 +1713,30 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return cursor;
     }
 
+    /**
+     * Returns the row count of a {@link BrowserContract#PARAM_LIMIT}, or
+     * defaultLimit if it isn't a positive number.
+     */
+    static int parseLimit(String limit, int defaultLimit) {
+        try {
+            int count = Integer.parseInt(limit.trim());
+            return count > 0 ? count : defaultLimit;
+        } catch (NumberFormatException e) {
+            return defaultLimit;
+        }
+    }
+
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
         if (TextUtils.isEmpty(selectionArgs[0])) {
             selection = ZERO_QUERY_SUGGEST_SELECTION;
             selectionArgs = null;
         } else {
             String like = selectionArgs[0] + "%";
-            if (selectionArgs[0].startsWith("http")
+            String match = buildFullTextMatch(selectionArgs[0]);
+            if (match != null) {
+                selectionArgs = new String[] { match, match };
+                selection = SUGGEST_FTS_SELECTION;
+            } else if (selectionArgs[0].startsWith("http")
                     || selectionArgs[0].startsWith("file")) {
                 selectionArgs[0] = like;
             } else {
@@ -1160,33 +1761,56 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return new SuggestionsCursor(c);
     }
 
+    /**
+     * Turns omnibox input into an FTS phrase query with the last token as a
+     * prefix, eg "www.goo" becomes "www goo*". Tokens are split the same
+     * way the simple tokenizer splits the indexed text.
+     *
+     * @return the match expression, or null if the input has no tokens
+     */
+    @VisibleForTesting
+    public static String buildFullTextMatch(String input) {
+        StringBuilder sb = new StringBuilder(input.length() + 3);
+        boolean inToken = false;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                if (!inToken && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(c);
+                inToken = true;
+            } else {
+                inToken = false;
+            }
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        return "\"" + sb.toString() + "*\"";
+    }
+
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
+        if (getSelectionWithAccounts(uri, null, null)[0] == null) {
+            // All accounts, read the rows maintained in the combined table
+            qb.setTables(COMBINED_TABLE_SUBQUERY);
+            qb.setProjectionMap(null);
+            return null;
+        }
         String[] args = null;
-        StringBuilder whereBuilder = new StringBuilder(128);
-        whereBuilder.append(Bookmarks.IS_DELETED);
-        whereBuilder.append(" = 0");
-        // Look for account info
-        Object[] withAccount = getSelectionWithAccounts(uri, null, null);
-        String selection = (String) withAccount[0];
-        String[] selectionArgs = (String[]) withAccount[1];
-        if (selection != null) {
-            whereBuilder.append(" AND " + selection);
-            if (selectionArgs != null) {
-                // We use the selection twice, hence we need to duplicate the args
-                args = new String[selectionArgs.length * 2];
-                System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
-                System.arraycopy(selectionArgs, 0, args, selectionArgs.length,
-                        selectionArgs.length);
-            }
+        Object[] bookmarksWhere = getCombinedBookmarksWhere(uri);
+        String where = (String) bookmarksWhere[0];
+        String[] selectionArgs = (String[]) bookmarksWhere[1];
+        if (selectionArgs != null) {
+            // We use the selection twice, hence we need to duplicate the args
+            args = new String[selectionArgs.length * 2];
+            System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+            System.arraycopy(selectionArgs, 0, args, selectionArgs.length,
+                    selectionArgs.length);
         }
-        String where = whereBuilder.toString();
-        // Build the bookmark subquery for history union subquery
-        qb.setTables(TABLE_BOOKMARKS);
-        String subQuery = qb.buildQuery(null, where, null, null, null, null);
         // Build the history union subquery
-        qb.setTables(String.format(FORMAT_COMBINED_JOIN_SUBQUERY_JOIN_IMAGES, subQuery));
-        qb.setProjectionMap(COMBINED_HISTORY_PROJECTION_MAP);
+        setCombinedHistoryTables(qb, where, COMBINED_HISTORY_PROJECTION_MAP);
         String historySubQuery = qb.buildQuery(null,
                 null, null, null, null, null);
         // Build the bookmark union subquery
@@ -1205,6 +1829,39 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return args;
     }
 
+    /**
+     * Returns the selection of the bookmarks that the combined queries
+     * include, and its arguments (or null).
+     */
+    private Object[] getCombinedBookmarksWhere(Uri uri) {
+        StringBuilder whereBuilder = new StringBuilder(128);
+        whereBuilder.append(Bookmarks.IS_DELETED);
+        whereBuilder.append(" = 0");
+        // Look for account info
+        Object[] withAccount = getSelectionWithAccounts(uri, null, null);
+        String selection = (String) withAccount[0];
+        String[] selectionArgs = (String[]) withAccount[1];
+        if (selection != null) {
+            whereBuilder.append(" AND " + selection);
+        } else {
+            selectionArgs = null;
+        }
+        return new Object[] { whereBuilder.toString(), selectionArgs };
+    }
+
+    /**
+     * Sets up qb to read history joined with its bookmarks (those matching
+     * bookmarksWhere) and images, the history half of the combined query.
+     */
+    private void setCombinedHistoryTables(SQLiteQueryBuilder qb, String bookmarksWhere,
+            HashMap<String, String> projectionMap) {
+        qb.setTables(TABLE_BOOKMARKS);
+        qb.setProjectionMap(null);
+        String subQuery = qb.buildQuery(null, bookmarksWhere, null, null, null, null);
+        qb.setTables(String.format(FORMAT_COMBINED_JOIN_SUBQUERY_JOIN_IMAGES, subQuery));
+        qb.setProjectionMap(projectionMap);
+    }
+
     int deleteBookmarks(String selection, String[] selectionArgs,
             boolean callerIsSyncAdapter) {
         //TODO cascade deletes down from folders
@@ -1239,7 +1896,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 selection = (String) withAccount[0];
                 selectionArgs = (String[]) withAccount[1];
                 deleted = deleteBookmarks(selection, selectionArgs, callerIsSyncAdapter);
-                pruneImages();
+                queuePruneImages();
                 if (deleted > 0) {
                     refreshWidgets();
                 }
@@ -1255,7 +1912,11 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             case HISTORY: {
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
-                pruneImages();
+                queuePruneImages();
+                if (deleted > 0) {
+                    // Lets the completion index tell removals from visits
+                    postNotifyUri(OmniboxSuggestions.CONTENT_URI);
+                }
                 break;
             }
 
@@ -1318,6 +1979,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     }
                 }
                 c.close();
+                queuePruneImages();
                 break;
             }
             case THUMBNAILS_ID: {
@@ -1446,6 +2108,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 String url = values.getAsString(History.URL);
                 url = filterSearchClient(url);
                 values.put(History.URL, url);
+                if (!values.containsKey(Frecency.COLUMN)) {
+                    Integer visits = values.getAsInteger(History.VISITS);
+                    Long date = values.getAsLong(History.DATE_LAST_VISITED);
+                    values.put(Frecency.COLUMN, Frecency.estimate(
+                            visits != null ? visits : 0, date != null ? date : 0));
+                }
 
                 // Extract out the image values so they can be inserted into the images table
                 ContentValues imageValues = extractImageValues(values,
@@ -1479,6 +2147,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
+            case HISTORY_VISIT: {
+                id = recordVisitsInTransaction(db, values);
+                // Report the row like a regular history insert
+                uri = History.CONTENT_URI;
+                break;
+            }
+
             default: {
                 throw new UnsupportedOperationException("Unknown insert URI " + uri);
             }
@@ -1495,6 +2170,81 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
     }
 
+    /**
+     * Records visits to a url with one indexed lookup followed by an update
+     * of the row or an insert, and returns the history row id.
+     */
+    long recordVisitsInTransaction(SQLiteDatabase db, ContentValues values) {
+        String url = filterSearchClient(values.getAsString(History.URL));
+        if (TextUtils.isEmpty(url)) {
+            throw new IllegalArgumentException("Visit without a url");
+        }
+        Integer count = values.getAsInteger(History.VISITS);
+        int visits = count != null ? Math.max(count, 1) : 1;
+        Long date = values.getAsLong(History.DATE_LAST_VISITED);
+        long when = date != null ? date : System.currentTimeMillis();
+        String title = values.getAsString(History.TITLE);
+
+        long id = -1;
+        int previousVisits = 0;
+        double frecency = Frecency.NONE;
+        Cursor c = db.query(TABLE_HISTORY,
+                new String[] { History._ID, History.VISITS, Frecency.COLUMN },
+                History.URL + "=?", new String[] { url }, null, null, null, "1");
+        try {
+            if (c.moveToFirst()) {
+                id = c.getLong(0);
+                previousVisits = c.getInt(1);
+                frecency = c.getDouble(2);
+            }
+        } finally {
+            c.close();
+        }
+        for (int i = 0; i < visits; i++) {
+            frecency = Frecency.visit(frecency, when);
+        }
+
+        ContentValues row = new ContentValues();
+        row.put(History.VISITS, previousVisits + visits);
+        row.put(History.DATE_LAST_VISITED, when);
+        row.put(Frecency.COLUMN, frecency);
+        if (title != null) {
+            row.put(History.TITLE, title);
+        }
+        if (id >= 0) {
+            db.update(TABLE_HISTORY, row, History._ID + "=?",
+                    new String[] { Long.toString(id) });
+            return id;
+        }
+        row.put(History.URL, url);
+        row.put(History.DATE_CREATED, 0);
+        row.put(History.USER_ENTERED, 0);
+        if (title == null) {
+            row.put(History.TITLE, url);
+        }
+        id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, row);
+        if (++mHistoryInsertsSinceTruncate >= HISTORY_TRUNCATE_INTERVAL) {
+            mHistoryInsertsSinceTruncate = 0;
+            truncateHistory(db);
+        }
+        return id;
+    }
+
+    /**
+     * Deletes the least recently visited rows beyond {@link #MAX_HISTORY_COUNT}.
+     */
+    int truncateHistory(SQLiteDatabase db) {
+        long excess = DatabaseUtils.queryNumEntries(db, TABLE_HISTORY) - MAX_HISTORY_COUNT;
+        if (excess <= 0) {
+            return 0;
+        }
+        int deleted = db.delete(TABLE_HISTORY, History._ID + " IN (SELECT " + History._ID
+                + " FROM " + TABLE_HISTORY + " ORDER BY " + History.DATE_LAST_VISITED
+                + " ASC LIMIT " + excess + ")", null);
+        queuePruneImages();
+        return deleted;
+    }
+
     private String[] getAccountNameAndType(long id) {
         if (id <= 0) {
             return null;
@@ -1713,9 +2463,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     postNotifyUri(History.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                 }
-                if (pruneImages() > 0 || updatedLegacy) {
+                if (updatedLegacy) {
                     postNotifyUri(LEGACY_AUTHORITY_URI);
                 }
+                postNotifyUri(Images.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(PARAM_IMAGE_URL, url).build());
+                queuePruneImages();
                 // Even though we may be calling notifyUri on Bookmarks, don't
                 // sync to network as images aren't synced. Otherwise this
                 // unnecessarily triggers a bookmark sync.
@@ -1744,8 +2497,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 throw new UnsupportedOperationException("Unknown update URI " + uri);
             }
         }
-        pruneImages();
         if (modified > 0) {
+            queuePruneImages();
             postNotifyUri(uri);
             if (shouldNotifyLegacy(uri)) {
                 postNotifyUri(LEGACY_AUTHORITY_URI);
@@ -2063,9 +2816,30 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return imageValues;
     }
 
+    /**
+     * Deletes the images of up to {@link #IMAGE_PRUNE_BATCH_SIZE} queued
+     * urls that are no longer referenced by a bookmark or history item.
+     */
     int pruneImages() {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+        ArrayList<String> urls = new ArrayList<String>(IMAGE_PRUNE_BATCH_SIZE);
+        Cursor c = db.query(TABLE_IMAGE_PRUNE_QUEUE, new String[] { Images.URL },
+                null, null, null, null, null, Integer.toString(IMAGE_PRUNE_BATCH_SIZE));
+        try {
+            while (c.moveToNext()) {
+                urls.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        int pruned = 0;
+        String[] args = new String[1];
+        for (String url : urls) {
+            args[0] = url;
+            pruned += db.delete(TABLE_IMAGES, IMAGE_PRUNE, args);
+            db.delete(TABLE_IMAGE_PRUNE_QUEUE, Images.URL + "=?", args);
+        }
+        return pruned;
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
@@ -2200,18 +2974,41 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     //  SQL below, be warned
     // ---------------------------------------------------
 
+    // Bookmarks get a fixed frecency above any history item, so a single
+    // ORDER BY frecency can use historyFrecencyIndex for the history half
+    private static final String SQL_OMNIBOX_SUGGESTIONS =
+            "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date,"
+            + "    " + Frecency.BOOKMARK + " AS frecency"
+            + "  FROM bookmarks "
+            + "  WHERE deleted = 0 AND folder = 0 "
+            + "  UNION ALL "
+            + "  SELECT _id, url, title, 0 AS bookmark, visits, date, frecency "
+            + "  FROM history "
+            + "  WHERE NOT EXISTS (SELECT 1 FROM bookmarks b WHERE b.url = history.url"
+            + "    AND b.deleted = 0 AND b.folder = 0) ";
+
+    static final String DEFAULT_SORT_OMNIBOX_SUGGESTIONS = "frecency DESC";
+
     private static final String SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS =
             "CREATE VIEW IF NOT EXISTS v_omnibox_suggestions "
             + " AS "
-            + "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
+            + SQL_OMNIBOX_SUGGESTIONS
+            + "  ORDER BY " + DEFAULT_SORT_OMNIBOX_SUGGESTIONS;
+
+    // Same rows as v_omnibox_suggestions, but each half is driven by its
+    // FTS index. Bound twice to the match expression.
+    private static final String SQL_OMNIBOX_SUGGESTIONS_MATCH =
+            "SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date,"
+            + "    " + Frecency.BOOKMARK + " AS frecency"
             + "  FROM bookmarks "
-            + "  WHERE deleted = 0 AND folder = 0 "
+            + "  WHERE _id IN (SELECT docid FROM bookmarks_fts WHERE bookmarks_fts MATCH ?)"
+            + "    AND deleted = 0 AND folder = 0 "
             + "  UNION ALL "
-            + "  SELECT _id, url, title, 0 AS bookmark, visits, date "
+            + "  SELECT _id, url, title, 0 AS bookmark, visits, date, frecency "
             + "  FROM history "
-            + "  WHERE url NOT IN (SELECT url FROM bookmarks"
-            + "    WHERE deleted = 0 AND folder = 0) "
-            + "  ORDER BY bookmark DESC, visits DESC, date DESC ";
+            + "  WHERE _id IN (SELECT docid FROM history_fts WHERE history_fts MATCH ?)"
+            + "    AND NOT EXISTS (SELECT 1 FROM bookmarks b WHERE b.url = history.url"
+            + "      AND b.deleted = 0 AND b.folder = 0) ";
 
     private static final String SQL_WHERE_ACCOUNT_HAS_BOOKMARKS =
             "0 < ( "
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+/**
+ * Decayed visit score stored in the history frecency column.
+ *
+ * Every visit is worth 1, halving every {@link #HALF_LIFE_MILLIS}. Instead
+ * of the decayed sum itself the column stores its logarithm relative to
+ * the epoch, ln(sum(exp(k * t_visit))). All rows decay at the same rate,
+ * so ordering by the stored value is ordering by the current score, and a
+ * row only has to be written when it is visited.
+ */
+public final class Frecency {
+
+    public static final String COLUMN = "frecency";
+
+    /** Stored value of a url that was never visited. */
+    public static final double NONE = 0;
+
+    /**
+     * Value given to bookmarks in the omnibox suggestions, which rank above
+     * any history item.
+     */
+    public static final double BOOKMARK = 1e9;
+
+    public static final long HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final double DECAY = Math.log(2) / HALF_LIFE_MILLIS;
+
+    private Frecency() {}
+
+    /**
+     * Returns the stored value after one more visit at the given time.
+     */
+    public static double visit(double frecency, long when) {
+        double visit = DECAY * when;
+        if (frecency <= NONE) {
+            return visit;
+        }
+        double max = Math.max(frecency, visit);
+        return max + Math.log1p(Math.exp(Math.min(frecency, visit) - max));
+    }
+
+    /**
+     * Approximates the stored value for rows that only kept a visit count
+     * and the time of the last visit.
+     */
+    public static double estimate(int visits, long lastVisited) {
+        if (visits <= 0 || lastVisited <= 0) {
+            return NONE;
+        }
+        return DECAY * lastVisited + Math.log(visits);
+    }
+
+    /**
+     * Returns the decayed number of visits at the given time.
+     */
+    public static double score(double frecency, long now) {
+        if (frecency <= NONE) {
+            return 0;
+        }
+        return Math.exp(frecency - DECAY * now);
+    }
+}
@@ -16,14 +16,7 @@
 package com.android.browser.search;
 
 import com.android.browser.R;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
+import com.android.browser.search.SuggestionService.Suggestions;
 
 import android.app.SearchManager;
 import android.content.Context;
@@ -33,14 +26,11 @@ import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.os.Bundle;
 import android.provider.Browser;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.IOException;
-
 /**
  * Provides search suggestions, if any, for a given web search provider.
  */
@@ -48,12 +38,6 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static final String TAG = "OpenSearchSearchEngine";
 
-    private static final String USER_AGENT = "Android/1.0";
-    private static final int HTTP_TIMEOUT_MS = 1000;
-
-    // TODO: this should be defined somewhere
-    private static final String HTTP_TIMEOUT = "http.connection-manager.timeout";
-
     // Indices of the columns in the below arrays.
     private static final int COLUMN_INDEX_ID = 0;
     private static final int COLUMN_INDEX_QUERY = 1;
@@ -80,13 +64,8 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private final SearchEngineInfo mSearchEngineInfo;
 
-    private final AndroidHttpClient mHttpClient;
-
     public OpenSearchSearchEngine(Context context, SearchEngineInfo searchEngineInfo) {
         mSearchEngineInfo = searchEngineInfo;
-        mHttpClient = AndroidHttpClient.newInstance(USER_AGENT);
-        HttpParams params = mHttpClient.getParams();
-        params.setLongParameter(HTTP_TIMEOUT, HTTP_TIMEOUT_MS);
     }
 
     public String getName() {
@@ -137,54 +116,14 @@ public class OpenSearchSearchEngine implements SearchEngine {
             return null;
         }
 
-        try {
-            String content = readUrl(suggestUri);
-            if (content == null) return null;
-            /* The data format is a JSON array with items being regular strings or JSON arrays
-             * themselves. We are interested in the second and third elements, both of which
-             * should be JSON arrays. The second element/array contains the suggestions and the
-             * third element contains the descriptions. Some search engines don't support
-             * suggestion descriptions so the third element is optional.
-             */
-            JSONArray results = new JSONArray(content);
-            JSONArray suggestions = results.getJSONArray(1);
-            JSONArray descriptions = null;
-            if (results.length() > 2) {
-                descriptions = results.getJSONArray(2);
-                // Some search engines given an empty array "[]" for descriptions instead of
-                // not including it in the response.
-                if (descriptions.length() == 0) {
-                    descriptions = null;
-                }
-            }
-            return new SuggestionsCursor(suggestions, descriptions);
-        } catch (JSONException e) {
-            Log.w(TAG, "Error", e);
-        }
-        return null;
-    }
-
-    /**
-     * Executes a GET request and returns the response content.
-     *
-     * @param url Request URI.
-     * @return The response content. This is the empty string if the response
-     *         contained no content.
-     */
-    public String readUrl(String url) {
-        try {
-            HttpGet method = new HttpGet(url);
-            HttpResponse response = mHttpClient.execute(method);
-            if (response.getStatusLine().getStatusCode() == 200) {
-                return EntityUtils.toString(response.getEntity());
-            } else {
-                Log.i(TAG, "Suggestion request failed");
-                return null;
-            }
-        } catch (IOException e) {
-            Log.w(TAG, "Error", e);
+        // Cached, shared with concurrent callers and cancelled once the
+        // user types past the query
+        Suggestions suggestions = SuggestionService.getInstance(context).query(
+                getName(), query, suggestUri);
+        if (suggestions == null) {
             return null;
         }
+        return new SuggestionsCursor(suggestions);
     }
 
     public boolean supportsSuggestions() {
@@ -192,7 +131,7 @@ public class OpenSearchSearchEngine implements SearchEngine {
     }
 
     public void close() {
-        mHttpClient.close();
+        // Requests are made by the shared SuggestionService
     }
 
     private boolean isNetworkConnected(Context context) {
@@ -211,40 +150,29 @@ public class OpenSearchSearchEngine implements SearchEngine {
 
     private static class SuggestionsCursor extends AbstractCursor {
 
-        private final JSONArray mSuggestions;
-
-        private final JSONArray mDescriptions;
+        private final Suggestions mSuggestions;
 
-        public SuggestionsCursor(JSONArray suggestions, JSONArray descriptions) {
+        public SuggestionsCursor(Suggestions suggestions) {
             mSuggestions = suggestions;
-            mDescriptions = descriptions;
         }
 
         @Override
         public int getCount() {
-            return mSuggestions.length();
+            return mSuggestions.getCount();
         }
 
         @Override
         public String[] getColumnNames() {
-            return (mDescriptions != null ? COLUMNS : COLUMNS_WITHOUT_DESCRIPTION);
+            return (mSuggestions.hasDescriptions() ? COLUMNS : COLUMNS_WITHOUT_DESCRIPTION);
         }
 
         @Override
         public String getString(int column) {
             if (mPos != -1) {
                 if ((column == COLUMN_INDEX_QUERY) || (column == COLUMN_INDEX_TEXT_1)) {
-                    try {
-                        return mSuggestions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mSuggestions.getSuggestion(mPos);
                 } else if (column == COLUMN_INDEX_TEXT_2) {
-                    try {
-                        return mDescriptions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
+                    return mSuggestions.getDescription(mPos);
                 } else if (column == COLUMN_INDEX_ICON) {
                     return String.valueOf(R.drawable.magnifying_glass);
                 }
@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import com.android.browser.HttpClientPool;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.util.EntityUtils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Fetches remote search suggestions for every search engine, so that a
+ * word typed one character at a time doesn't cost a request per character.
+ *
+ * Responses are cached by engine and query for {@link #TTL_MS}. A query
+ * that extends a cached one is answered locally when enough of the cached
+ * suggestions still match. A request waits {@link #COALESCE_DELAY_MS}
+ * before going out, and is cancelled (or aborted if already sent) when a
+ * query that extends or shortens it comes in for the same engine.
+ * Concurrent callers asking for the same query share one request; any of
+ * them may send it, so one caller giving up doesn't fail the others.
+ */
+public class SuggestionService {
+
+    private static final String TAG = "SuggestionService";
+
+    // How long a request waits for a pooled connection
+    private static final int HTTP_TIMEOUT_MS = 1000;
+    // JSON is UTF-8 unless the response says otherwise
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    static final int CACHE_SIZE = 64;
+    static final long TTL_MS = 5 * 60 * 1000;
+    static final long COALESCE_DELAY_MS = 100;
+    // Cached suggestions of a prefix that must still match for a longer
+    // query to be answered without a request
+    static final int MIN_PREFIX_MATCHES = 4;
+
+    /**
+     * Suggestions for one query, and their descriptions if the engine
+     * provides them.
+     */
+    public static final class Suggestions {
+        private final String[] mSuggestions;
+        private final String[] mDescriptions;
+
+        public Suggestions(String[] suggestions, String[] descriptions) {
+            mSuggestions = suggestions;
+            mDescriptions = descriptions;
+        }
+
+        public int getCount() {
+            return mSuggestions.length;
+        }
+
+        public String getSuggestion(int position) {
+            return mSuggestions[position];
+        }
+
+        /** Returns the description, or null if the engine provides none. */
+        public String getDescription(int position) {
+            return mDescriptions != null ? mDescriptions[position] : null;
+        }
+
+        public boolean hasDescriptions() {
+            return mDescriptions != null;
+        }
+
+        /**
+         * Returns the suggestions that start with the query, or null if
+         * fewer than minCount do.
+         */
+        Suggestions filter(String query, int minCount) {
+            String prefix = query.toLowerCase(Locale.getDefault());
+            ArrayList<String> suggestions = new ArrayList<String>();
+            ArrayList<String> descriptions = new ArrayList<String>();
+            for (int i = 0; i < mSuggestions.length; i++) {
+                String suggestion = mSuggestions[i];
+                if (suggestion != null && suggestion.toLowerCase(
+                        Locale.getDefault()).startsWith(prefix)) {
+                    suggestions.add(suggestion);
+                    descriptions.add(getDescription(i));
+                }
+            }
+            if (suggestions.size() < minCount) {
+                return null;
+            }
+            return new Suggestions(suggestions.toArray(new String[suggestions.size()]),
+                    mDescriptions != null
+                            ? descriptions.toArray(new String[descriptions.size()]) : null);
+        }
+    }
+
+    private static class CacheEntry {
+        final Suggestions suggestions;
+        final long time;
+
+        CacheEntry(Suggestions suggestions, long time) {
+            this.suggestions = suggestions;
+            this.time = time;
+        }
+    }
+
+    /** Time source of the cache and of coalescing, replaced in tests. */
+    public interface Clock {
+        long elapsedRealtime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private static class Request {
+        final String engine;
+        final String query;
+        final String uri;
+        final long deadline;
+        // Callers still waiting for the result
+        int waiters;
+        // Set once a caller sends it
+        HttpGet get;
+        boolean cancelled;
+        boolean done;
+        Suggestions result;
+
+        Request(String engine, String query, String uri, long deadline) {
+            this.engine = engine;
+            this.query = query;
+            this.uri = uri;
+            this.deadline = deadline;
+        }
+    }
+
+    private static SuggestionService sInstance;
+
+    private final HttpClient mHttpClient;
+    private final Clock mClock;
+    // All guarded by this
+    private final LruCache<String, CacheEntry> mCache =
+            new LruCache<String, CacheEntry>(CACHE_SIZE);
+    private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+    private int mQueryCount;
+    private int mRequestCount;
+    private int mCacheHitCount;
+    private int mPrefixHitCount;
+    private int mSharedCount;
+    private int mCancelledCount;
+
+    public static synchronized SuggestionService getInstance(Context context) {
+        if (sInstance == null) {
+            // Keeps the connection to the engine open between keystrokes
+            sInstance = new SuggestionService(
+                    HttpClientPool.getInstance(context).getClient());
+        }
+        return sInstance;
+    }
+
+    public SuggestionService(HttpClient client) {
+        this(client, SYSTEM_CLOCK);
+    }
+
+    public SuggestionService(HttpClient client, Clock clock) {
+        mHttpClient = client;
+        mClock = clock;
+    }
+
+    /**
+     * Returns the suggestions for the query, fetching them from suggestUri
+     * if needed. Blocks, so never call this on the UI thread.
+     *
+     * @param engine The name of the search engine
+     * @return The suggestions, or null if the request failed or was
+     *         cancelled for a newer query
+     */
+    public Suggestions query(String engine, String query, String suggestUri) {
+        Request request;
+        synchronized (this) {
+            mQueryCount++;
+            Suggestions cached = getCached(engine, query);
+            if (cached != null) {
+                return cached;
+            }
+            cancelSuperseded(engine, query);
+            String key = getKey(engine, query);
+            request = mRequests.get(key);
+            if (request == null) {
+                request = new Request(engine, query, suggestUri,
+                        mClock.elapsedRealtime() + COALESCE_DELAY_MS);
+                mRequests.put(key, request);
+            } else {
+                mSharedCount++;
+            }
+            request.waiters++;
+        }
+        return await(request);
+    }
+
+    public synchronized void clear() {
+        mCache.evictAll();
+    }
+
+    /** Returns the number of calls to {@link #query}. */
+    public synchronized int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /** Returns the number of requests sent to the engines. */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized int getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /** Returns the number of queries answered from a shorter query's results. */
+    public synchronized int getPrefixHitCount() {
+        return mPrefixHitCount;
+    }
+
+    /** Returns the number of queries that joined a request in flight. */
+    public synchronized int getSharedCount() {
+        return mSharedCount;
+    }
+
+    public synchronized int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    private Suggestions getCached(String engine, String query) {
+        long now = mClock.elapsedRealtime();
+        CacheEntry entry = getFresh(getKey(engine, query), now);
+        if (entry != null) {
+            mCacheHitCount++;
+            return entry.suggestions;
+        }
+        // Longest cached prefix first
+        for (int length = query.length() - 1; length > 0; length--) {
+            entry = getFresh(getKey(engine, query.substring(0, length)), now);
+            if (entry == null) {
+                continue;
+            }
+            Suggestions filtered = entry.suggestions.filter(query, MIN_PREFIX_MATCHES);
+            if (filtered == null) {
+                continue;
+            }
+            mPrefixHitCount++;
+            // Expires with the results it came from
+            mCache.put(getKey(engine, query), new CacheEntry(filtered, entry.time));
+            return filtered;
+        }
+        return null;
+    }
+
+    private CacheEntry getFresh(String key, long now) {
+        CacheEntry entry = mCache.get(key);
+        if (entry != null && now - entry.time > TTL_MS) {
+            mCache.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cancels the requests of the engine for queries that the given one
+     * extends or shortens, the user having typed past them.
+     */
+    private void cancelSuperseded(String engine, String query) {
+        Iterator<Request> it = mRequests.values().iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (!request.engine.equals(engine) || request.query.equals(query)
+                    || !(query.startsWith(request.query)
+                            || request.query.startsWith(query))) {
+                continue;
+            }
+            it.remove();
+            request.cancelled = true;
+            mCancelledCount++;
+            if (request.get != null) {
+                request.get.abort();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for the request to be answered, sending it once its coalescing
+     * delay has passed if no other caller has.
+     */
+    private Suggestions await(Request request) {
+        HttpGet get;
+        synchronized (this) {
+            while (!request.done) {
+                long remaining = 0;
+                if (request.get == null) {
+                    if (request.cancelled) {
+                        finish(request, null);
+                        break;
+                    }
+                    remaining = request.deadline - mClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        request.get = new HttpGet(request.uri);
+                        ConnManagerParams.setTimeout(request.get.getParams(), HTTP_TIMEOUT_MS);
+                        mRequestCount++;
+                        break;
+                    }
+                }
+                try {
+                    // Until the deadline, or until it is answered once sent
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    // This caller gave up on it, the others still wait
+                    Thread.currentThread().interrupt();
+                    if (--request.waiters == 0 && request.get == null) {
+                        request.cancelled = true;
+                        mCancelledCount++;
+                        finish(request, null);
+                    }
+                    return null;
+                }
+            }
+            if (request.done) {
+                return request.result;
+            }
+            get = request.get;
+        }
+        Suggestions result = fetch(get);
+        synchronized (this) {
+            if (result != null) {
+                // Even when cancelled, longer queries may reuse it
+                mCache.put(getKey(request.engine, request.query),
+                        new CacheEntry(result, mClock.elapsedRealtime()));
+            } else if (Thread.currentThread().isInterrupted() && !request.cancelled
+                    && request.waiters > 1) {
+                // Failed because this caller gave up, let another send it
+                request.waiters--;
+                request.get = null;
+                notifyAll();
+                return null;
+            }
+            finish(request, result);
+            return request.result;
+        }
+    }
+
+    private void finish(Request request, Suggestions result) {
+        String key = getKey(request.engine, request.query);
+        if (mRequests.get(key) == request) {
+            mRequests.remove(key);
+        }
+        request.result = request.cancelled ? null : result;
+        request.done = true;
+        notifyAll();
+    }
+
+    private Suggestions fetch(HttpGet get) {
+        try {
+            HttpResponse response = mHttpClient.execute(get);
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != 200) {
+                Log.i(TAG, "Suggestion request failed");
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                return null;
+            }
+            if (entity == null) {
+                return null;
+            }
+            String charset = EntityUtils.getContentCharSet(entity);
+            InputStream in = entity.getContent();
+            try {
+                return parse(in, charset != null ? charset : DEFAULT_CHARSET);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (!get.isAborted()) {
+                Log.w(TAG, "Error", e);
+            }
+        } catch (RuntimeException e) {
+            // JsonReader reports unexpected content as IllegalStateException
+            // and malformed numbers as NumberFormatException
+            Log.w(TAG, "Error", e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the suggestions straight from a response, without building
+     * the response string or a JSON tree.
+     *
+     * The data format is a JSON array with items being regular strings or JSON arrays
+     * themselves. We are interested in the second and third elements, both of which
+     * should be JSON arrays. The second element/array contains the suggestions and the
+     * third element contains the descriptions. Some search engines don't support
+     * suggestion descriptions so the third element is optional.
+     */
+    public static Suggestions parse(InputStream in, String charset) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, charset));
+        ArrayList<String> suggestions = new ArrayList<String>();
+        ArrayList<String> descriptions = null;
+        reader.beginArray();
+        // The query
+        reader.skipValue();
+        readStrings(reader, suggestions);
+        if (reader.hasNext()) {
+            descriptions = new ArrayList<String>(suggestions.size());
+            readStrings(reader, descriptions);
+            // Some search engines given an empty array "[]" for descriptions instead of
+            // not including it in the response.
+            if (descriptions.isEmpty()) {
+                descriptions = null;
+            }
+        }
+        // Anything after the descriptions is of no use, and isn't read
+        String[] texts = suggestions.toArray(new String[suggestions.size()]);
+        String[] details = null;
+        if (descriptions != null) {
+            details = new String[texts.length];
+            for (int i = 0; i < details.length && i < descriptions.size(); i++) {
+                details[i] = descriptions.get(i);
+            }
+        }
+        return new Suggestions(texts, details);
+    }
+
+    private static void readStrings(JsonReader reader, ArrayList<String> out)
+            throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                out.add(reader.nextString());
+            } else if (token == JsonToken.BOOLEAN) {
+                // Like JSONArray.getString
+                out.add(String.valueOf(reader.nextBoolean()));
+            } else {
+                reader.skipValue();
+                out.add(null);
+            }
+        }
+        reader.endArray();
+    }
+
+    private static String getKey(String engine, String query) {
+        return engine + '\n' + query;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+import android.os.Process;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Worker threads shared by every {@link ThreadedCursorAdapter}.
+ *
+ * Requests for rows on screen run before prefetches, newest first, since
+ * the newest request is for the row that just scrolled into view. Requests
+ * can be cancelled until a worker picks them up.
+ */
+final class RowLoader {
+
+    static final int WORKER_COUNT = 2;
+
+    abstract static class Request implements Runnable {
+        final Object owner;
+        final boolean prefetch;
+        // Guarded by the RowLoader
+        boolean queued;
+
+        Request(Object owner, boolean prefetch) {
+            this.owner = owner;
+            this.prefetch = prefetch;
+        }
+    }
+
+    private static RowLoader sInstance;
+
+    private final LinkedList<Request> mVisible = new LinkedList<Request>();
+    private final LinkedList<Request> mPrefetch = new LinkedList<Request>();
+
+    static synchronized RowLoader getInstance() {
+        if (sInstance == null) {
+            sInstance = new RowLoader();
+        }
+        return sInstance;
+    }
+
+    private RowLoader() {
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    while (true) {
+                        take().run();
+                    }
+                }
+            }, "RowLoader " + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    synchronized void submit(Request request) {
+        if (request.queued) {
+            return;
+        }
+        request.queued = true;
+        if (request.prefetch) {
+            mPrefetch.addLast(request);
+        } else {
+            mVisible.addFirst(request);
+        }
+        notify();
+    }
+
+    /**
+     * Removes the request if no worker has picked it up yet.
+     */
+    synchronized void cancel(Request request) {
+        if (request.queued) {
+            request.queued = false;
+            (request.prefetch ? mPrefetch : mVisible).remove(request);
+        }
+    }
+
+    /**
+     * Removes the queued prefetches, or all requests, of the given owner.
+     */
+    synchronized void cancelAll(Object owner, boolean prefetchOnly) {
+        cancelAll(mPrefetch, owner);
+        if (!prefetchOnly) {
+            cancelAll(mVisible, owner);
+        }
+    }
+
+    private static void cancelAll(LinkedList<Request> queue, Object owner) {
+        Iterator<Request> it = queue.iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (request.owner == owner) {
+                request.queued = false;
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized Request take() {
+        while (mVisible.isEmpty() && mPrefetch.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Keep waiting, workers live as long as the process
+            }
+        }
+        Request request = !mVisible.isEmpty()
+                ? mVisible.removeFirst() : mPrefetch.removeFirst();
+        request.queued = false;
+        return request;
+    }
+}
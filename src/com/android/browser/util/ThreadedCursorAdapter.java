@@ -18,11 +18,9 @@ package com.android.browser.util;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
-import android.os.Process;
-import android.os.SystemProperties;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Adapter;
@@ -32,21 +30,47 @@ import android.widget.CursorAdapter;
 import com.android.browser.R;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
+/**
+ * Adapter whose row objects are loaded from the cursor off the UI thread,
+ * by the workers shared with every other instance (see {@link RowLoader}).
+ *
+ * Rows on screen are loaded first; a load for a row whose view has since
+ * been rebound to another row is cancelled. The rows just past the last
+ * one shown, in the direction of the scroll, are loaded ahead so that
+ * they are bound without showing the loading object first.
+ */
 public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
 
     private static final String LOGTAG = "BookmarksThreadedAdapter";
     private static final boolean DEBUG = false;
 
+    // Rows loaded ahead of the last one shown
+    private static final int PREFETCH_COUNT = 8;
+    // Loaded rows kept around the last one shown, and unused row objects
+    // kept for reuse
+    private static final int MAX_PREFETCHED = 2 * PREFETCH_COUNT;
+
+    private static final int MSG_LOADED = 1;
+    private static final int MSG_PREFETCHED = 2;
+
     private Context mContext;
     private Object mCursorLock = new Object();
     private CursorAdapter mCursorAdapter;
     private T mLoadingObject;
-    private Handler mLoadHandler;
+    private RowLoader mLoader;
     private Handler mHandler;
     private int mSize;
     private boolean mHasCursor;
-    private long mGeneration;
+    private volatile long mGeneration;
+
+    // UI thread only
+    private SparseArray<LoadRequest> mPrefetching = new SparseArray<LoadRequest>();
+    private SparseArray<T> mPrefetched = new SparseArray<T>();
+    private int mLastPosition;
+    // Guarded by itself
+    private ArrayList<T> mRecycled = new ArrayList<T>();
 
     private class LoadContainer {
         WeakReference<View> view;
@@ -55,6 +79,45 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         Adapter owner;
         boolean loaded;
         long generation;
+        LoadRequest request;
+    }
+
+    private class LoadRequest extends RowLoader.Request {
+        final int position;
+        final long generation;
+        final LoadContainer container;
+        T result;
+
+        LoadRequest(int position, LoadContainer container) {
+            super(ThreadedCursorAdapter.this, container == null);
+            this.position = position;
+            this.generation = mGeneration;
+            this.container = container;
+        }
+
+        @Override
+        public void run() {
+            if (DEBUG) {
+                Log.d(LOGTAG, (prefetch ? "prefetching: " : "loading: ") + position);
+            }
+            if (container != null && (container.request != this
+                    || container.view.get() == null)) {
+                return;
+            }
+            synchronized (mCursorLock) {
+                if (generation != mGeneration) {
+                    // The cursor changed since this was requested
+                    return;
+                }
+                Cursor c = (Cursor) mCursorAdapter.getItem(position);
+                if (c == null || c.isClosed()) {
+                    return;
+                }
+                result = getRowObject(c, takeRecycled());
+            }
+            mHandler.obtainMessage(prefetch ? MSG_PREFETCHED : MSG_LOADED, this)
+                    .sendToTarget();
+        }
     }
 
     public ThreadedCursorAdapter(Context context, Cursor c) {
@@ -77,6 +140,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 super.notifyDataSetChanged();
                 mSize = getCount();
                 mGeneration++;
+                clearPrefetched();
                 ThreadedCursorAdapter.this.notifyDataSetChanged();
             }
 
@@ -85,42 +149,23 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 super.notifyDataSetInvalidated();
                 mSize = getCount();
                 mGeneration++;
+                clearPrefetched();
                 ThreadedCursorAdapter.this.notifyDataSetInvalidated();
             }
 
         };
         mSize = mCursorAdapter.getCount();
-        HandlerThread thread = new HandlerThread("threaded_adapter_" + this,
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mLoadHandler = new Handler(thread.getLooper()) {
-            @SuppressWarnings("unchecked")
-            @Override
-            public void handleMessage(Message msg) {
-                if (DEBUG) {
-                    Log.d(LOGTAG, "loading: " + msg.what);
-                }
-                loadRowObject(msg.what, (LoadContainer) msg.obj);
-            }
-        };
+        mLoader = RowLoader.getInstance();
         mHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
                 @SuppressWarnings("unchecked")
-                LoadContainer container = (LoadContainer) msg.obj;
-                if (container == null) {
-                    return;
+                LoadRequest request = (LoadRequest) msg.obj;
+                if (msg.what == MSG_PREFETCHED) {
+                    onPrefetched(request);
+                } else {
+                    onLoaded(request);
                 }
-                View view = container.view.get();
-                if (view == null
-                        || container.owner != ThreadedCursorAdapter.this
-                        || container.position != msg.what
-                        || view.getWindowToken() == null
-                        || container.generation != mGeneration) {
-                    return;
-                }
-                container.loaded = true;
-                bindView(view, container.bind_object);
             }
         };
     }
@@ -142,21 +187,47 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         }
     }
 
-    private void loadRowObject(int position, LoadContainer container) {
-        if (container == null
-                || container.position != position
+    private void onLoaded(LoadRequest request) {
+        LoadContainer container = request.container;
+        if (container.request != request) {
+            recycle(request.result);
+            return;
+        }
+        container.request = null;
+        View view = container.view.get();
+        if (view == null
                 || container.owner != ThreadedCursorAdapter.this
-                || container.view.get() == null) {
+                || view.getWindowToken() == null
+                || container.generation != mGeneration) {
+            recycle(request.result);
             return;
         }
-        synchronized (mCursorLock) {
-            Cursor c = (Cursor) mCursorAdapter.getItem(position);
-            if (c == null || c.isClosed()) {
-                return;
-            }
-            container.bind_object = getRowObject(c, container.bind_object);
+        bindLoaded(view, container, request.result);
+    }
+
+    private void onPrefetched(LoadRequest request) {
+        if (mPrefetching.get(request.position) == request) {
+            mPrefetching.remove(request.position);
+        }
+        if (request.generation != mGeneration
+                || Math.abs(request.position - mLastPosition) > MAX_PREFETCHED) {
+            recycle(request.result);
+            return;
+        }
+        T previous = mPrefetched.get(request.position);
+        mPrefetched.put(request.position, request.result);
+        recycle(previous);
+    }
+
+    private void bindLoaded(View view, LoadContainer container, T object) {
+        T previous = container.bind_object;
+        container.bind_object = object;
+        container.loaded = true;
+        bindView(view, object);
+        // Only reused once the view no longer shows it
+        if (previous != object) {
+            recycle(previous);
         }
-        mHandler.obtainMessage(position, container).sendToTarget();
     }
 
     @Override
@@ -177,18 +248,102 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 && container.generation == mGeneration) {
             bindView(convertView, container.bind_object);
         } else {
-            bindView(convertView, cachedLoadObject());
-            if (mHasCursor) {
-                container.position = position;
+            if (container.request != null) {
+                // The view was showing another row, that load is stale
+                mLoader.cancel(container.request);
+                container.request = null;
+            }
+            container.position = position;
+            container.owner = this;
+            container.generation = mGeneration;
+            T prefetched = mPrefetched.get(position);
+            if (prefetched != null) {
+                mPrefetched.remove(position);
+                bindLoaded(convertView, container, prefetched);
+            } else {
+                LoadRequest pending = mPrefetching.get(position);
+                if (pending != null) {
+                    // Load it as a visible row instead
+                    mLoader.cancel(pending);
+                    mPrefetching.remove(position);
+                }
                 container.loaded = false;
-                container.owner = this;
-                container.generation = mGeneration;
-                mLoadHandler.obtainMessage(position, container).sendToTarget();
+                bindView(convertView, cachedLoadObject());
+                if (mHasCursor) {
+                    container.request = new LoadRequest(position, container);
+                    mLoader.submit(container.request);
+                }
             }
         }
+        if (mHasCursor) {
+            prefetch(position);
+        }
         return convertView;
     }
 
+    /**
+     * Loads the rows following the given one in the direction of the
+     * scroll, dropping prefetches that are no longer ahead of it.
+     */
+    private void prefetch(int position) {
+        int direction = position >= mLastPosition ? 1 : -1;
+        mLastPosition = position;
+        for (int i = mPrefetching.size() - 1; i >= 0; i--) {
+            int p = mPrefetching.keyAt(i);
+            if ((p - position) * direction <= 0
+                    || Math.abs(p - position) > PREFETCH_COUNT) {
+                mLoader.cancel(mPrefetching.valueAt(i));
+                mPrefetching.removeAt(i);
+            }
+        }
+        for (int i = mPrefetched.size() - 1; i >= 0; i--) {
+            if (Math.abs(mPrefetched.keyAt(i) - position) > MAX_PREFETCHED) {
+                recycle(mPrefetched.valueAt(i));
+                mPrefetched.removeAt(i);
+            }
+        }
+        for (int i = 1; i <= PREFETCH_COUNT; i++) {
+            int p = position + i * direction;
+            if (p < 0 || p >= mSize) {
+                break;
+            }
+            if (mPrefetched.get(p) == null && mPrefetching.get(p) == null) {
+                LoadRequest request = new LoadRequest(p, null);
+                mPrefetching.put(p, request);
+                mLoader.submit(request);
+            }
+        }
+    }
+
+    private void clearPrefetched() {
+        mLoader.cancelAll(this, true);
+        mPrefetching.clear();
+        for (int i = 0; i < mPrefetched.size(); i++) {
+            recycle(mPrefetched.valueAt(i));
+        }
+        mPrefetched.clear();
+    }
+
+    private void recycle(T object) {
+        if (object == null) {
+            return;
+        }
+        synchronized (mRecycled) {
+            if (mRecycled.size() < MAX_PREFETCHED) {
+                mRecycled.add(object);
+                return;
+            }
+        }
+        onDiscard(object);
+    }
+
+    private T takeRecycled() {
+        synchronized (mRecycled) {
+            int size = mRecycled.size();
+            return size > 0 ? mRecycled.remove(size - 1) : null;
+        }
+    }
+
     private T cachedLoadObject() {
         if (mLoadingObject == null) {
             mLoadingObject = getLoadingObject();
@@ -197,8 +352,9 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     }
 
     public void changeCursor(Cursor cursor) {
-        mLoadHandler.removeCallbacksAndMessages(null);
+        mLoader.cancelAll(this, false);
         mHandler.removeCallbacksAndMessages(null);
+        clearPrefetched();
         synchronized (mCursorLock) {
             mHasCursor = (cursor != null);
             mCursorAdapter.changeCursor(cursor);
@@ -210,4 +366,11 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     public abstract T getRowObject(Cursor c, T recycleObject);
     public abstract T getLoadingObject();
     protected abstract long getItemId(Cursor c);
-}
\ No newline at end of file
+
+    /**
+     * Called for a row object that is dropped rather than kept for reuse,
+     * to release what it holds. It is no longer shown.
+     */
+    protected void onDiscard(T object) {
+    }
+}
@@ -24,24 +24,25 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.net.Uri;
 import android.os.Binder;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.Images;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
 import com.android.browser.BrowserActivity;
+import com.android.browser.ImageCache;
 import com.android.browser.R;
 import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.ImagePresence;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -59,18 +60,20 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
             BrowserContract.Bookmarks._ID,
             BrowserContract.Bookmarks.TITLE,
             BrowserContract.Bookmarks.URL,
-            BrowserContract.Bookmarks.FAVICON,
+            ImagePresence.HAS_FAVICON,
             BrowserContract.Bookmarks.IS_FOLDER,
             BrowserContract.Bookmarks.POSITION, /* needed for order by */
-            BrowserContract.Bookmarks.THUMBNAIL,
-            BrowserContract.Bookmarks.PARENT};
+            ImagePresence.HAS_THUMBNAIL,
+            BrowserContract.Bookmarks.PARENT,
+            ImagePresence.IMAGE_VERSION};
     private static final int BOOKMARK_INDEX_ID = 0;
     private static final int BOOKMARK_INDEX_TITLE = 1;
     private static final int BOOKMARK_INDEX_URL = 2;
-    private static final int BOOKMARK_INDEX_FAVICON = 3;
+    private static final int BOOKMARK_INDEX_HAS_FAVICON = 3;
     private static final int BOOKMARK_INDEX_IS_FOLDER = 4;
-    private static final int BOOKMARK_INDEX_THUMBNAIL = 6;
+    private static final int BOOKMARK_INDEX_HAS_THUMBNAIL = 6;
     private static final int BOOKMARK_INDEX_PARENT_ID = 7;
+    private static final int BOOKMARK_INDEX_IMAGE_VERSION = 8;
 
     @Override
     public RemoteViewsFactory onGetViewFactory(Intent intent) {
@@ -249,24 +252,18 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
                 views.setImageViewResource(R.id.favicon, R.drawable.ic_bookmark_widget_bookmark_holo_dark);
                 views.setDrawableParameters(R.id.thumb, true, 0, -1, null, -1);
             } else {
-                // RemoteViews require a valid bitmap config
-                Options options = new Options();
-                options.inPreferredConfig = Config.ARGB_8888;
-                Bitmap thumbnail = null, favicon = null;
-                byte[] blob = mBookmarks.getBlob(BOOKMARK_INDEX_THUMBNAIL);
+                Bitmap thumbnail = getImage(BOOKMARK_INDEX_HAS_THUMBNAIL,
+                        Images.THUMBNAIL, url);
+                Bitmap favicon = getImage(BOOKMARK_INDEX_HAS_FAVICON,
+                        Images.FAVICON, url);
                 views.setDrawableParameters(R.id.thumb, true, 255, -1, null, -1);
-                if (blob != null && blob.length > 0) {
-                    thumbnail = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                if (thumbnail != null) {
                     views.setImageViewBitmap(R.id.thumb, thumbnail);
                 } else {
                     views.setImageViewResource(R.id.thumb,
                             R.drawable.browser_thumbnail);
                 }
-                blob = mBookmarks.getBlob(BOOKMARK_INDEX_FAVICON);
-                if (blob != null && blob.length > 0) {
-                    favicon = BitmapFactory.decodeByteArray(
-                            blob, 0, blob.length, options);
+                if (favicon != null) {
                     views.setImageViewBitmap(R.id.favicon, favicon);
                 } else {
                     views.setImageViewResource(R.id.favicon,
@@ -291,6 +288,58 @@ public class BookmarkThumbnailWidgetService extends RemoteViewsService {
             return views;
         }
 
+        /**
+         * Returns the image of the bookmark at the cursor's position, scaled
+         * for the widget. On a miss the images of the next rows that aren't
+         * cached scaled either are fetched along with it.
+         */
+        private Bitmap getImage(int hasImageIndex, final String column, String url) {
+            if (mBookmarks.getInt(hasImageIndex) == 0) {
+                return null;
+            }
+            final WidgetImageCache widgetCache = WidgetImageCache.getInstance(mContext);
+            long version = mBookmarks.getLong(BOOKMARK_INDEX_IMAGE_VERSION);
+            Bitmap bitmap = widgetCache.get(column, url, version);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            ImageCache cache = ImageCache.getInstance(mContext);
+            bitmap = cache.acquire(column, url);
+            if (bitmap != null) {
+                return putScaled(cache, column, url, version, bitmap);
+            }
+            ArrayList<String> urls = ImageCache.getUpcomingUrls(mBookmarks, hasImageIndex,
+                    BOOKMARK_INDEX_URL, ImageCache.BATCH_SIZE, new ImageCache.RowFilter() {
+                        @Override
+                        public boolean accept(Cursor cursor) {
+                            return !widgetCache.contains(column,
+                                    cursor.getString(BOOKMARK_INDEX_URL),
+                                    cursor.getLong(BOOKMARK_INDEX_IMAGE_VERSION));
+                        }
+                    });
+            long token = Binder.clearCallingIdentity();
+            try {
+                cache.fetch(column, urls);
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+            bitmap = cache.acquire(column, url);
+            return bitmap != null ? putScaled(cache, column, url, version, bitmap) : null;
+        }
+
+        /**
+         * Caches a scaled copy of an acquired image and releases it, the
+         * copy is what the widget shows.
+         */
+        private Bitmap putScaled(ImageCache cache, String column, String url, long version,
+                Bitmap bitmap) {
+            try {
+                return WidgetImageCache.getInstance(mContext).put(column, url, version, bitmap);
+            } finally {
+                cache.release(bitmap);
+            }
+        }
+
         @Override
         public int getViewTypeCount() {
             return 2;
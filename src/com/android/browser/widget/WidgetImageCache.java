@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.widget;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.BrowserContract.Images;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.R;
+import com.android.browser.provider.BrowserProvider2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Thumbnails and favicons of the bookmark widget, scaled to the size of
+ * its cells and stored as raw pixels, so that refreshing the widget reads
+ * small files instead of decoding the full images from the provider.
+ *
+ * Files are keyed by image column, url and
+ * {@link BrowserProvider2.ImagePresence#IMAGE_VERSION}, so a rewritten
+ * image is never served stale even if its change notification was missed.
+ * Notifications only serve to delete the old files early. The directory is
+ * bounded by {@link #MAX_BYTES}, dropping the least recently read files.
+ */
+public class WidgetImageCache {
+
+    private static final String LOGTAG = "WidgetImageCache";
+
+    private static final String DIRECTORY = "widget_images";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    // Reads only touch a file this long after it was last touched; trimming
+    // doesn't need recency any finer than that
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 60 * 1000;
+    // Bumped when the file layout changes
+    private static final int FORMAT = 1;
+
+    private static WidgetImageCache sInstance;
+
+    private final File mDirectory;
+    private final int mThumbnailWidth;
+    private final int mThumbnailHeight;
+    private final int mFaviconSize;
+    private long mSize = -1;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public static synchronized WidgetImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetImageCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WidgetImageCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY);
+        mDirectory.mkdirs();
+        Resources res = context.getResources();
+        mThumbnailWidth = res.getDimensionPixelSize(R.dimen.widgetColumnWidth);
+        mThumbnailHeight = res.getDimensionPixelSize(R.dimen.widgetThumbnailHeight);
+        mFaviconSize = res.getDimensionPixelSize(R.dimen.favicon_size);
+        context.getContentResolver().registerContentObserver(Images.CONTENT_URI,
+                false, new ContentObserver(new Handler(BackgroundHandler.getLooper())) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        String url = uri != null ? uri.getQueryParameter(
+                                BrowserProvider2.PARAM_IMAGE_URL) : null;
+                        if (url != null) {
+                            delete(url);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns whether the image is cached, without reading it.
+     */
+    public boolean contains(String column, String url, long version) {
+        return getFile(column, url, version).exists();
+    }
+
+    /**
+     * Returns the scaled image, or null if it isn't cached.
+     *
+     * @param column {@link Images#FAVICON} or {@link Images#THUMBNAIL}
+     */
+    public Bitmap get(String column, String url, long version) {
+        File file = getFile(column, url, version);
+        // Zero if the file doesn't exist
+        long modified = file.lastModified();
+        if (modified == 0) {
+            countMiss();
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT || !url.equals(in.readUTF())) {
+                // Another url with the same hash
+                countMiss();
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            Bitmap bitmap = Bitmap.createBitmap(width, height, getConfig(column));
+            byte[] pixels = new byte[bitmap.getByteCount()];
+            in.readFully(pixels);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            long now = System.currentTimeMillis();
+            if (now - modified > TOUCH_INTERVAL_MILLIS) {
+                file.setLastModified(now);
+            }
+            synchronized (this) {
+                mHitCount++;
+            }
+            return bitmap;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read " + file, e);
+            file.delete();
+            countMiss();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Scales the image to the widget's cells and caches it, replacing the
+     * older versions of it.
+     *
+     * @return the scaled image
+     */
+    public Bitmap put(String column, String url, long version, Bitmap image) {
+        Bitmap scaled = scale(column, image);
+        File file = getFile(column, url, version);
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            // Unique, concurrent puts of the same image may race
+            temp = File.createTempFile(file.getName() + "-", TEMP_SUFFIX, mDirectory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT);
+            out.writeUTF(url);
+            out.writeInt(scaled.getWidth());
+            out.writeInt(scaled.getHeight());
+            ByteBuffer pixels = ByteBuffer.allocate(scaled.getByteCount());
+            scaled.copyPixelsToBuffer(pixels);
+            out.write(pixels.array());
+            out.close();
+            out = null;
+            deleteVersions(column, url);
+            if (temp.renameTo(file)) {
+                onWritten(file.length());
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to cache " + column + " of " + url, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Deletes the cached images of the given url.
+     */
+    public void delete(String url) {
+        deleteVersions(Images.FAVICON, url);
+        deleteVersions(Images.THUMBNAIL, url);
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private synchronized void countMiss() {
+        mMissCount++;
+    }
+
+    /**
+     * Thumbnails are cropped to fill the cell as the widget's centerCrop
+     * would, favicons are fit into their square.
+     */
+    private Bitmap scale(String column, Bitmap image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Rect src = new Rect(0, 0, width, height);
+        int targetWidth;
+        int targetHeight;
+        if (Images.THUMBNAIL.equals(column)) {
+            targetWidth = mThumbnailWidth;
+            targetHeight = mThumbnailHeight;
+            if (width * targetHeight > height * targetWidth) {
+                int cropped = height * targetWidth / targetHeight;
+                src.left = (width - cropped) / 2;
+                src.right = src.left + cropped;
+            } else {
+                int cropped = width * targetHeight / targetWidth;
+                src.top = (height - cropped) / 2;
+                src.bottom = src.top + cropped;
+            }
+        } else {
+            float scale = Math.min(1f, (float) mFaviconSize / Math.max(width, height));
+            targetWidth = Math.max(1, Math.round(width * scale));
+            targetHeight = Math.max(1, Math.round(height * scale));
+        }
+        Bitmap scaled = Bitmap.createBitmap(targetWidth, targetHeight, getConfig(column));
+        Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(image, src, new Rect(0, 0, targetWidth, targetHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return scaled;
+    }
+
+    private static Bitmap.Config getConfig(String column) {
+        // Thumbnails are opaque page captures
+        return Images.THUMBNAIL.equals(column)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    private void deleteVersions(String column, String url) {
+        final String prefix = getPrefix(column, url);
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            // Leave the temp files of puts in progress alone
+            if (name.startsWith(prefix) && !name.endsWith(TEMP_SUFFIX)) {
+                long length = file.length();
+                if (file.delete()) {
+                    onWritten(-length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks the size of the directory, trimming it once it is too large.
+     */
+    private void onWritten(long delta) {
+        File[] files;
+        synchronized (this) {
+            if (mSize < 0) {
+                mSize = 0;
+                files = mDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        mSize += file.length();
+                    }
+                }
+                return;
+            }
+            mSize += delta;
+            if (mSize <= MAX_BYTES) {
+                return;
+            }
+            files = mDirectory.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified();
+                    long r = rhs.lastModified();
+                    return l < r ? -1 : (l > r ? 1 : 0);
+                }
+            });
+            // Trim to three quarters so that trimming isn't done every write
+            for (int i = 0; i < files.length && mSize > MAX_BYTES * 3 / 4; i++) {
+                long length = files[i].length();
+                if (files[i].delete()) {
+                    mSize -= length;
+                }
+            }
+        }
+    }
+
+    private File getFile(String column, String url, long version) {
+        return new File(mDirectory, getPrefix(column, url) + version);
+    }
+
+    private static String getPrefix(String column, String url) {
+        return column + "-" + Integer.toHexString(url.hashCode()) + "-";
+    }
+}
@@ -16,11 +16,21 @@
 
 package com.android.browser.tests;
 
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.HistoryBuckets;
+import com.android.browser.provider.BrowserProvider2.HistoryVisits;
+import com.android.browser.provider.BrowserProvider2.HistoryWindow;
+import com.android.browser.provider.BrowserProvider2.ImagePresence;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.provider.Frecency;
 import com.android.browser.tests.utils.BP2TestCaseHelper;
+import com.android.common.content.SyncStateContentProviderHelper;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
@@ -41,6 +51,8 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
     static final int INDEX_PARENT = 0;
     static final int INDEX_ACCOUNT_NAME = 1;
     static final int INDEX_ACCOUNT_TYPE = 2;
+    // onUpgrade runs every step past the old version regardless
+    static final int NEWEST_VERSION = Integer.MAX_VALUE;
 
     public void testUpdateImage() {
         String url = "http://stub1.com";
@@ -56,6 +68,332 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    public void testPruneImagesAfterHistoryDelete() {
+        String url = "http://stub1.com";
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.History.URL, url);
+        values.put(BrowserContract.History.FAVICON, new byte[] { 1 });
+        Uri history = getMockContentResolver().insert(
+                BrowserContract.History.CONTENT_URI, values);
+        getProvider().drainPruneImages();
+        assertEquals(1, countImages(url));
+        getMockContentResolver().delete(history, null, null);
+        assertEquals(1, getProvider().drainPruneImages());
+        assertEquals(0, countImages(url));
+    }
+
+    public void testImageVersionChangesOnWrite() {
+        String url = "http://stub1.com";
+        insertBookmark(url, "stub 1");
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, new byte[] { 1 });
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        long first = getImageVersion(url);
+        assertTrue(first > 0);
+        values.put(Images.FAVICON, new byte[] { 2 });
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        long second = getImageVersion(url);
+        assertTrue(second > first);
+        // Writing the same image again keeps it
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        assertEquals(second, getImageVersion(url));
+        // Listings carry it along with the image presence
+        Cursor c = getMockContentResolver().query(BrowserContract.Bookmarks.CONTENT_URI,
+                new String[] { ImagePresence.IMAGE_VERSION },
+                BrowserContract.Bookmarks.URL + "=?", new String[] { url }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(second, c.getLong(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    private long getImageVersion(String url) {
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { ImagePresence.IMAGE_VERSION }, Images.URL + "=?",
+                new String[] { url }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testUpgradeFromVersion24() {
+        SQLiteDatabase db = createOldDatabase();
+        try {
+            getProvider().getDatabaseHelper().onUpgrade(db, 24, NEWEST_VERSION);
+            // Version 24 starts over, only the default bookmarks are left
+            assertEquals(0, count(db, "SELECT COUNT(*) FROM history"));
+            assertEquals(0, count(db, "SELECT COUNT(*) FROM history_fts"));
+            assertEquals(count(db, "SELECT COUNT(*) FROM bookmarks"
+                    + " WHERE folder = 0 AND url IS NOT NULL"),
+                    count(db, "SELECT COUNT(*) FROM combined_rows"));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testUpgradeFromVersion25() {
+        SQLiteDatabase db = createOldDatabase();
+        try {
+            getProvider().getDatabaseHelper().onUpgrade(db, 25, NEWEST_VERSION);
+            assertEquals(1, count(db, "SELECT COUNT(*) FROM combined_rows"
+                    + " WHERE url = 'http://stub1.com'"));
+            assertEquals(0, count(db, "SELECT COUNT(*) FROM sqlite_master"
+                    + " WHERE name = 'combined'"));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Returns a database with the tables of versions 24 and 25, the legacy
+     * combined view and one visited url.
+     */
+    private SQLiteDatabase createOldDatabase() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE bookmarks (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " title TEXT, url TEXT, folder INTEGER NOT NULL DEFAULT 0,"
+                + " parent INTEGER, position INTEGER NOT NULL, insert_after INTEGER,"
+                + " deleted INTEGER NOT NULL DEFAULT 0, account_name TEXT,"
+                + " account_type TEXT, sourceid TEXT, version INTEGER NOT NULL DEFAULT 1,"
+                + " created INTEGER, modified INTEGER, dirty INTEGER NOT NULL DEFAULT 0,"
+                + " sync1 TEXT, sync2 TEXT, sync3 TEXT, sync4 TEXT, sync5 TEXT)");
+        db.execSQL("CREATE TABLE history (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " title TEXT, url TEXT NOT NULL, created INTEGER, date INTEGER,"
+                + " visits INTEGER NOT NULL DEFAULT 0, user_entered INTEGER)");
+        db.execSQL("CREATE TABLE images (url_key TEXT UNIQUE NOT NULL,"
+                + " favicon BLOB, thumbnail BLOB, touch_icon BLOB)");
+        db.execSQL("CREATE TABLE searches (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " search TEXT, date LONG)");
+        db.execSQL("CREATE TABLE settings (key TEXT PRIMARY KEY, value TEXT NOT NULL)");
+        new SyncStateContentProviderHelper().createDatabase(db);
+        db.execSQL("CREATE VIEW combined AS SELECT _id, title, url FROM history"
+                + " UNION ALL SELECT _id, title, url FROM bookmarks");
+        db.execSQL("INSERT INTO history (title, url, created, date, visits)"
+                + " VALUES ('stub 1', 'http://stub1.com', 1, 1, 1)");
+        return db;
+    }
+
+    private static int count(SQLiteDatabase db, String sql) {
+        return (int) DatabaseUtils.longForQuery(db, sql, null);
+    }
+
+    private int countImages(String url) {
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.URL }, Images.URL + "=?",
+                new String[] { url }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testOmniboxSuggestionsMatch() {
+        insertHistory("http://www.example.com/some/path", "Example Title");
+        assertEquals(1, countOmniboxMatches("exam"));
+        assertEquals(1, countOmniboxMatches("www.example.com/so"));
+        assertEquals(1, countOmniboxMatches("http://www.exa"));
+        assertEquals(1, countOmniboxMatches("titl"));
+        assertEquals(0, countOmniboxMatches("elsewhere"));
+        assertEquals(0, countOmniboxMatches("://"));
+        // Bookmarks hide history items with the same url
+        insertBookmark("http://www.example.com/some/path", "Example Title");
+        Cursor c = queryOmnibox("exam");
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(c.getColumnIndexOrThrow(
+                    OmniboxSuggestions.IS_BOOKMARK)));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testBuildFullTextMatch() {
+        assertEquals("\"goo*\"", BrowserProvider2.buildFullTextMatch("goo"));
+        assertEquals("\"http www goo*\"",
+                BrowserProvider2.buildFullTextMatch("http://www.goo"));
+        assertNull(BrowserProvider2.buildFullTextMatch("://"));
+    }
+
+    private int countOmniboxMatches(String input) {
+        Cursor c = queryOmnibox(input);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private Cursor queryOmnibox(String input) {
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(OmniboxSuggestions.QUERY_PARAMETER_MATCH, input)
+                .build();
+        return getMockContentResolver().query(uri, null, null, null, null);
+    }
+
+    public void testFrecencyOrdering() {
+        long now = System.currentTimeMillis();
+        long week = Frecency.HALF_LIFE_MILLIS;
+        double once = Frecency.visit(Frecency.NONE, now);
+        double twice = Frecency.visit(once, now);
+        double old = Frecency.visit(Frecency.NONE, now - 2 * week);
+        assertTrue(twice > once);
+        assertTrue(once > old);
+        assertEquals(2.0, Frecency.score(twice, now), 1e-6);
+        assertEquals(0.25, Frecency.score(old, now), 1e-6);
+        // A visit two half-lives ago is worth less than one today
+        insertHistoryWithFrecency("http://old.com", old);
+        insertHistoryWithFrecency("http://new.com", once);
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "100").build();
+        Cursor c = getMockContentResolver().query(uri, new String[] {
+                OmniboxSuggestions.URL, OmniboxSuggestions.IS_BOOKMARK }, null, null, null);
+        try {
+            // Default bookmarks come first
+            while (c.moveToNext() && c.getInt(1) != 0) {
+            }
+            assertFalse(c.isAfterLast());
+            assertEquals("http://new.com", c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testParseLimit() {
+        assertEquals(5, BrowserProvider2.parseLimit("5", 20));
+        assertEquals(20, BrowserProvider2.parseLimit("5 rows", 20));
+        assertEquals(20, BrowserProvider2.parseLimit("-1", 20));
+    }
+
+    private void insertHistoryWithFrecency(String url, double frecency) {
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.History.URL, url);
+        values.put(Frecency.COLUMN, frecency);
+        getMockContentResolver().insert(BrowserContract.History.CONTENT_URI, values);
+    }
+
+    public void testRecordVisits() {
+        String url = "http://stub1.com";
+        assertNotNull(recordVisits(url, 1));
+        assertNotNull(recordVisits(url, 2));
+        Cursor c = getMockContentResolver().query(BrowserContract.History.CONTENT_URI,
+                new String[] { BrowserContract.History.VISITS, Frecency.COLUMN },
+                BrowserContract.History.URL + "=?", new String[] { url }, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(3, c.getInt(0));
+            assertEquals(3.0, Frecency.score(c.getDouble(1), System.currentTimeMillis()), 0.01);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRecordVisitsTruncatesHistory() {
+        int urls = BrowserProvider2.MAX_HISTORY_COUNT
+                + 2 * BrowserProvider2.HISTORY_TRUNCATE_INTERVAL;
+        for (int i = 0; i < urls; i++) {
+            recordVisits("http://stub" + i + ".com", 1);
+        }
+        Cursor c = getMockContentResolver().query(BrowserContract.History.CONTENT_URI,
+                null, null, null, null);
+        try {
+            assertTrue(c.getCount() < BrowserProvider2.MAX_HISTORY_COUNT
+                    + BrowserProvider2.HISTORY_TRUNCATE_INTERVAL);
+        } finally {
+            c.close();
+        }
+    }
+
+    private Uri recordVisits(String url, int visits) {
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.History.URL, url);
+        values.put(BrowserContract.History.VISITS, visits);
+        return getMockContentResolver().insert(HistoryVisits.CONTENT_URI, values);
+    }
+
+    public void testHistoryBucketsAndWindow() {
+        long now = System.currentTimeMillis();
+        long hour = 60 * 60 * 1000;
+        // Three visits in the last hour, two a day ago
+        for (int i = 0; i < 5; i++) {
+            ContentValues values = new ContentValues();
+            values.put(BrowserContract.History.URL, "http://stub" + i + ".com");
+            values.put(BrowserContract.History.DATE_LAST_VISITED,
+                    now - (i < 3 ? i : 24 + i) * hour);
+            values.put(BrowserContract.History.VISITS, 1);
+            getMockContentResolver().insert(BrowserContract.History.CONTENT_URI, values);
+        }
+        String where = BrowserContract.History.VISITS + " > 0";
+        long boundary = now - 3 * hour;
+        Uri uri = HistoryBuckets.CONTENT_URI.buildUpon()
+                .appendQueryParameter(HistoryBuckets.PARAM_BOUNDARIES, Long.toString(boundary))
+                .build();
+        Cursor c = getMockContentResolver().query(uri,
+                new String[] { HistoryBuckets.BUCKET, HistoryBuckets.COUNT }, where, null, null);
+        try {
+            assertTrue(c.moveToNext());
+            assertEquals(0, c.getInt(0));
+            assertEquals(3, c.getInt(1));
+            assertTrue(c.moveToNext());
+            assertEquals(1, c.getInt(0));
+            assertEquals(2, c.getInt(1));
+            assertFalse(c.moveToNext());
+        } finally {
+            c.close();
+        }
+
+        // Page through the newest bucket two rows at a time
+        where += " AND " + BrowserContract.Combined.DATE_LAST_VISITED + " > ?";
+        String[] args = new String[] { Long.toString(boundary) };
+        Cursor page = queryHistoryWindow(null, null, where, args);
+        try {
+            assertEquals(2, page.getCount());
+            page.moveToLast();
+            assertEquals("http://stub1.com", page.getString(1));
+            page = queryHistoryWindow(page.getString(0), page.getString(2), where, args);
+            assertEquals(1, page.getCount());
+            page.moveToFirst();
+            assertEquals("http://stub2.com", page.getString(1));
+        } finally {
+            page.close();
+        }
+    }
+
+    public void testHistoryBucketsInvalidBoundaries() {
+        Uri uri = HistoryBuckets.CONTENT_URI.buildUpon()
+                .appendQueryParameter(HistoryBuckets.PARAM_BOUNDARIES, "1,yesterday")
+                .build();
+        try {
+            getMockContentResolver().query(uri,
+                    new String[] { HistoryBuckets.BUCKET, HistoryBuckets.COUNT },
+                    null, null, null);
+            fail("Malformed boundaries were accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private Cursor queryHistoryWindow(String afterDate, String afterId, String where,
+            String[] args) {
+        Uri.Builder builder = HistoryWindow.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "2");
+        if (afterDate != null) {
+            builder.appendQueryParameter(HistoryWindow.PARAM_AFTER_DATE, afterDate);
+            builder.appendQueryParameter(HistoryWindow.PARAM_AFTER_ID, afterId);
+        }
+        return getMockContentResolver().query(builder.build(), new String[] {
+                BrowserContract.Combined.DATE_LAST_VISITED, BrowserContract.Combined.URL,
+                HistoryWindow.HISTORY_ID }, where, args, null);
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.provider.BrowserContract.Images;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Reports how the hot BrowserProvider2 lookups scale with the number of
+ * history and bookmark rows, and checks that they are served by an index.
+ */
+@LargeTest
+public class BP2QueryScalingTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2-QueryScaling";
+
+    private static final int[] ROW_COUNTS = new int[] { 1000, 5000, 20000 };
+    private static final int ITERATIONS = 50;
+    private static final int[] COMBINED_ROW_COUNTS = new int[] { 10000, 50000, 100000 };
+    private static final int COMBINED_ITERATIONS = 10;
+
+    public void testUrlLookupsUseIndices() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        assertUsesIndex(db, "SELECT COUNT(*) FROM bookmarks WHERE url = ?");
+        assertUsesIndex(db, "SELECT COUNT(*) FROM history WHERE url = ?");
+        assertUsesIndex(db, "SELECT _id FROM bookmarks WHERE parent = ? AND deleted = 0");
+        assertUsesIndex(db, "SELECT _id FROM history ORDER BY date DESC LIMIT 10");
+        assertUsesIndex(db, "SELECT _id FROM combined_rows WHERE url = ?");
+        assertUsesIndex(db, "SELECT _id FROM combined_rows ORDER BY date DESC LIMIT 10");
+    }
+
+    /**
+     * Compares combined reads served by the combined table with the union
+     * query they replaced, which queries restricted to the local account
+     * still run. The rows written here all belong to the local account, so
+     * both return the same rows.
+     */
+    public void testCombinedQueryScaling() {
+        ContentResolver cr = getMockContentResolver();
+        Uri union = BrowserContract.Combined.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Bookmarks.PARAM_ACCOUNT_TYPE, "null")
+                .appendQueryParameter(Bookmarks.PARAM_ACCOUNT_NAME, "null")
+                .build();
+        int inserted = 0;
+        for (int rows : COMBINED_ROW_COUNTS) {
+            populate(inserted, rows);
+            inserted = rows;
+            reportCombined(cr, rows, "union", union);
+            reportCombined(cr, rows, "table", BrowserContract.Combined.CONTENT_URI);
+        }
+    }
+
+    public void testQueryScaling() {
+        int inserted = 0;
+        for (int rows : ROW_COUNTS) {
+            populate(inserted, rows);
+            inserted = rows;
+            report(rows);
+        }
+    }
+
+    private void populate(int from, int to) {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = from; i < to; i++) {
+                String url = urlFor(i);
+                values.clear();
+                values.put(History.URL, url);
+                values.put(History.TITLE, "History " + i);
+                values.put(History.VISITS, i % 17);
+                values.put(History.DATE_LAST_VISITED, now - i * 1000L);
+                db.insert("history", null, values);
+                if (i % 10 == 0) {
+                    values.clear();
+                    values.put(Bookmarks.URL, url);
+                    values.put(Bookmarks.TITLE, "Bookmark " + i);
+                    values.put(Bookmarks.PARENT, 1);
+                    values.put(Bookmarks.POSITION, i);
+                    db.insert("bookmarks", null, values);
+                }
+                if (i % 4 == 0) {
+                    values.clear();
+                    values.put(Images.URL, url);
+                    values.put(Images.FAVICON, new byte[] { 1 });
+                    db.insert("images", null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void report(int rows) {
+        ContentResolver cr = getMockContentResolver();
+        String probe = urlFor(rows / 2);
+        String[] args = new String[] { probe };
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            close(cr.query(Bookmarks.CONTENT_URI, new String[] { Bookmarks.URL },
+                    Bookmarks.URL + " == ?", args, null));
+        }
+        log(rows, "bookmark status", start);
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            close(cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
+                    History.URL + "=?", args, null));
+        }
+        log(rows, "visited history lookup", start);
+
+        start = SystemClock.elapsedRealtime();
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < ITERATIONS; i++) {
+            // Each image update runs getUrlCount on both tables
+            values.clear();
+            values.put(Images.URL, probe);
+            values.put(Images.FAVICON, new byte[] { (byte) i });
+            cr.update(Images.CONTENT_URI, values, null, null);
+        }
+        log(rows, "image update", start);
+
+        start = SystemClock.elapsedRealtime();
+        Uri suggest = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "5").build();
+        for (int i = 0; i < ITERATIONS; i++) {
+            close(cr.query(suggest, null, OmniboxSuggestions.URL + " LIKE ?",
+                    new String[] { "http://site" + (rows / 3) + "%" }, null));
+        }
+        log(rows, "omnibox suggestions", start);
+
+        start = SystemClock.elapsedRealtime();
+        Uri match = suggest.buildUpon().appendQueryParameter(
+                OmniboxSuggestions.QUERY_PARAMETER_MATCH, "site" + (rows / 3)).build();
+        for (int i = 0; i < ITERATIONS; i++) {
+            close(cr.query(match, null, null, null, null));
+        }
+        log(rows, "omnibox suggestions (fts)", start);
+    }
+
+    private void reportCombined(ContentResolver cr, int rows, String variant, Uri uri) {
+        String[] projection = new String[] { BrowserContract.Combined._ID,
+                BrowserContract.Combined.URL, BrowserContract.Combined.IS_BOOKMARK };
+        String probe = urlFor(rows / 2);
+        Uri page = uri.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "50").build();
+        String since = Long.toString(System.currentTimeMillis() - 3600 * 1000L);
+        int count = 0;
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < COMBINED_ITERATIONS; i++) {
+            count += close(cr.query(uri, projection, BrowserContract.Combined.URL + " == ?",
+                    new String[] { probe }, null));
+        }
+        log(rows, variant + " combined url lookup", start, COMBINED_ITERATIONS);
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < COMBINED_ITERATIONS; i++) {
+            count += close(cr.query(page, projection,
+                    BrowserContract.Combined.VISITS + " > 0 AND "
+                    + BrowserContract.Combined.DATE_LAST_VISITED + " > ?",
+                    new String[] { since },
+                    BrowserContract.Combined.DATE_LAST_VISITED + " DESC"));
+        }
+        log(rows, variant + " combined recent page", start, COMBINED_ITERATIONS);
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < COMBINED_ITERATIONS; i++) {
+            count += close(cr.query(page, projection,
+                    BrowserContract.Combined.VISITS + " > 0", null,
+                    BrowserContract.Combined.VISITS + " DESC"));
+        }
+        log(rows, variant + " combined most visited", start, COMBINED_ITERATIONS);
+
+        // One bookmarked url, a page of recent visits, a page of most visited
+        assertEquals(COMBINED_ITERATIONS * (1 + 50 + 50), count);
+    }
+
+    private void assertUsesIndex(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                sql.contains("?") ? new String[] { "x" } : null);
+        try {
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnCount() - 1)).append('\n');
+            }
+            assertTrue("Full scan for " + sql + ":\n" + plan,
+                    plan.indexOf("INDEX") >= 0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String urlFor(int i) {
+        return "http://site" + i + ".example.com/page";
+    }
+
+    private static int close(Cursor c) {
+        int count = 0;
+        if (c != null) {
+            count = c.getCount();
+            c.close();
+        }
+        return count;
+    }
+
+    private static void log(int rows, String what, long start) {
+        log(rows, what, start, ITERATIONS);
+    }
+
+    private static void log(int rows, String what, long start, int iterations) {
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, rows + " rows, " + what + ": "
+                + ((float) elapsed / iterations) + "ms/op");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.CrashRecoveryJournal;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Checks that a crash recovery backup only writes the tabs that changed.
+ */
+@MediumTest
+public class CrashRecoveryJournalTests extends AndroidTestCase {
+
+    private static final String TAG = "CrashRecoveryJournal";
+
+    private static final int[] TAB_COUNTS = new int[] { 1, 10, 30, 60 };
+    // Roughly the size of a saved WebView back/forward list
+    private static final int TAB_STATE_SIZE = 16 * 1024;
+
+    private CrashRecoveryJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournal = new CrashRecoveryJournal(
+                new File(getContext().getFilesDir(), "test_browser_state"));
+        mJournal.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournal.clear();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        Bundle state = createState(3, 0);
+        mJournal.write(state);
+        Bundle read = mJournal.read();
+        assertNotNull(read);
+        assertEquals(2, read.getLong("current"));
+        for (int i = 0; i < 3; i++) {
+            Bundle tab = read.getBundle(Integer.toString(i));
+            assertNotNull(tab);
+            assertEquals("http://site" + i + ".com/0", tab.getString("url"));
+        }
+    }
+
+    public void testLazyRead() throws IOException {
+        mJournal.write(createState(3, 0));
+        Bundle read = mJournal.readLazily();
+        Bundle stub = read.getBundle("1");
+        assertEquals("http://site1.com/0", stub.getString("url"));
+        assertNull(stub.getByteArray("webview"));
+        assertNotNull(stub.getString(CrashRecoveryJournal.STATE_HASH));
+
+        // Writing stubs back doesn't rewrite their states
+        long start = mJournal.getBytesWritten();
+        mJournal.write(read);
+        assertTrue(mJournal.getBytesWritten() - start < TAB_STATE_SIZE);
+
+        Bundle tab = mJournal.inflate(mJournal.readLazily().getBundle("1"));
+        assertEquals(1, tab.getByteArray("webview")[0]);
+        assertFalse(tab.containsKey(CrashRecoveryJournal.STATE_HASH));
+    }
+
+    public void testMissingStateFileKeepsSummary() throws IOException {
+        mJournal.write(createState(2, 0));
+        Bundle read = mJournal.readLazily();
+        File dir = new File(getContext().getFilesDir(), "test_browser_state");
+        new File(dir, read.getBundle("0").getString(CrashRecoveryJournal.STATE_HASH)
+                + ".state").delete();
+        mJournal = new CrashRecoveryJournal(dir);
+        mJournal.write(read);
+        Bundle stub = mJournal.readLazily().getBundle("0");
+        assertNotNull(stub.getString(CrashRecoveryJournal.STATE_HASH));
+        assertEquals("http://site0.com/0", mJournal.inflate(stub).getString("url"));
+    }
+
+    public void testBytesWrittenPerBackup() throws IOException {
+        long previousIncremental = 0;
+        for (int tabs : TAB_COUNTS) {
+            mJournal.clear();
+            long start = mJournal.getBytesWritten();
+            mJournal.write(createState(tabs, 0));
+            long full = mJournal.getBytesWritten() - start;
+
+            // Navigate in the current tab only
+            start = mJournal.getBytesWritten();
+            mJournal.write(createState(tabs, 1));
+            long incremental = mJournal.getBytesWritten() - start;
+
+            Log.i(TAG, tabs + " tabs: first backup " + full
+                    + " bytes, next backup " + incremental + " bytes");
+            assertTrue(incremental < 2 * TAB_STATE_SIZE);
+            if (previousIncremental > 0) {
+                // Only the index grows with the number of tabs
+                assertTrue(incremental - previousIncremental < TAB_STATE_SIZE);
+            }
+            previousIncremental = incremental;
+        }
+    }
+
+    public void testUnreferencedStatesAreDeleted() throws IOException {
+        mJournal.write(createState(5, 0));
+        mJournal.write(createState(2, 0));
+        Bundle read = mJournal.read();
+        assertNull(read.getBundle("4"));
+        File dir = new File(getContext().getFilesDir(), "test_browser_state");
+        // The index and one file per remaining tab
+        assertEquals(3, dir.listFiles().length);
+    }
+
+    /**
+     * Builds a state like TabControl.saveState; the last tab is current
+     * and has navigated the given number of times.
+     */
+    private static Bundle createState(int tabs, int navigations) {
+        Bundle state = new Bundle();
+        long[] ids = new long[tabs];
+        for (int i = 0; i < tabs; i++) {
+            int page = i == tabs - 1 ? navigations : 0;
+            Bundle tab = new Bundle();
+            tab.putString("url", "http://site" + i + ".com/" + page);
+            byte[] webViewState = new byte[TAB_STATE_SIZE];
+            webViewState[0] = (byte) i;
+            webViewState[1] = (byte) page;
+            tab.putByteArray("webview", webViewState);
+            state.putBundle(Integer.toString(i), tab);
+            ids[i] = i;
+        }
+        state.putLongArray("positions", ids);
+        state.putLong("current", tabs - 1);
+        return state;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.HttpClientPool;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.util.EntityUtils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that HttpClientPool reuses connections and limits them per host,
+ * against a local keep-alive server.
+ */
+@MediumTest
+public class HttpClientPoolTests extends AndroidTestCase {
+
+    private KeepAliveServer mServer;
+    private HttpClientPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new KeepAliveServer();
+        SchemeRegistry transport = new SchemeRegistry();
+        transport.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        mPool = new HttpClientPool(transport, 4, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.getClient().getConnectionManager().shutdown();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testConnectionReuse() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("ok", get("/suggest?q=" + i));
+        }
+        assertEquals(10, mPool.getRequestCount());
+        assertEquals(1, mPool.getConnectCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testConnectionsPerHostLimited() throws InterruptedException {
+        mServer.setResponseDelay(200);
+        Thread[] threads = new Thread[6];
+        final AtomicInteger answered = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        if ("ok".equals(get("/icon"))) {
+                            answered.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        // Counted as unanswered
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length, answered.get());
+        assertEquals(2, mServer.getMaxOpenConnections());
+        assertEquals(2, mPool.getConnectCount());
+    }
+
+    public void testCookiesNotKept() throws IOException {
+        assertEquals("ok", get("/suggest?q=a"));
+        assertEquals("ok", get("/suggest?q=ab"));
+        assertEquals(0, mServer.getCookieCount());
+    }
+
+    private String get(String path) throws IOException {
+        HttpResponse response = mPool.getClient().execute(new HttpGet(mServer.getUri(path)));
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    /**
+     * Answers every request with "ok" and a cookie, keeping connections
+     * open.
+     */
+    private static class KeepAliveServer extends Thread {
+        private final ServerSocket mSocket;
+        private final AtomicInteger mConnectionCount = new AtomicInteger();
+        private final AtomicInteger mOpenConnections = new AtomicInteger();
+        private final AtomicInteger mMaxOpenConnections = new AtomicInteger();
+        private final AtomicInteger mCookieCount = new AtomicInteger();
+        private volatile long mResponseDelay;
+
+        KeepAliveServer() throws IOException {
+            mSocket = new ServerSocket(0);
+            start();
+        }
+
+        String getUri(String path) {
+            return "http://localhost:" + mSocket.getLocalPort() + path;
+        }
+
+        int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        int getMaxOpenConnections() {
+            return mMaxOpenConnections.get();
+        }
+
+        /** Returns the number of requests that sent a cookie back. */
+        int getCookieCount() {
+            return mCookieCount.get();
+        }
+
+        void setResponseDelay(long delay) {
+            mResponseDelay = delay;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mSocket.accept();
+                } catch (IOException e) {
+                    // Closed
+                    return;
+                }
+                mConnectionCount.incrementAndGet();
+                new Thread() {
+                    @Override
+                    public void run() {
+                        int open = mOpenConnections.incrementAndGet();
+                        synchronized (mMaxOpenConnections) {
+                            if (open > mMaxOpenConnections.get()) {
+                                mMaxOpenConnections.set(open);
+                            }
+                        }
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // Closed by the client
+                        } catch (InterruptedException e) {
+                            // Shutting down
+                        } finally {
+                            mOpenConnections.decrementAndGet();
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // ignore
+                            }
+                        }
+                    }
+                }.start();
+            }
+        }
+
+        private void serve(Socket socket) throws IOException, InterruptedException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            while (in.readLine() != null) {
+                String line;
+                while ((line = in.readLine()) != null && line.length() > 0) {
+                    if (line.regionMatches(true, 0, "Cookie:", 0, 7)) {
+                        mCookieCount.incrementAndGet();
+                    }
+                }
+                if (mResponseDelay > 0) {
+                    Thread.sleep(mResponseDelay);
+                }
+                out.write(("HTTP/1.1 200 OK\r\nSet-Cookie: session=1; Path=/\r\n"
+                        + "Content-Length: 2\r\n\r\nok").getBytes("UTF-8"));
+                out.flush();
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.search.SuggestionService;
+import com.android.browser.search.SuggestionService.Suggestions;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Checks the streaming suggestion parser against canned OpenSearch
+ * responses, and compares its allocations and parse time with building
+ * the response string and a JSONArray tree.
+ */
+@LargeTest
+public class SuggestionParsingTests extends AndroidTestCase {
+
+    private static final String TAG = "SuggestionParsing";
+
+    private static final int ITERATIONS = 500;
+
+    private static final String WITH_DESCRIPTIONS =
+            "[\"andr\",[\"android\",\"android market\",\"andrew\",\"andre agassi\"],"
+            + "[\"1,000,000 results\",\"20,000 results\",\"\",\"3 results\"],"
+            + "[\"http://www.android.com/\"]]";
+
+    private static final String EMPTY_DESCRIPTIONS =
+            "[\"andr\",[\"android\",\"android market\"],[]]";
+
+    public void testParse() throws IOException {
+        Suggestions s = parse(WITH_DESCRIPTIONS);
+        assertEquals(4, s.getCount());
+        assertEquals("andrew", s.getSuggestion(2));
+        assertEquals("3 results", s.getDescription(3));
+        assertTrue(s.hasDescriptions());
+
+        s = parse(EMPTY_DESCRIPTIONS);
+        assertEquals(2, s.getCount());
+        assertFalse(s.hasDescriptions());
+        assertNull(s.getDescription(1));
+
+        s = parse("[\"x\",[\"a\",1,null]]");
+        assertEquals("1", s.getSuggestion(1));
+        assertNull(s.getSuggestion(2));
+    }
+
+    public void testParseMalformed() throws IOException {
+        try {
+            parse("[\"andr\",\"android\"]");
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected, the suggestions aren't an array
+        }
+    }
+
+    public void testParseBenchmark() throws IOException, JSONException {
+        String response = createResponse(20);
+        byte[] data = response.getBytes("UTF-8");
+        // Warm up both
+        parse(response);
+        parseTree(data);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                parseTree(data);
+            }
+            report("JSONArray", start, Debug.getThreadAllocCount());
+
+            Debug.resetThreadAllocCount();
+            start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Suggestions s = SuggestionService.parse(new ByteArrayInputStream(data), "UTF-8");
+                for (int j = 0; j < s.getCount(); j++) {
+                    s.getSuggestion(j);
+                    s.getDescription(j);
+                }
+            }
+            report("JsonReader", start, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * What suggestions cost before: the response string, a JSONArray tree,
+     * and a lookup in the tree for each column read by the adapter.
+     */
+    private static void parseTree(byte[] data) throws IOException, JSONException {
+        JSONArray results = new JSONArray(new String(data, "UTF-8"));
+        JSONArray suggestions = results.getJSONArray(1);
+        JSONArray descriptions = results.getJSONArray(2);
+        for (int j = 0; j < suggestions.length(); j++) {
+            suggestions.getString(j);
+            descriptions.getString(j);
+        }
+    }
+
+    private static Suggestions parse(String response) throws IOException {
+        return SuggestionService.parse(
+                new ByteArrayInputStream(response.getBytes("UTF-8")), "UTF-8");
+    }
+
+    private static String createResponse(int count) {
+        StringBuilder sb = new StringBuilder("[\"query\",[");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : ",").append("\"query suggestion ").append(i).append('"');
+        }
+        sb.append("],[");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : ",").append('"').append(i * 1000).append(" results\"");
+        }
+        return sb.append("]]").toString();
+    }
+
+    private static void report(String parser, long start, int allocations) {
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, parser + ": " + ((float) elapsed / ITERATIONS) + "ms, "
+                + ((float) allocations / ITERATIONS) + " allocations per response");
+    }
+}
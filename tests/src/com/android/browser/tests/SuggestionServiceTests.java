@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.search.SuggestionService;
+import com.android.browser.search.SuggestionService.Suggestions;
+
+import android.net.Uri;
+import android.net.http.AndroidHttpClient;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the suggestion requests SuggestionService sends to a local stub
+ * search engine while a word is typed.
+ */
+@MediumTest
+public class SuggestionServiceTests extends AndroidTestCase {
+
+    private static final String TAG = "SuggestionService";
+    private static final String ENGINE = "stub";
+    // Past the coalescing delay, well within the cache's time to live
+    private static final long DELAY_MS = 1000;
+
+    private static final String[] DICTIONARY = new String[] {
+        "android", "android browser", "android studio", "android developers",
+        "android auto", "android tv", "android wear", "android market",
+        "android phone", "android tablet", "browser", "browser history",
+        "browser bookmarks", "browser cache", "browser settings",
+    };
+
+    private StubEngine mEngine;
+    private AndroidHttpClient mClient;
+    private SuggestionService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEngine = new StubEngine();
+        mClient = AndroidHttpClient.newInstance("test");
+        mService = new SuggestionService(mClient);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.close();
+        mEngine.close();
+        super.tearDown();
+    }
+
+    public void testTypingReusesPrefixResults() {
+        String word = "android";
+        for (int i = 1; i <= word.length(); i++) {
+            Suggestions s = mService.query(ENGINE, word.substring(0, i),
+                    mEngine.getUri(word.substring(0, i)));
+            assertNotNull(s);
+            assertTrue(s.getCount() > 0);
+        }
+        Log.i(TAG, word.length() + " keystrokes, " + mEngine.getRequestCount()
+                + " requests, " + mService.getPrefixHitCount() + " served from a prefix");
+        assertEquals(1, mEngine.getRequestCount());
+
+        // Too few cached suggestions match, ask the engine
+        Suggestions s = mService.query(ENGINE, "android b", mEngine.getUri("android b"));
+        assertEquals("android browser", s.getSuggestion(0));
+        assertEquals(2, mEngine.getRequestCount());
+
+        // Backspacing is served from the cache
+        mService.query(ENGINE, "andro", mEngine.getUri("andro"));
+        assertEquals(2, mEngine.getRequestCount());
+    }
+
+    public void testFastTypingCancelsSupersededQueries() throws InterruptedException {
+        // Time stands still until every keystroke is in
+        StoppedClock clock = new StoppedClock();
+        mService = new SuggestionService(mClient, clock);
+        String word = "browser";
+        Thread[] threads = new Thread[word.length()];
+        final AtomicInteger answered = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            // A filter task per keystroke, as SuggestionsAdapter starts them
+            threads[i] = startQuery(word.substring(0, i + 1), answered);
+            waitForQueries(i + 1);
+        }
+        clock.advance(DELAY_MS);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Log.i(TAG, word.length() + " fast keystrokes, " + mEngine.getRequestCount()
+                + " requests, " + mService.getCancelledCount() + " cancelled");
+        assertEquals(1, mEngine.getRequestCount());
+        assertEquals(1, answered.get());
+        assertEquals(word.length() - 1, mService.getCancelledCount());
+    }
+
+    public void testSharedQuerySurvivesInterruptedCaller() throws InterruptedException {
+        StoppedClock clock = new StoppedClock();
+        mService = new SuggestionService(mClient, clock);
+        final AtomicInteger answered = new AtomicInteger();
+        Thread first = startQuery("brow", answered);
+        waitForQueries(1);
+        Thread second = startQuery("brow", answered);
+        waitForQueries(2);
+        first.interrupt();
+        first.join();
+        clock.advance(DELAY_MS);
+        second.join();
+        assertEquals(1, answered.get());
+        assertEquals(1, mEngine.getRequestCount());
+        assertEquals(0, mService.getCancelledCount());
+    }
+
+    public void testSameQueryShared() throws InterruptedException {
+        Thread[] threads = new Thread[3];
+        final AtomicInteger answered = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    if (mService.query(ENGINE, "brow", mEngine.getUri("brow")) != null) {
+                        answered.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length, answered.get());
+        assertEquals(1, mEngine.getRequestCount());
+        assertEquals(threads.length - 1, mService.getSharedCount());
+    }
+
+    private Thread startQuery(final String query, final AtomicInteger answered) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                if (mService.query(ENGINE, query, mEngine.getUri(query)) != null) {
+                    answered.incrementAndGet();
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private void waitForQueries(int count) throws InterruptedException {
+        while (mService.getQueryCount() < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    /** Only moves when told to. */
+    private static class StoppedClock implements SuggestionService.Clock {
+        private volatile long mTime = 1000;
+
+        @Override
+        public long elapsedRealtime() {
+            return mTime;
+        }
+
+        void advance(long millis) {
+            mTime += millis;
+        }
+    }
+
+    /**
+     * Answers OpenSearch suggestion requests with the dictionary entries
+     * starting with the query.
+     */
+    private static class StubEngine extends Thread {
+        private final ServerSocket mSocket;
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+
+        StubEngine() throws IOException {
+            mSocket = new ServerSocket(0);
+            start();
+        }
+
+        String getUri(String query) {
+            return "http://localhost:" + mSocket.getLocalPort() + "/suggest?q="
+                    + Uri.encode(query);
+        }
+
+        int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Socket socket = mSocket.accept();
+                    try {
+                        answer(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                    return;
+                }
+            }
+        }
+
+        private void answer(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            String requestLine = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                // Skip the headers
+            }
+            mRequestCount.incrementAndGet();
+            String query = Uri.parse(requestLine.split(" ")[1]).getQueryParameter("q");
+            StringBuilder json = new StringBuilder("[\"").append(query).append("\",[");
+            boolean first = true;
+            for (String entry : DICTIONARY) {
+                if (entry.startsWith(query)) {
+                    json.append(first ? "\"" : ",\"").append(entry).append('"');
+                    first = false;
+                }
+            }
+            json.append("]]");
+            byte[] body = json.toString().getBytes("UTF-8");
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                    + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+                    .getBytes("UTF-8"));
+            out.write(body);
+            out.flush();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import com.android.browser.TabMemoryManager;
+import com.android.browser.TabMemoryManager.ManagedTab;
+
+import android.content.ComponentCallbacks2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the demotion policy of TabMemoryManager on fake tabs.
+ */
+@SmallTest
+public class TabMemoryManagerTests extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+    // Memory of a fake tab at each tier
+    private static final long[] COST = { 10 * MB, 4 * MB, MB / 4, 0 };
+
+    private ArrayList<FakeTab> mTabs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTabs = new ArrayList<FakeTab>();
+        for (int i = 0; i < 6; i++) {
+            mTabs.add(new FakeTab());
+        }
+    }
+
+    public void testWithinBudget() {
+        TabMemoryManager manager = new TabMemoryManager(100 * MB);
+        assertEquals(0, manager.enforceBudget(mTabs, 10 * MB));
+        assertTiers(0, 0, 0, 0, 0, 0);
+    }
+
+    public void testBudgetDemotesLeastRecentlyUsedFirst() {
+        // 6 live tabs and the current one are 70MB
+        TabMemoryManager manager = new TabMemoryManager(50 * MB);
+        manager.enforceBudget(mTabs, 10 * MB);
+        // Pausing 4 tabs frees 24MB
+        assertTiers(1, 1, 1, 1, 0, 0);
+        assertEquals(4, manager.getDemotionCount(TabMemoryManager.TIER_PAUSED));
+
+        manager.setBudget(31 * MB);
+        manager.enforceBudget(mTabs, 10 * MB);
+        // All paused is 34MB, serializing the first one gets under 31MB
+        assertTiers(2, 1, 1, 1, 1, 1);
+    }
+
+    public void testTrimLevels() {
+        TabMemoryManager manager = new TabMemoryManager(100 * MB);
+        manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, mTabs, 0);
+        assertTiers(1, 1, 1, 1, 1, 1);
+
+        // The most recently used tab is spared while memory is only low
+        manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, mTabs, 0);
+        assertTiers(2, 2, 2, 2, 2, 1);
+
+        manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, mTabs, 0);
+        assertTiers(3, 3, 3, 3, 3, 3);
+    }
+
+    public void testTrimNeverPromotes() {
+        TabMemoryManager manager = new TabMemoryManager(100 * MB);
+        mTabs.get(0).demote(TabMemoryManager.TIER_ON_DISK);
+        assertEquals(5, manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+                mTabs, 0));
+        assertTiers(3, 1, 1, 1, 1, 1);
+    }
+
+    public void testPressure() {
+        TabMemoryManager manager = new TabMemoryManager(100 * MB);
+        assertFalse(manager.isUnderPressure());
+        manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, mTabs, 0);
+        assertFalse(manager.isUnderPressure());
+        manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, mTabs, 0);
+        assertTrue(manager.isUnderPressure());
+    }
+
+    private void assertTiers(int... tiers) {
+        for (int i = 0; i < tiers.length; i++) {
+            assertEquals("tab " + i, tiers[i], mTabs.get(i).getTier());
+        }
+    }
+
+    private static class FakeTab implements ManagedTab {
+        int mTier = TabMemoryManager.TIER_LIVE;
+
+        @Override
+        public int getTier() {
+            return mTier;
+        }
+
+        @Override
+        public long getMemoryEstimate() {
+            return COST[mTier];
+        }
+
+        @Override
+        public void demote(int tier) {
+            assertTrue(tier > mTier);
+            mTier = tier;
+        }
+    }
+}